@@ -0,0 +1,422 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies a batch of retag, rename and delete operations to the images and
+ * masks of one project.
+ * Every asset the batch may touch is read with one batch get, operations
+ * are applied in order to those entities in memory, so later operations see
+ * the effect of earlier ones, and the results are written with batch puts
+ * and deletes.
+ * Assets are all in the project's entity group, so they are read and
+ * written in one transaction, retried if the project changes meanwhile;
+ * blob index entries and stored data of removed assets are deleted once it
+ * commits.
+ */
+public final class AssetBatch {
+  public static final int MAX_OPERATIONS = 500;
+
+  private static final int TRANSACTION_ATTEMPTS = 3;
+
+  private final Key projKey;
+  private final boolean isOwner;
+  private final String now;
+  private Transaction txn;
+
+  // Current state of every asset read or changed; null if it does not exist
+  private final HashMap<Key, Entity> assets = new HashMap<Key, Entity>();
+  private final LinkedHashSet<Key> changedKeys = new LinkedHashSet<Key>();
+  // Masks stored under images that are renamed or deleted
+  private final HashMap<Key, List<Entity>> storedMasks =
+      new HashMap<Key, List<Entity>>();
+
+  // Blob index entries and variants of removed assets
+  private final ArrayList<Key> deletedBlobKeys = new ArrayList<Key>();
+  private final HashMap<String, Long> tagChanges = new HashMap<String, Long>();
+  private long images = 0;
+  private long masks = 0;
+  private long bytes = 0;
+
+  /**
+   * Applies operations to a project's assets on behalf of an owner or
+   * editor. Only owners can delete.
+   * Returns the result of each operation, in order.
+   * @param     {Key}                       projKey
+   * @param     {List<AssetOperation>}      operations
+   * @param     {boolean}                   isOwner
+   * @return    {List<AssetOperationResult>}
+   */
+  public static List<AssetOperationResult> apply(
+      Key projKey, List<AssetOperation> operations, boolean isOwner)
+      throws IOException {
+    if (operations.size() > MAX_OPERATIONS) {
+      throw new IOException("Too many operations.");
+    }
+    for (int attempt = 0; attempt < TRANSACTION_ATTEMPTS; attempt++) {
+      try {
+        return new AssetBatch(projKey, isOwner).run(operations);
+      } catch (ConcurrentModificationException e) {
+        // The project changed while the batch was applied; start over
+      }
+    }
+    throw new IOException("Project is busy; try again.");
+  }
+
+  private AssetBatch(Key projKey, boolean isOwner) {
+    this.projKey = projKey;
+    this.isOwner = isOwner;
+    this.now = Instant.now().toString();
+  }
+
+  /**
+   * Reads, applies and writes the operations.
+   * @param     {List<AssetOperation>}      operations
+   * @return    {List<AssetOperationResult>}
+   */
+  private List<AssetOperationResult> run(List<AssetOperation> operations)
+      throws IOException {
+    ArrayList<AssetOperationResult> results =
+        new ArrayList<AssetOperationResult>();
+    txn = DatastoreServiceFactory.getDatastoreService().beginTransaction();
+    try {
+      read(operations);
+      for (AssetOperation operation : operations) {
+        try {
+          results.add(new AssetOperationResult(applyOne(operation), null));
+        } catch (IOException e) {
+          results.add(new AssetOperationResult(null, e.getMessage()));
+        }
+      }
+      write();
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+
+    cleanUp();
+    return results;
+  }
+
+  /**
+   * Reads every asset the operations name or may rename to in one batch
+   * get, along with the masks of images that may move or be deleted.
+   * @param     {List<AssetOperation>}  operations
+   * @return    {void}
+   */
+  private void read(List<AssetOperation> operations) throws IOException {
+    AsyncDatastoreService datastore =
+        DatastoreServiceFactory.getAsyncDatastoreService();
+    LinkedHashSet<Key> keys = new LinkedHashSet<Key>();
+    HashMap<Key, Iterable<Entity>> pendingMasks =
+        new HashMap<Key, Iterable<Entity>>();
+    for (AssetOperation operation : operations) {
+      Key key = getKey(operation);
+      if (key == null) {
+        continue;
+      }
+      keys.add(key);
+      // Taken names are suffixed; suffixed names are read when needed
+      if (!DataUtils.isEmptyParameter(operation.newName)) {
+        keys.add(rename(key, operation.newName));
+      }
+      boolean movesMasks =
+          "rename".equals(operation.op) || "delete".equals(operation.op);
+      if (key.getKind().equals(DataUtils.IMAGE) && movesMasks &&
+          !pendingMasks.containsKey(key)) {
+        pendingMasks.put(
+            key,
+            datastore
+                .prepare(txn, new Query(DataUtils.MASK).setAncestor(key))
+                .asList(FetchOptions.Builder.withDefaults()));
+      }
+    }
+
+    Map<Key, Entity> found =
+        DataUtils.awaitEntities(datastore.get(txn, new ArrayList<Key>(keys)));
+    for (Key key : keys) {
+      assets.put(key, found.get(key));
+    }
+    for (Map.Entry<Key, Iterable<Entity>> entry : pendingMasks.entrySet()) {
+      ArrayList<Entity> imageMasks = new ArrayList<Entity>();
+      for (Entity mask : entry.getValue()) {
+        imageMasks.add(mask);
+      }
+      storedMasks.put(entry.getKey(), imageMasks);
+    }
+  }
+
+  /**
+   * Applies one operation to the in-memory state.
+   * Returns the asset's name afterwards.
+   * @param     {AssetOperation}    operation
+   * @return    {String}
+   */
+  private String applyOne(AssetOperation operation) throws IOException {
+    Key key = getKey(operation);
+    Entity asset = (key == null) ? null : assets.get(key);
+    if (asset == null) {
+      throw new IOException("Image not found.");
+    }
+
+    if ("retag".equals(operation.op)) {
+      ArrayList<String> newTags = new ArrayList<String>();
+      if (operation.tags != null) {
+        for (String tag : operation.tags) {
+          if (!DataUtils.isEmptyParameter(tag)) {
+            newTags.add(tag.trim().toLowerCase());
+          }
+        }
+      }
+      List<String> tags = DataUtils.withDuplicatesRemoved(newTags);
+      addTagChanges(ProjectCounters.getTagChanges(
+          key.getKind(), (List<String>)asset.getProperty("tags"), tags));
+      asset.setIndexedProperty("tags", tags);
+      asset.setProperty("utc", now);
+      changed(key, asset);
+      return key.getName();
+    } else if ("rename".equals(operation.op)) {
+      return applyRename(key, asset, operation.newName);
+    } else if ("delete".equals(operation.op)) {
+      if (!isOwner) {
+        throw new IOException("Only owners can delete assets.");
+      }
+      for (Entity mask : getMasks(key)) {
+        remove(mask);
+      }
+      remove(asset);
+      return key.getName();
+    }
+    throw new IOException("Invalid operation.");
+  }
+
+  /**
+   * Moves an asset, and its masks if it is an image, to a new name.
+   * Taken names get the current time appended, as with single renames.
+   * @param     {Key}       key
+   * @param     {Entity}    asset
+   * @param     {String}    newName
+   * @return    {String}
+   */
+  private String applyRename(Key key, Entity asset, String newName)
+      throws IOException {
+    if (DataUtils.isEmptyParameter(newName)) {
+      throw new IOException("New name must be provided.");
+    }
+    BlobUtils.checkReservedName(newName);
+    if (newName.equals(key.getName())) {
+      return newName;
+    }
+
+    String name = newName;
+    for (int suffix = 0; lookup(rename(key, name)) != null; suffix++) {
+      name = newName + "-" + now + ((suffix == 0) ? "" : "-" + suffix);
+    }
+    Key newKey = rename(key, name);
+
+    List<Entity> imageMasks = getMasks(key);
+    List<Entity> copies = BlobUtils.copyAsset(asset, imageMasks, newKey);
+    for (Entity mask : imageMasks) {
+      changed(mask.getKey(), null);
+    }
+    changed(key, null);
+    for (Entity copy : copies) {
+      changed(copy.getKey(), copy);
+    }
+    Entity assetCopy = copies.get(0);
+    assetCopy.setProperty("name", name);
+    assetCopy.setProperty("utc", now);
+    return name;
+  }
+
+  /**
+   * Writes every changed asset and removes every deleted one in the
+   * transaction, and commits it.
+   * @return    {void}
+   */
+  private void write() {
+    if (changedKeys.isEmpty()) {
+      return;
+    }
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+    ArrayList<Entity> puts = new ArrayList<Entity>();
+    ArrayList<Key> deletes = new ArrayList<Key>();
+    for (Key key : changedKeys) {
+      Entity asset = assets.get(key);
+      if (asset == null) {
+        deletes.add(key);
+      } else {
+        puts.add(asset);
+      }
+    }
+
+    for (int start = 0; start < puts.size(); start += BlobUtils.MAX_BATCH_PUT) {
+      int end = Math.min(start + BlobUtils.MAX_BATCH_PUT, puts.size());
+      datastore.put(txn, puts.subList(start, end));
+    }
+    for (int start = 0; start < deletes.size();
+         start += BlobUtils.MAX_BATCH_PUT) {
+      int end = Math.min(start + BlobUtils.MAX_BATCH_PUT, deletes.size());
+      datastore.delete(txn, deletes.subList(start, end));
+    }
+    txn.commit();
+  }
+
+  /**
+   * Once the assets are written, removes what removed assets stored
+   * outside the project, and updates the project's counters and
+   * last-modified time once.
+   * @return    {void}
+   */
+  private void cleanUp() {
+    if (changedKeys.isEmpty()) {
+      return;
+    }
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    for (int start = 0; start < deletedBlobKeys.size();
+         start += BlobUtils.MAX_BATCH_PUT) {
+      int end =
+          Math.min(start + BlobUtils.MAX_BATCH_PUT, deletedBlobKeys.size());
+      datastore.delete(deletedBlobKeys.subList(start, end));
+    }
+
+    ProjectCounters.increment(projKey, images, masks, bytes, null,
+                              tagChanges);
+    ProjectTimestamps.touch(projKey, now);
+  }
+
+  /**
+   * Returns the current state of an asset, reading it in the transaction
+   * if it has not been read yet.
+   * @param     {Key}       key
+   * @return    {Entity}
+   */
+  private Entity lookup(Key key) {
+    if (!assets.containsKey(key)) {
+      try {
+        assets.put(key,
+                   DatastoreServiceFactory.getDatastoreService().get(txn, key));
+      } catch (EntityNotFoundException e) {
+        assets.put(key, null);
+      }
+    }
+    return assets.get(key);
+  }
+
+  /**
+   * Returns the current masks of an image, including changes made by
+   * earlier operations.
+   * @param     {Key}           imgKey
+   * @return    {List<Entity>}
+   */
+  private List<Entity> getMasks(Key imgKey) {
+    LinkedHashMap<Key, Entity> imageMasks = new LinkedHashMap<Key, Entity>();
+    List<Entity> stored = storedMasks.get(imgKey);
+    if (stored != null) {
+      for (Entity mask : stored) {
+        imageMasks.put(mask.getKey(), mask);
+      }
+    }
+    for (Map.Entry<Key, Entity> entry : assets.entrySet()) {
+      Key key = entry.getKey();
+      if (imgKey.equals(key.getParent()) &&
+          key.getKind().equals(DataUtils.MASK)) {
+        imageMasks.put(key, entry.getValue());
+      }
+    }
+    imageMasks.values().removeIf(mask -> mask == null);
+    return new ArrayList<Entity>(imageMasks.values());
+  }
+
+  /**
+   * Removes an asset, its blob index entry and its share of the counters.
+   * @param     {Entity}    asset
+   * @return    {void}
+   */
+  private void remove(Entity asset) {
+    Key key = asset.getKey();
+    if (key.getKind().equals(DataUtils.IMAGE)) {
+      images--;
+    } else {
+      masks--;
+    }
+    Long size = (Long)asset.getProperty("size");
+    bytes -= (size == null) ? 0 : size;
+    addTagChanges(ProjectCounters.getTagChanges(
+        key.getKind(), (List<String>)asset.getProperty("tags"), null));
+    String blobKeyString = (String)asset.getProperty("blobkey");
+    if (blobKeyString != null) {
+      deletedBlobKeys.add(BlobUtils.getBlobIndexKey(blobKeyString));
+      deletedBlobKeys.addAll(Renditions.getKeys(blobKeyString));
+    }
+    deletedBlobKeys.addAll(MaskHistory.getKeys(asset));
+    changed(key, null);
+  }
+
+  /**
+   * Records the new state of an asset; null if it no longer exists.
+   * @param     {Key}       key
+   * @param     {Entity}    asset
+   * @return    {void}
+   */
+  private void changed(Key key, Entity asset) {
+    assets.put(key, asset);
+    changedKeys.add(key);
+  }
+
+  /**
+   * Accumulates tag count changes for the single counter update.
+   * @param     {Map<String, Long>}     changes
+   * @return    {void}
+   */
+  private void addTagChanges(Map<String, Long> changes) {
+    changes.forEach((tag, change) -> tagChanges.merge(tag, change, Long::sum));
+  }
+
+  /**
+   * Returns the key of the asset an operation names, or null if it names
+   * none.
+   * @param     {AssetOperation}    operation
+   * @return    {Key}
+   */
+  private Key getKey(AssetOperation operation) {
+    if (DataUtils.isEmptyParameter(operation.image)) {
+      return null;
+    }
+    Key imgKey =
+        BlobUtils.getAssetKey(DataUtils.IMAGE, projKey, operation.image);
+    if (DataUtils.isEmptyParameter(operation.mask)) {
+      return imgKey;
+    }
+    return BlobUtils.getAssetKey(DataUtils.MASK, imgKey, operation.mask);
+  }
+
+  /**
+   * Returns the key an asset would have under a new name.
+   * @param     {Key}       key
+   * @param     {String}    name
+   * @return    {Key}
+   */
+  private static Key rename(Key key, String name) {
+    return BlobUtils.getAssetKey(key.getKind(), key.getParent(), name);
+  }
+}
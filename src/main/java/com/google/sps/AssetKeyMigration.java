@@ -0,0 +1,175 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Moves images and masks stored with numeric IDs to keys named after the
+ * asset's name, as expected by BlobUtils.getAssetKey.
+ * Blob index entries reference the project rather than the asset, so they
+ * do not change.
+ */
+public final class AssetKeyMigration {
+  public static final int BATCH_SIZE = 20;
+
+  /**
+   * Migrates one batch of images and their masks.
+   * Returns the number of images changed and the cursor for the next batch,
+   * which is null once every image has been visited.
+   * @param     {String}            cursorString    empty for the first batch
+   * @return    {MigrationInfo}
+   */
+  public static MigrationInfo migrateBatch(String cursorString)
+      throws IOException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+    FetchOptions batchOptions = FetchOptions.Builder.withLimit(BATCH_SIZE);
+    if (!DataUtils.isEmptyParameter(cursorString)) {
+      batchOptions.startCursor(DataUtils.parseCursor(cursorString));
+    }
+
+    PreparedQuery imageKeys =
+        datastore.prepare(new Query(DataUtils.IMAGE).setKeysOnly());
+    QueryResultList<Entity> batch = imageKeys.asQueryResultList(batchOptions);
+
+    int migrated = 0;
+    for (Entity image : batch) {
+      if (migrateImage(image.getKey())) {
+        migrated++;
+      }
+    }
+    return new MigrationInfo(migrated,
+                             DataUtils.getNextCursor(batch, batchOptions));
+  }
+
+  /**
+   * Moves an image and its masks to name-based keys in one transaction.
+   * Names that collide under the same parent get the old ID appended.
+   * Returns whether anything changed.
+   * @param     {Key}       imgKey
+   * @return    {boolean}
+   */
+  public static boolean migrateImage(Key imgKey) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+    // Images and masks share the project's entity group
+    Transaction txn = datastore.beginTransaction();
+    try {
+      Entity image;
+      try {
+        image = datastore.get(txn, imgKey);
+      } catch (EntityNotFoundException e) {
+        // Deleted since the batch was read
+        return false;
+      }
+      List<Entity> masks =
+          datastore
+              .prepare(txn, new Query(DataUtils.MASK).setAncestor(imgKey))
+              .asList(FetchOptions.Builder.withDefaults());
+
+      Key newImgKey = imgKey;
+      if (imgKey.getName() == null) {
+        String name = getLegacyName(image);
+        newImgKey =
+            BlobUtils.getAssetKey(DataUtils.IMAGE, imgKey.getParent(), name);
+        if (exists(datastore, txn, newImgKey)) {
+          name += "-" + imgKey.getId();
+          newImgKey =
+              BlobUtils.getAssetKey(DataUtils.IMAGE, imgKey.getParent(), name);
+        }
+        image.setProperty("name", name);
+      }
+      boolean isImageMoved = !newImgKey.equals(imgKey);
+
+      // Masks already named by key keep their names unless the image moves
+      HashSet<String> takenNames = new HashSet<String>();
+      ArrayList<Entity> movedMasks = new ArrayList<Entity>();
+      for (Entity mask : masks) {
+        if (isImageMoved || mask.getKey().getName() == null) {
+          movedMasks.add(mask);
+        } else {
+          takenNames.add(mask.getKey().getName());
+        }
+      }
+      if (!isImageMoved && movedMasks.isEmpty()) {
+        return false;
+      }
+
+      ArrayList<Entity> copies = new ArrayList<Entity>();
+      ArrayList<Key> oldKeys = new ArrayList<Key>();
+      for (Entity mask : movedMasks) {
+        String name = getLegacyName(mask);
+        if (takenNames.contains(name)) {
+          name += "-" + mask.getKey().getId();
+        }
+        takenNames.add(name);
+        mask.setProperty("name", name);
+        Entity maskCopy = new Entity(
+            BlobUtils.getAssetKey(DataUtils.MASK, newImgKey, name));
+        maskCopy.setPropertiesFrom(mask);
+        copies.add(maskCopy);
+        oldKeys.add(mask.getKey());
+      }
+      if (isImageMoved) {
+        Entity imageCopy = new Entity(newImgKey);
+        imageCopy.setPropertiesFrom(image);
+        copies.add(imageCopy);
+        oldKeys.add(imgKey);
+      }
+
+      datastore.put(txn, copies);
+      datastore.delete(txn, oldKeys);
+      txn.commit();
+      return true;
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+  }
+
+  /**
+   * Returns the stored name of an asset, or a default for unnamed assets.
+   * @param     {Entity}    asset
+   * @return    {String}
+   */
+  private static String getLegacyName(Entity asset) {
+    String name = (String)asset.getProperty("name");
+    if (DataUtils.isEmptyParameter(name)) {
+      Key key = asset.getKey();
+      name = "Untitled-" + (key.getName() == null ? key.getId() : key.getName());
+    }
+    return name;
+  }
+
+  /**
+   * Determines if an entity exists, within a transaction.
+   * @param     {DatastoreService}  datastore
+   * @param     {Transaction}       txn
+   * @param     {Key}               key
+   * @return    {boolean}
+   */
+  private static boolean exists(DatastoreService datastore, Transaction txn,
+                                Key key) {
+    try {
+      datastore.get(txn, key);
+      return true;
+    } catch (EntityNotFoundException e) {
+      return false;
+    }
+  }
+
+  private AssetKeyMigration() {}
+}
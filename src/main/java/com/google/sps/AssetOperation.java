@@ -0,0 +1,16 @@
+package com.google.sps.servlets;
+
+import java.util.ArrayList;
+
+/**
+ * Holds one operation of a batch asset mutation, parsed from the request.
+ * op is one of retag, rename or delete. The asset is the image named image,
+ * or its mask named mask if provided.
+ */
+class AssetOperation {
+  String op;
+  String image;
+  String mask;
+  String newName;
+  ArrayList<String> tags;
+}
@@ -0,0 +1,17 @@
+package com.google.sps.servlets;
+
+/**
+ * Holds the outcome of one operation of a batch asset mutation to return to
+ * front end and allows for easy creation of JSON response.
+ * error is null if the operation succeeded; name is the asset's name
+ * afterwards.
+ */
+class AssetOperationResult {
+  String name;
+  String error;
+
+  public AssetOperationResult(String name, String error) {
+    this.name = name;
+    this.error = error;
+  }
+}
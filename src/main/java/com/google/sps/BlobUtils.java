@@ -5,10 +5,14 @@ import com.google.appengine.api.blobstore.BlobInfoFactory;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.CompositeFilter;
@@ -19,6 +23,9 @@ import com.google.appengine.api.datastore.Query.FilterPredicate;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import javax.servlet.http.HttpServletRequest;
@@ -27,15 +34,40 @@ import javax.servlet.http.HttpServletRequest;
  * Provides utilities for the blobs servlet.
  */
 public final class BlobUtils {
+  // ImageInfo fields that keys-only and projection image queries can supply
+  // Image names are the key names
+  public static final List<String> IMAGE_KEY_FIELDS =
+      Arrays.asList("name", "masks");
+  public static final List<String> IMAGE_PROJECTED_FIELDS =
+      Arrays.asList("name", "url", "thumbnail", "type", "utc", "masks");
+  public static final List<String> IMAGE_PROJECTION =
+      Arrays.asList("utc", "blobkey", "filetype");
+  // Most entities Datastore accepts in one batch put
+  public static final int MAX_BATCH_PUT = 500;
+  // MIME types of the file extensions checkFileValidity accepts
+  private static final Map<String, String> CONTENT_TYPES =
+      new HashMap<String, String>();
+  static {
+    CONTENT_TYPES.put("png", "image/png");
+    for (String jpeg : Arrays.asList("jpg", "jpeg", "jfif", "pjpeg", "pjp")) {
+      CONTENT_TYPES.put(jpeg, "image/jpeg");
+    }
+    CONTENT_TYPES.put("gif", "image/gif");
+    CONTENT_TYPES.put("bmp", "image/bmp");
+    CONTENT_TYPES.put("ico", "image/x-icon");
+    CONTENT_TYPES.put("cur", "image/x-icon");
+    CONTENT_TYPES.put("svg", "image/svg+xml");
+    CONTENT_TYPES.put("webp", "image/webp");
+  }
 
   /**
    * Checks if the file uploaded to Blobstore is valid.
    * Returns the file extension if valid.
-   * @param     {BlobKey}   blobKey   key for the file in question
+   * @param     {BlobInfo}  blobInfo  metadata of the file in question
    * @param     {boolean}   isMask    mask or image
    * @return    {String}
    */
-  public static String checkFileValidity(BlobKey blobKey, boolean isMask)
+  public static String checkFileValidity(BlobInfo blobInfo, boolean isMask)
       throws IOException {
     BlobstoreService blobstoreService =
         BlobstoreServiceFactory.getBlobstoreService();
@@ -51,7 +83,7 @@ public final class BlobUtils {
                                  "image/gif", "image/bmp", "image/x-icon",
                                  "image/svg+xml", "image/webp"));
 
-    BlobInfo blobInfo = new BlobInfoFactory().loadBlobInfo(blobKey);
+    BlobKey blobKey = blobInfo.getBlobKey();
     String[] splitFilename = blobInfo.getFilename().split("\\.");
     String extension = splitFilename[splitFilename.length - 1].toLowerCase();
     String mimeType = blobInfo.getContentType().toLowerCase();
@@ -68,6 +100,18 @@ public final class BlobUtils {
     return extension;
   }
 
+  /**
+   * Returns the key of an asset, which is named after the asset's name.
+   * Names are unique under the parent, so assets can be retrieved with a get.
+   * @param     {String}    kind        asset kind
+   * @param     {Key}       ancestor    parent of asset
+   * @param     {String}    name        name of the asset
+   * @return    {Key}
+   */
+  public static Key getAssetKey(String kind, Key ancestor, String name) {
+    return KeyFactory.createKey(ancestor, kind, name);
+  }
+
   /**
    * Retrieves asset Entity based on parameters.
    * @param     {String}    kind        asset kind
@@ -79,15 +123,89 @@ public final class BlobUtils {
       throws IOException {
     DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
 
-    Filter imgFilter = new FilterPredicate("name", FilterOperator.EQUAL, name);
-    Query imgQuery = new Query(kind).setAncestor(ancestor).setFilter(imgFilter);
-    PreparedQuery existingImgQuery = datastore.prepare(imgQuery);
-
-    if (existingImgQuery.countEntities() == 0) {
+    try {
+      return datastore.get(getAssetKey(kind, ancestor, name));
+    } catch (EntityNotFoundException e) {
       throw new IOException("Image not found.");
     }
+  }
 
-    return existingImgQuery.asSingleEntity();
+  /**
+   * Determines if an asset with the given name exists under the parent.
+   * @param     {String}    kind        asset kind
+   * @param     {Key}       ancestor    parent of asset
+   * @param     {String}    name        name of the asset
+   * @return    {boolean}
+   */
+  public static boolean assetExists(String kind, Key ancestor, String name) {
+    try {
+      getAssetEntity(kind, ancestor, name);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Copies an asset to a new key, along with its masks if it is an image.
+   * Masks keep their names under the new image.
+   * The copies are not stored and the originals are not removed.
+   * @param     {Entity}        asset
+   * @param     {List<Entity>}  masks     masks of the asset, if any
+   * @param     {Key}           newKey
+   * @return    {List<Entity>}
+   */
+  public static List<Entity> copyAsset(Entity asset, List<Entity> masks,
+                                       Key newKey) {
+    ArrayList<Entity> copies = new ArrayList<Entity>();
+    Entity assetCopy = new Entity(newKey);
+    assetCopy.setPropertiesFrom(asset);
+    copies.add(assetCopy);
+    for (Entity mask : masks) {
+      Entity maskCopy = new Entity(getAssetKey(
+          DataUtils.MASK, newKey, (String)mask.getProperty("name")));
+      maskCopy.setPropertiesFrom(mask);
+      copies.add(maskCopy);
+    }
+    return copies;
+  }
+
+  /**
+   * Returns the key of the blob index entry for a blobkey.
+   * @param     {String}    blobKeyString
+   * @return    {Key}
+   */
+  public static Key getBlobIndexKey(String blobKeyString) {
+    return KeyFactory.createKey(DataUtils.BLOB_INDEX, blobKeyString);
+  }
+
+  /**
+   * Creates the blob index entry mapping a blobkey to its asset kind, file
+   * type and owning project, so the blob can be served after a single get.
+   * @param     {String}    blobKeyString
+   * @param     {String}    kind            either IMAGE or MASK
+   * @param     {Key}       projKey
+   * @param     {String}    filetype        file extension of the blob
+   * @return    {Entity}
+   */
+  public static Entity newBlobIndexEntity(String blobKeyString, String kind,
+                                          Key projKey, String filetype) {
+    Entity blobIndexEntity = new Entity(getBlobIndexKey(blobKeyString));
+    blobIndexEntity.setUnindexedProperty("kind", kind);
+    blobIndexEntity.setUnindexedProperty("filetype", filetype);
+    // Indexed so a project's entries can be found when it is deleted
+    blobIndexEntity.setIndexedProperty("project", projKey);
+    return blobIndexEntity;
+  }
+
+  /**
+   * Returns the MIME type of a file extension accepted by
+   * checkFileValidity, or null if unknown.
+   * @param     {String}    filetype
+   * @return    {String}
+   */
+  public static String getContentType(String filetype) {
+    return (filetype == null) ? null : CONTENT_TYPES.get(filetype);
   }
 
   /**
@@ -127,6 +245,113 @@ public final class BlobUtils {
     return null;
   }
 
+  /**
+   * Builds the mask query under the given ancestor, sorted and filtered
+   * according to the sort-mask, mask-name and tag parameters.
+   * @param     {HttpServletRequest}    request
+   * @param     {Key}                   ancestor    project or image key
+   * @return    {Query}
+   */
+  public static Query getMaskQuery(HttpServletRequest request, Key ancestor) {
+    String sortMask = request.getParameter("sort-mask");
+    // Sorted in descending chronological order by default
+    if (DataUtils.isEmptyParameter(sortMask)) {
+      sortMask = DataUtils.DESCENDING_SORT;
+    }
+    sortMask = sortMask.toLowerCase();
+
+    return new Query(DataUtils.MASK)
+        .setAncestor(ancestor)
+        .addSort("utc", sortMask.equals(DataUtils.ASCENDING_SORT)
+                            ? Query.SortDirection.ASCENDING
+                            : Query.SortDirection.DESCENDING)
+        .setFilter(combinedGetFilters(request, true, DataUtils.MASK));
+  }
+
+  /**
+   * Parses a stored mask Entity to a MaskInfo object.
+   * @param     {Entity}    storedMask
+   * @return    {MaskInfo}
+   */
+  public static MaskInfo toMaskInfo(Entity storedMask) {
+    // Masks uploaded in the compact encoding are hosted as PNGs from it
+    String maskDataId = (String)storedMask.getProperty("maskdata");
+    String maskUrl = (maskDataId != null)
+                         ? MaskStore.getUrl(maskDataId, true)
+                         : "/blob-host?blobkey=" +
+                               (String)storedMask.getProperty("blobkey");
+    String maskName = (String)storedMask.getProperty("name");
+    String maskType = (String)storedMask.getProperty("filetype");
+    String maskTime = (String)storedMask.getProperty("utc");
+    ArrayList<String> maskTags =
+        (ArrayList<String>)storedMask.getProperty("tags");
+    return new MaskInfo(maskUrl, maskName, maskType, maskTime, maskTags);
+  }
+
+  /**
+   * Retrieves all masks under a project with one ancestor query and groups
+   * them by parent image key, preserving the requested mask sort order.
+   * Mask filters are the same as those from combinedGetFilters.
+   * @param     {HttpServletRequest}                request
+   * @param     {Key}                               projKey
+   * @return    {Map<Key, ArrayList<MaskInfo>>}
+   */
+  public static Map<Key, ArrayList<MaskInfo>> getMasksByParent(
+      HttpServletRequest request, Key projKey) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    PreparedQuery storedMasks =
+        datastore.prepare(getMaskQuery(request, projKey));
+
+    Map<Key, ArrayList<MaskInfo>> masksByParent =
+        new HashMap<Key, ArrayList<MaskInfo>>();
+    for (Entity storedMask : storedMasks.asIterable()) {
+      Key parentKey = storedMask.getParent();
+      if (!masksByParent.containsKey(parentKey)) {
+        masksByParent.put(parentKey, new ArrayList<MaskInfo>());
+      }
+      masksByParent.get(parentKey).add(toMaskInfo(storedMask));
+    }
+    return masksByParent;
+  }
+
+  /**
+   * Retrieves the masks of only the given images, grouped by image key.
+   * Used for a single page of images, where loading every mask in the
+   * project would defeat paging. One query is issued per image, but all
+   * queries run concurrently, so the number in flight is bounded by the
+   * page size.
+   * @param     {HttpServletRequest}                request
+   * @param     {List<Key>}                         imgKeys
+   * @return    {Map<Key, ArrayList<MaskInfo>>}
+   */
+  public static Map<Key, ArrayList<MaskInfo>> getMasksForImages(
+      HttpServletRequest request, List<Key> imgKeys) {
+    AsyncDatastoreService datastore =
+        DatastoreServiceFactory.getAsyncDatastoreService();
+
+    // Async queries begin fetching as soon as a result is requested, so
+    // start every iterator before consuming any of them
+    Map<Key, Iterator<Entity>> pendingMasks =
+        new LinkedHashMap<Key, Iterator<Entity>>();
+    for (Key imgKey : imgKeys) {
+      pendingMasks.put(imgKey,
+                       datastore.prepare(getMaskQuery(request, imgKey))
+                           .asIterator(FetchOptions.Builder.withDefaults()));
+    }
+
+    Map<Key, ArrayList<MaskInfo>> masksByParent =
+        new HashMap<Key, ArrayList<MaskInfo>>();
+    for (Map.Entry<Key, Iterator<Entity>> pending : pendingMasks.entrySet()) {
+      ArrayList<MaskInfo> masks = new ArrayList<MaskInfo>();
+      Iterator<Entity> storedMasks = pending.getValue();
+      while (storedMasks.hasNext()) {
+        masks.add(toMaskInfo(storedMasks.next()));
+      }
+      masksByParent.put(pending.getKey(), masks);
+    }
+    return masksByParent;
+  }
+
   /**
    * Returns either the blobkey string and file extension for storage in the
    * database or null.
@@ -166,11 +391,81 @@ public final class BlobUtils {
       // Set blobkey property
       if (isCreateMode || (!isCreateMode && hasNonEmptyImage)) {
         return new CustomBlobInfo(blobKey.getKeyString(),
-                                  checkFileValidity(blobKey, isMask));
+                                  checkFileValidity(blobInfo, isMask),
+                                  blobInfo.getSize());
       }
     }
     return null;
   }
 
+  /**
+   * Validates every image uploaded under the image field for bulk uploads.
+   * The BlobInfo of each file comes with the upload callback, so no file
+   * needs a separate lookup. Rejected files are deleted and returned with a
+   * null file extension.
+   * @param     {HttpServletRequest}    request
+   * @return    {List<CustomBlobInfo>}
+   */
+  public static List<CustomBlobInfo> processBlobKeys(
+      HttpServletRequest request) throws IOException {
+    BlobstoreService blobstoreService =
+        BlobstoreServiceFactory.getBlobstoreService();
+    List<BlobInfo> blobInfos =
+        blobstoreService.getBlobInfos(request).get("image");
+    if (blobInfos == null || blobInfos.isEmpty()) {
+      throw new IOException("Form submitted without a file.");
+    }
+
+    ArrayList<CustomBlobInfo> files = new ArrayList<CustomBlobInfo>();
+    for (BlobInfo blobInfo : blobInfos) {
+      String extension = null;
+      try {
+        extension = checkFileValidity(blobInfo, false);
+      } catch (IOException e) {
+        // The invalid file has already been deleted
+      }
+      files.add(new CustomBlobInfo(blobInfo.getBlobKey().getKeyString(),
+                                   extension, blobInfo.getSize(),
+                                   blobInfo.getFilename()));
+    }
+    return files;
+  }
+
+  /**
+   * Determines if a name takes the form Datastore reserves for key names,
+   * which asset names become.
+   * @param     {String}    name
+   * @return    {boolean}
+   */
+  public static boolean isReservedName(String name) {
+    return name.startsWith("__") && name.endsWith("__");
+  }
+
+  /**
+   * Checks that a name can become an asset's key name.
+   * @param     {String}    name
+   * @return    {void}
+   */
+  public static void checkReservedName(String name) throws IOException {
+    if (isReservedName(name)) {
+      throw new IOException("Invalid name.");
+    }
+  }
+
+  /**
+   * Deletes every file uploaded with a request, for requests rejected
+   * before their files are stored.
+   * @param     {HttpServletRequest}    request
+   * @return    {void}
+   */
+  public static void deleteUploads(HttpServletRequest request) {
+    BlobstoreService blobstoreService =
+        BlobstoreServiceFactory.getBlobstoreService();
+    for (List<BlobKey> blobKeys :
+         blobstoreService.getUploads(request).values()) {
+      blobstoreService.delete(blobKeys.toArray(new BlobKey[0]));
+    }
+  }
+
   private BlobUtils() {}
 }
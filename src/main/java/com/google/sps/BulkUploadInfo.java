@@ -0,0 +1,19 @@
+package com.google.sps.servlets;
+
+import java.util.ArrayList;
+
+/**
+ * Holds the result of a bulk upload to return to front end and
+ * allows for easy creation of JSON response.
+ * rejected holds the filenames of files that were not valid images.
+ */
+class BulkUploadInfo {
+  ArrayList<BlobPostReturn> uploaded;
+  ArrayList<String> rejected;
+
+  public BulkUploadInfo(ArrayList<BlobPostReturn> uploaded,
+                        ArrayList<String> rejected) {
+    this.uploaded = uploaded;
+    this.rejected = rejected;
+  }
+}
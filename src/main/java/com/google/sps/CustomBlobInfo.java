@@ -1,14 +1,30 @@
 package com.google.sps.servlets;
 
 /**
- * Holds the Blobkey string and file extension of a Blob.
+ * Holds the Blobkey string, file extension, size in bytes and uploaded
+ * filename of a Blob.
+ * In bulk uploads, fileExtension is null for files that were rejected.
  */
 class CustomBlobInfo {
   String blobKeyString;
   String fileExtension;
+  long size;
+  String fileName;
 
   public CustomBlobInfo(String blobKeyString, String fileExtension) {
+    this(blobKeyString, fileExtension, 0);
+  }
+
+  public CustomBlobInfo(String blobKeyString, String fileExtension,
+                        long size) {
+    this(blobKeyString, fileExtension, size, null);
+  }
+
+  public CustomBlobInfo(String blobKeyString, String fileExtension,
+                        long size, String fileName) {
     this.blobKeyString = blobKeyString;
     this.fileExtension = fileExtension;
+    this.size = size;
+    this.fileName = fileName;
   }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package com.google.sps.servlets;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
@@ -7,15 +9,33 @@ import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 import javax.servlet.http.HttpServletRequest;
 
 /**
@@ -29,6 +49,20 @@ public final class DataUtils {
   public static final String PROJECT = "Project";
   public static final String IMAGE = "Image";
   public static final String MASK = "Mask";
+  public static final String BLOB_INDEX = "BlobIndex";
+  public static final int DEFAULT_PAGE_SIZE = 50;
+  public static final int MAX_PAGE_SIZE = 500;
+
+  // Separates the per-query cursors of a merged page and marks queries with
+  // no results left; neither character appears in web-safe cursors
+  private static final String MERGED_CURSOR_SEPARATOR = ".";
+  private static final String EXHAUSTED_CURSOR = "~";
+
+  // Cached project ACLs are refreshed at least this often in case an update
+  // is missed
+  private static final String PROJECT_ACL_NAMESPACE = "project-acl";
+  private static final int PROJECT_ACL_EXPIRATION = 600;
+  private static final int PROJECT_ACL_CAS_ATTEMPTS = 3;
 
   /**
    * Determines if the given request parameter is empty.
@@ -73,8 +107,316 @@ public final class DataUtils {
     return mode.toLowerCase().equals("create");
   }
 
+  /**
+   * Parses the fields parameter, which limits a listing to the named JSON
+   * fields. Returns null if every field is wanted.
+   * @param     {HttpServletRequest}    request   the HTTP request
+   * @return    {Set<String>}
+   */
+  public static Set<String> parseFields(HttpServletRequest request) {
+    String fields = request.getParameter("fields");
+    if (isEmptyParameter(fields)) {
+      return null;
+    }
+    return new LinkedHashSet<String>(
+        Arrays.asList(fields.trim().split("\\s*,\\s*")));
+  }
+
+  /**
+   * Limits a query to what the requested fields need.
+   * Fields readable from keys alone make the query keys-only, and fields
+   * readable from the projected properties make it a projection query.
+   * Otherwise, or if every field is wanted, full entities are fetched.
+   * Projected properties are all String valued and are always projected
+   * together so that each filter and sort needs a single composite index.
+   * @param     {Query}         query
+   * @param     {Set<String>}   fields          requested fields; null if all
+   * @param     {List<String>}  keyFields       fields readable from keys;
+   *                                            null if not applicable
+   * @param     {List<String>}  projectedFields fields readable from the
+   *                                            projection; null if not
+   *                                            applicable
+   * @param     {List<String>}  projection      properties to project
+   * @return    {void}
+   */
+  public static void applyFields(Query query, Set<String> fields,
+                                 List<String> keyFields,
+                                 List<String> projectedFields,
+                                 List<String> projection) {
+    if (fields == null) {
+      return;
+    }
+    if (keyFields != null && keyFields.containsAll(fields)) {
+      query.setKeysOnly();
+    } else if (projectedFields != null &&
+               projectedFields.containsAll(fields)) {
+      for (String property : projection) {
+        query.addProjection(new PropertyProjection(property, String.class));
+      }
+    }
+  }
+
+  /**
+   * Determines if the request's If-None-Match header matches an ETag.
+   * Weak validators match their strong form, as If-None-Match compares
+   * weakly.
+   * @param     {HttpServletRequest}    request
+   * @param     {String}                etag
+   * @return    {boolean}
+   */
+  public static boolean matchesETag(HttpServletRequest request, String etag) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals(etag) || candidate.equals("*")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the body of a request, which must not exceed a limit.
+   * @param     {HttpServletRequest}    request   the HTTP request
+   * @param     {int}                   maxBytes
+   * @return    {byte[]}
+   */
+  public static byte[] readBody(HttpServletRequest request, int maxBytes)
+      throws IOException {
+    if (request.getContentLength() > maxBytes) {
+      throw new IOException("Request body is too large.");
+    }
+    InputStream in = request.getInputStream();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+      if (body.size() + read > maxBytes) {
+        throw new IOException("Request body is too large.");
+      }
+      body.write(buffer, 0, read);
+    }
+    return body.toByteArray();
+  }
+
+  /**
+   * Determines if the request asks for a single page of results.
+   * Paging is opt-in so that existing clients still receive every result.
+   * @param     {HttpServletRequest}    request   the HTTP request
+   * @return    {boolean}
+   */
+  public static boolean isPagedRequest(HttpServletRequest request) {
+    return !isEmptyParameter(request.getParameter("limit")) ||
+        !isEmptyParameter(request.getParameter("cursor"));
+  }
+
+  /**
+   * Parses the limit parameter for one page of results.
+   * Defaults to DEFAULT_PAGE_SIZE and is capped at MAX_PAGE_SIZE.
+   * @param     {HttpServletRequest}    request   the HTTP request
+   * @return    {int}
+   */
+  public static int getPageLimit(HttpServletRequest request)
+      throws IOException {
+    String limitString = request.getParameter("limit");
+    if (isEmptyParameter(limitString)) {
+      return DEFAULT_PAGE_SIZE;
+    }
+
+    int limit;
+    try {
+      limit = Integer.parseInt(limitString);
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid limit.");
+    }
+    if (limit <= 0) {
+      throw new IOException("Invalid limit.");
+    }
+    return Math.min(limit, MAX_PAGE_SIZE);
+  }
+
+  /**
+   * Parses the limit and cursor parameters into fetch options for one page.
+   * @param     {HttpServletRequest}    request   the HTTP request
+   * @return    {FetchOptions}
+   */
+  public static FetchOptions getPageOptions(HttpServletRequest request)
+      throws IOException {
+    FetchOptions fetchOptions =
+        FetchOptions.Builder.withLimit(getPageLimit(request));
+
+    String cursorString = request.getParameter("cursor");
+    if (!isEmptyParameter(cursorString)) {
+      fetchOptions.startCursor(parseCursor(cursorString));
+    }
+    return fetchOptions;
+  }
+
+  /**
+   * Returns the web-safe cursor for the page after the given one, or null if
+   * the given page was the last.
+   * @param     {QueryResultList<Entity>}   page          current page
+   * @param     {FetchOptions}              pageOptions   options used to
+   *                                                      fetch the page
+   * @return    {String}
+   */
+  public static String getNextCursor(QueryResultList<Entity> page,
+                                     FetchOptions pageOptions) {
+    if (page.size() < pageOptions.getLimit() || page.getCursor() == null) {
+      return null;
+    }
+    return page.getCursor().toWebSafeString();
+  }
+
+  /**
+   * Retrieves one page of the union of several queries that share the same
+   * sort order, without duplicates.
+   * Datastore cannot resume an OR query from a cursor, so each query is
+   * instead paged separately against its own composite index and the
+   * results are merged. The returned cursor holds one cursor per query.
+   * @param     {List<Query>}           queries   sorted on the same property
+   * @param     {HttpServletRequest}    request   the HTTP request
+   * @return    {PageInfo<Entity>}
+   */
+  public static PageInfo<Entity> getMergedPage(List<Query> queries,
+                                               HttpServletRequest request)
+      throws IOException {
+    AsyncDatastoreService datastore =
+        DatastoreServiceFactory.getAsyncDatastoreService();
+    int limit = getPageLimit(request);
+
+    // Empty cursors start at the beginning of their query
+    String[] cursors = new String[queries.size()];
+    Arrays.fill(cursors, "");
+    String cursorString = request.getParameter("cursor");
+    if (!isEmptyParameter(cursorString)) {
+      cursors = cursorString.split(Pattern.quote(MERGED_CURSOR_SEPARATOR), -1);
+      if (cursors.length != queries.size()) {
+        throw new IOException("Invalid cursor.");
+      }
+    }
+
+    // Start every query before reading any of them so they run concurrently
+    ArrayList<QueryResultIterator<Entity>> iterators =
+        new ArrayList<QueryResultIterator<Entity>>();
+    for (int i = 0; i < queries.size(); i++) {
+      if (cursors[i].equals(EXHAUSTED_CURSOR)) {
+        iterators.add(null);
+        continue;
+      }
+      FetchOptions fetchOptions = FetchOptions.Builder.withLimit(limit);
+      if (!cursors[i].isEmpty()) {
+        fetchOptions.startCursor(parseCursor(cursors[i]));
+      }
+      iterators.add(
+          datastore.prepare(queries.get(i)).asQueryResultIterator(fetchOptions));
+    }
+
+    Entity[] heads = new Entity[queries.size()];
+    int[] fetched = new int[queries.size()];
+    for (int i = 0; i < queries.size(); i++) {
+      heads[i] = nextOrNull(iterators.get(i), fetched, i);
+    }
+
+    SortPredicate sort = queries.get(0).getSortPredicates().get(0);
+    ArrayList<Entity> results = new ArrayList<Entity>();
+    while (results.size() < limit) {
+      int first = -1;
+      for (int i = 0; i < heads.length; i++) {
+        if (heads[i] != null &&
+            (first == -1 || compareSorted(heads[i], heads[first], sort) < 0)) {
+          first = i;
+        }
+      }
+      if (first == -1) {
+        break;
+      }
+
+      // The same entity may match several queries; consume it from all
+      Entity entity = heads[first];
+      for (int i = 0; i < heads.length; i++) {
+        if (heads[i] != null && heads[i].getKey().equals(entity.getKey())) {
+          cursors[i] = iterators.get(i).getCursor().toWebSafeString();
+          heads[i] = nextOrNull(iterators.get(i), fetched, i);
+        }
+      }
+      results.add(entity);
+    }
+
+    // A query is exhausted once it returns fewer results than requested and
+    // every one of them has been consumed
+    boolean allExhausted = true;
+    for (int i = 0; i < heads.length; i++) {
+      if (iterators.get(i) == null ||
+          (heads[i] == null && fetched[i] < limit)) {
+        cursors[i] = EXHAUSTED_CURSOR;
+      } else {
+        allExhausted = false;
+      }
+    }
+
+    String nextCursor = allExhausted
+        ? null
+        : String.join(MERGED_CURSOR_SEPARATOR, cursors);
+    return new PageInfo<Entity>(results, nextCursor);
+  }
+
+  /**
+   * Parses a web-safe cursor string.
+   * @param     {String}    cursorString
+   * @return    {Cursor}
+   */
+  public static Cursor parseCursor(String cursorString) throws IOException {
+    try {
+      return Cursor.fromWebSafeString(cursorString);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid cursor.");
+    }
+  }
+
+  /**
+   * Returns the next result of a query, counting it, or null if there is
+   * none.
+   * @param     {QueryResultIterator<Entity>}   iterator  may be null
+   * @param     {int[]}                         fetched   result counts
+   * @param     {int}                           index     query index
+   * @return    {Entity}
+   */
+  private static Entity nextOrNull(QueryResultIterator<Entity> iterator,
+                                   int[] fetched, int index) {
+    if (iterator == null || !iterator.hasNext()) {
+      return null;
+    }
+    fetched[index]++;
+    return iterator.next();
+  }
+
+  /**
+   * Compares two entities in Datastore result order: by the sort property,
+   * then by key ascending.
+   * @param     {Entity}          a
+   * @param     {Entity}          b
+   * @param     {SortPredicate}   sort
+   * @return    {int}
+   */
+  private static int compareSorted(Entity a, Entity b, SortPredicate sort) {
+    Comparable valueA = (Comparable)a.getProperty(sort.getPropertyName());
+    Comparable valueB = (Comparable)b.getProperty(sort.getPropertyName());
+    int comparison = valueA.compareTo(valueB);
+    if (sort.getDirection() == SortDirection.DESCENDING) {
+      comparison = -comparison;
+    }
+    return comparison != 0 ? comparison : a.getKey().compareTo(b.getKey());
+  }
+
   /**
    * Retrieves project Entity with respect to access restrictions.
+   * The project's ACL is cached for later calls to checkProjectAccess.
    * @param     {String}        projId          the Datastore key String for
    *                                            the working project
    * @param     {String}        userEmail       the User's email
@@ -90,31 +432,42 @@ public final class DataUtils {
       throws IOException {
     DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
 
-    Entity projEntity = new Entity(PROJECT);
-    Key projKey = projEntity.getKey();
-
+    Entity projEntity = null;
     try {
-      projKey = KeyFactory.stringToKey(projId);
-      projEntity = datastore.get(projKey);
+      projEntity = datastore.get(getProjectKey(projId));
     } catch (Exception e) {
       throw new IOException(
           "Database error when trying to access this project.");
     }
 
-    ArrayList<String> owners =
-        (ArrayList<String>)projEntity.getProperty("owners");
-    ArrayList<String> editors =
-        (ArrayList<String>)projEntity.getProperty("editors");
-    String existingVis = (String)projEntity.getProperty("visibility");
+    return checkProjectEntity(projId, projEntity, userEmail, accessIfEditor,
+                              accessIfPublic);
+  }
 
-    // owners and visibility should never be null, so no null check provided
-    // If either is null, something has gone very wrong
-    boolean isOwner = owners.contains(userEmail);
-    boolean isEditor =
-        accessIfEditor && editors != null && editors.contains(userEmail);
-    boolean isPublic = accessIfPublic && existingVis.equals(PUBLIC);
+  /**
+   * Checks access to an already retrieved project Entity, as
+   * getProjectEntity does. A null Entity is treated as a missing project.
+   * @param     {String}        projId
+   * @param     {Entity}        projEntity
+   * @param     {String}        userEmail
+   * @param     {boolean}       accessIfEditor
+   * @param     {boolean}       accessIfPublic
+   * @return    {Entity}
+   */
+  public static Entity checkProjectEntity(String projId, Entity projEntity,
+                                          String userEmail,
+                                          boolean accessIfEditor,
+                                          boolean accessIfPublic)
+      throws IOException {
+    if (projEntity == null) {
+      throw new IOException(
+          "Database error when trying to access this project.");
+    }
 
-    if (!isOwner && !isEditor && !isPublic) {
+    ProjectAcl acl = ProjectAcl.fromEntity(projEntity);
+    cacheProjectAcl(projId, acl);
+
+    if (!acl.canAccess(userEmail, accessIfEditor, accessIfPublic)) {
       throw new IOException(
           "You do not have permission to access this project.");
     }
@@ -123,19 +476,121 @@ public final class DataUtils {
   }
 
   /**
-   * Removes a project and all of its children from the database.
-   * @param     {Key}       projectKey  
+   * Returns the Datastore key of a project ID.
+   * @param     {String}    projId
+   * @return    {Key}
    */
-  public static void deleteProjectAndChildren(Key projectKey) {
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    Query childQuery = new Query(projectKey);
-    List<Entity> children =
-        datastore.prepare(childQuery)
-            .asList(FetchOptions.Builder.withDefaults());
-    for (Entity child : children) {
-      deleteImageAndChildren(child.getKey());
+  public static Key getProjectKey(String projId) throws IOException {
+    try {
+      return KeyFactory.stringToKey(projId);
+    } catch (Exception e) {
+      throw new IOException(
+          "Database error when trying to access this project.");
+    }
+  }
+
+  /**
+   * Waits for an asynchronous batch get to complete.
+   * Keys that were not found are absent from the returned Map.
+   * @param     {Future<Map<Key, Entity>>}  future
+   * @return    {Map<Key, Entity>}
+   */
+  public static Map<Key, Entity> awaitEntities(Future<Map<Key, Entity>> future)
+      throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Database request interrupted.");
+    } catch (ExecutionException e) {
+      throw new IOException("Database error.", e.getCause());
+    }
+  }
+
+  /**
+   * Checks access to a project and returns its key without retrieving the
+   * project Entity when its ACL is cached.
+   * Use getProjectEntity instead when the Entity itself is needed.
+   * @param     {String}        projId          the Datastore key String for
+   *                                            the working project
+   * @param     {String}        userEmail       the User's email
+   * @param     {boolean}       accessIfEditor  whether editors can access
+   * @param     {boolean}       accessIfPublic  whether the project can be
+                                                used for the current action
+                                                given it is public
+   * @return    {Key}
+   */
+  public static Key checkProjectAccess(String projId, String userEmail,
+                                       boolean accessIfEditor,
+                                       boolean accessIfPublic)
+      throws IOException {
+    ProjectAcl acl = getCachedProjectAcl(projId);
+    if (acl == null) {
+      return getProjectEntity(projId, userEmail, accessIfEditor,
+                              accessIfPublic)
+          .getKey();
+    }
+
+    if (acl.deleted) {
+      throw new IOException(
+          "Database error when trying to access this project.");
+    } else if (!acl.canAccess(userEmail, accessIfEditor, accessIfPublic)) {
+      throw new IOException(
+          "You do not have permission to access this project.");
+    }
+
+    return getProjectKey(projId);
+  }
+
+  /**
+   * Stores a project's ACL in the cache unless a newer version is already
+   * cached. Safe against concurrent requests caching older versions.
+   * @param     {String}        projId    the Datastore key String for
+   *                                      the project
+   * @param     {ProjectAcl}    acl
+   * @return    {void}
+   */
+  public static void cacheProjectAcl(String projId, ProjectAcl acl) {
+    MemcacheService aclCache =
+        MemcacheServiceFactory.getMemcacheService(PROJECT_ACL_NAMESPACE);
+    Expiration expiration = Expiration.byDeltaSeconds(PROJECT_ACL_EXPIRATION);
+    try {
+      for (int attempt = 0; attempt < PROJECT_ACL_CAS_ATTEMPTS; attempt++) {
+        IdentifiableValue cached = aclCache.getIdentifiable(projId);
+        if (cached == null) {
+          if (aclCache.put(projId, acl, expiration,
+                           SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            return;
+          }
+        } else if (!acl.isNewerThan((ProjectAcl)cached.getValue()) ||
+                   aclCache.putIfUntouched(projId, cached, acl, expiration)) {
+          return;
+        }
+      }
+      // Persistent contention; let the entry be reloaded on next access
+      aclCache.delete(projId);
+    } catch (RuntimeException e) {
+      // The cache is an optimization; requests still succeed without it
+    }
+  }
+
+  /**
+   * Retrieves a project's cached ACL, or null if not cached.
+   * @param     {String}        projId    the Datastore key String for
+   *                                      the project
+   * @return    {ProjectAcl}
+   */
+  static ProjectAcl getCachedProjectAcl(String projId) {
+    if (isEmptyParameter(projId)) {
+      return null;
+    }
+    try {
+      return (ProjectAcl)MemcacheServiceFactory
+          .getMemcacheService(PROJECT_ACL_NAMESPACE)
+          .get(projId);
+    } catch (RuntimeException e) {
+      return null;
     }
-    datastore.delete(projectKey);
   }
 
   /**
@@ -143,15 +598,63 @@ public final class DataUtils {
    * @param     {Key}       imgKey  
    */
   public static void deleteImageAndChildren(Key imgKey) {
+    deleteWithDescendants(imgKey);
+  }
+
+  /**
+   * Removes an entity and all of its descendants from the database in one
+   * batch, along with the blob index entries of every removed asset.
+   * The owning project's counters are reduced by the removed assets.
+   * @param     {Key}       ancestorKey
+   */
+  private static void deleteWithDescendants(Key ancestorKey) {
     DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    Query childQuery = new Query(imgKey);
+    // Kindless ancestor queries include the ancestor itself
+    Query childQuery = new Query(ancestorKey);
     List<Entity> children =
         datastore.prepare(childQuery)
             .asList(FetchOptions.Builder.withDefaults());
+    LinkedHashSet<Key> deletedKeys = new LinkedHashSet<Key>();
+    deletedKeys.add(ancestorKey);
+    long images = 0;
+    long masks = 0;
+    long bytes = 0;
+    HashMap<String, Long> tagChanges = new HashMap<String, Long>();
     for (Entity child : children) {
-      datastore.delete(child.getKey());
+      deletedKeys.add(child.getKey());
+      ProjectCounters
+          .getTagChanges(child.getKind(),
+                         (List<String>)child.getProperty("tags"), null)
+          .forEach((tag, change) -> tagChanges.merge(tag, change, Long::sum));
+      if (child.getKind().equals(IMAGE)) {
+        images++;
+      } else if (child.getKind().equals(MASK)) {
+        masks++;
+      }
+      Long size = (Long)child.getProperty("size");
+      bytes += (size == null) ? 0 : size;
+      String blobKeyString = (String)child.getProperty("blobkey");
+      if (blobKeyString != null) {
+        deletedKeys.add(BlobUtils.getBlobIndexKey(blobKeyString));
+        deletedKeys.addAll(Renditions.getKeys(blobKeyString));
+      }
+      deletedKeys.addAll(MaskHistory.getKeys(child));
+    }
+    ArrayList<Key> keys = new ArrayList<Key>(deletedKeys);
+    for (int start = 0; start < keys.size(); start += BlobUtils.MAX_BATCH_PUT) {
+      datastore.delete(
+          keys.subList(start, Math.min(start + BlobUtils.MAX_BATCH_PUT,
+                                       keys.size())));
+    }
+
+    // Projects are the root of every asset key
+    Key projKey = ancestorKey;
+    while (projKey.getParent() != null) {
+      projKey = projKey.getParent();
     }
-    datastore.delete(imgKey);
+    ProjectCounters.increment(projKey, -images, -masks, -bytes, null,
+                              tagChanges);
+    ProjectVersions.bump(projKey);
   }
 
   private DataUtils() {}
@@ -0,0 +1,15 @@
+package com.google.sps.servlets;
+
+/**
+ * Holds the progress of a project deletion to return to front end and
+ * allows for easy creation of JSON response.
+ */
+class DeletionInfo {
+  String status;
+  long deleted;
+
+  public DeletionInfo(String status, long deleted) {
+    this.status = status;
+    this.deleted = deleted;
+  }
+}
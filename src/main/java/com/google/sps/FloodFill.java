@@ -0,0 +1,194 @@
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Selects the region of similar colors around a seed pixel, as the
+ * editor's magic wand does. A pixel joins the region if it is next to it,
+ * left, right, above or below, and its color is within a tolerance of one
+ * of the reference colors by Euclidean RGB distance. The seed's color is
+ * the reference, unless scribbled pixels give the references instead.
+ * The fill works a row at a time: each seed is widened to the whole run of
+ * matching pixels in its row, then the rows above and below are searched
+ * for runs touching it. Only one seed per run is queued, on a stack of
+ * primitive pixel indices, and the mask itself records which pixels are
+ * filled.
+ */
+public final class FloodFill {
+  // Most references compared directly; more are looked up by color
+  private static final int MAX_DIRECT_REFERENCES = 8;
+
+  /**
+   * Fills from a seed pixel.
+   * @param     {ImagePixels}   pixels
+   * @param     {int}           seedX
+   * @param     {int}           seedY
+   * @param     {int}           tolerance
+   * @param     {MaskBitmap}    scribbles   pixels whose colors are the
+   *                                        references; null to use the
+   *                                        seed's color
+   * @return    {MaskBitmap}
+   */
+  public static MaskBitmap fill(ImagePixels pixels, int seedX, int seedY,
+                                int tolerance, MaskBitmap scribbles)
+      throws IOException {
+    int width = pixels.getWidth();
+    int height = pixels.getHeight();
+    if (seedX < 0 || seedX >= width || seedY < 0 || seedY >= height) {
+      throw new IOException("Invalid seed.");
+    }
+    if (tolerance < 0) {
+      throw new IOException("Invalid tolerance.");
+    }
+    int seed = seedY * width + seedX;
+
+    int[] references;
+    if (scribbles == null) {
+      references = new int[] {pixels.getRgb(seed)};
+    } else {
+      if (scribbles.getWidth() != width || scribbles.getHeight() != height) {
+        throw new IOException("Mask dimensions do not match.");
+      }
+      references = getColors(pixels, scribbles);
+    }
+    ColorMatcher matcher = new ColorMatcher(references, tolerance);
+
+    MaskBitmap mask = new MaskBitmap(width, height);
+    int[] stack = new int[64];
+    int stackSize = 0;
+    // The seed is always selected
+    stack[stackSize++] = seed;
+    while (stackSize > 0) {
+      int index = stack[--stackSize];
+      if (mask.get(index)) {
+        continue;
+      }
+      int rowStart = index - index % width;
+      int rowEnd = rowStart + width;
+      int left = index;
+      while (left > rowStart && !mask.get(left - 1) &&
+             matcher.matches(pixels.getRgb(left - 1))) {
+        left--;
+      }
+      int right = index + 1;
+      while (right < rowEnd && !mask.get(right) &&
+             matcher.matches(pixels.getRgb(right))) {
+        right++;
+      }
+      mask.setRange(left, right);
+
+      // Queues one seed for each run touching this one above and below
+      for (int neighborStart : new int[] {left - width, left + width}) {
+        if (neighborStart < 0 || neighborStart >= pixels.getRgbCount()) {
+          continue;
+        }
+        boolean inRun = false;
+        for (int i = neighborStart; i < neighborStart + (right - left); i++) {
+          if (!mask.get(i) && matcher.matches(pixels.getRgb(i))) {
+            if (!inRun) {
+              if (stackSize == stack.length) {
+                stack = Arrays.copyOf(stack, stackSize * 2);
+              }
+              stack[stackSize++] = i;
+              inRun = true;
+            }
+          } else {
+            inRun = false;
+          }
+        }
+      }
+    }
+    return mask;
+  }
+
+  /**
+   * Returns the distinct colors of the scribbled pixels.
+   * @param     {ImagePixels}   pixels
+   * @param     {MaskBitmap}    scribbles
+   * @return    {int[]}
+   */
+  private static int[] getColors(ImagePixels pixels, MaskBitmap scribbles)
+      throws IOException {
+    int[] colors = new int[scribbles.cardinality()];
+    if (colors.length == 0) {
+      throw new IOException("Invalid scribbles.");
+    }
+    int count = 0;
+    for (int i = scribbles.nextSetBit(0); i < scribbles.getSize();
+         i = scribbles.nextSetBit(i + 1)) {
+      colors[count++] = pixels.getRgb(i);
+    }
+    Arrays.sort(colors);
+    int distinct = 1;
+    for (int i = 1; i < colors.length; i++) {
+      if (colors[i] != colors[distinct - 1]) {
+        colors[distinct++] = colors[i];
+      }
+    }
+    return Arrays.copyOf(colors, distinct);
+  }
+
+  /**
+   * Tests colors against the references. Neighboring pixels often share
+   * a color, so the last result is kept; with many references, every
+   * color's result is kept, one bit per color.
+   */
+  private static final class ColorMatcher {
+    private final int[] references;
+    private final int squaredTolerance;
+    private final long[] tested;
+    private final long[] matched;
+    private int lastColor = -1;
+    private boolean lastMatched;
+
+    ColorMatcher(int[] references, int tolerance) {
+      this.references = references;
+      this.squaredTolerance = tolerance * tolerance;
+      if (references.length > MAX_DIRECT_REFERENCES) {
+        tested = new long[(1 << 24) / 64];
+        matched = new long[(1 << 24) / 64];
+      } else {
+        tested = null;
+        matched = null;
+      }
+    }
+
+    boolean matches(int color) {
+      if (color == lastColor) {
+        return lastMatched;
+      }
+      lastColor = color;
+      if (tested == null) {
+        lastMatched = isNear(color);
+      } else {
+        long bit = 1L << color;
+        if ((tested[color >>> 6] & bit) == 0) {
+          tested[color >>> 6] |= bit;
+          if (isNear(color)) {
+            matched[color >>> 6] |= bit;
+          }
+        }
+        lastMatched = (matched[color >>> 6] & bit) != 0;
+      }
+      return lastMatched;
+    }
+
+    private boolean isNear(int color) {
+      int red = color >>> 16;
+      int green = (color >>> 8) & 0xFF;
+      int blue = color & 0xFF;
+      for (int reference : references) {
+        int dr = red - (reference >>> 16);
+        int dg = green - ((reference >>> 8) & 0xFF);
+        int db = blue - (reference & 0xFF);
+        if (dr * dr + dg * dg + db * db <= squaredTolerance) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private FloodFill() {}
+}
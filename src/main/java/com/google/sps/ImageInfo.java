@@ -8,15 +8,18 @@ import java.util.ArrayList;
  */
 class ImageInfo {
   String url;
+  String thumbnail;
   String name;
   String type;
   String utc;
   ArrayList<String> tags;
   ArrayList<MaskInfo> masks;
 
-  public ImageInfo(String url, String name, String type, String utc,
-                   ArrayList<String> tags, ArrayList<MaskInfo> masks) {
+  public ImageInfo(String url, String thumbnail, String name, String type,
+                   String utc, ArrayList<String> tags,
+                   ArrayList<MaskInfo> masks) {
     this.url = url;
+    this.thumbnail = thumbnail;
     this.name = name;
     this.type = type;
     this.utc = utc;
@@ -0,0 +1,105 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Holds the pixels of an image as packed 0xRRGGBB ints, row by row, for
+ * tools that read every pixel.
+ * Decoding a large image takes far longer than a fill over it, so decoded
+ * images are kept in memory, least recently used first out, up to
+ * MAX_CACHED_PIXELS. Blobs never change under a blobkey, so neither do
+ * their pixels.
+ */
+public final class ImagePixels {
+  // About 64 MB of pixels, which with ToleranceMap's cache and one image
+  // being decoded and filled fits the F4 instance class
+  public static final long MAX_CACHED_PIXELS = 16000000L;
+
+  private static final PixelCache<ImagePixels> cache =
+      new PixelCache<ImagePixels>(MAX_CACHED_PIXELS);
+
+  private final int width;
+  private final int height;
+  private final int[] rgb;
+
+  /**
+   * @param     {int}       width
+   * @param     {int}       height
+   * @param     {int[]}     rgb       width * height packed colors
+   */
+  public ImagePixels(int width, int height, int[] rgb) {
+    this.width = width;
+    this.height = height;
+    this.rgb = rgb;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Returns the number of pixels.
+   * @return    {int}
+   */
+  public int getRgbCount() {
+    return rgb.length;
+  }
+
+  /**
+   * Returns the packed color of a pixel.
+   * @param     {int}       index     y * width + x
+   * @return    {int}
+   */
+  public int getRgb(int index) {
+    return rgb[index];
+  }
+
+  /**
+   * Returns the pixels of a hosted image, decoding it if not cached.
+   * @param     {String}        blobKeyString
+   * @return    {ImagePixels}
+   */
+  public static ImagePixels get(String blobKeyString) throws IOException {
+    ImagePixels cached = cache.get(blobKeyString);
+    if (cached != null) {
+      return cached;
+    }
+
+    ImagePixels pixels;
+    try (InputStream in =
+             new BlobstoreInputStream(new BlobKey(blobKeyString))) {
+      pixels = read(in);
+    }
+
+    cache.put(blobKeyString, pixels, (long)pixels.width * pixels.height);
+    return pixels;
+  }
+
+  /**
+   * Decodes an image, rejecting images over MaskBitmap.MAX_PIXELS before
+   * their pixels are decoded.
+   * @param     {InputStream}   in
+   * @return    {ImagePixels}
+   */
+  public static ImagePixels read(InputStream in) throws IOException {
+    BufferedImage image = MaskBitmap.readImage(in);
+    if (image == null) {
+      throw new IOException("Invalid image.");
+    }
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+    for (int i = 0; i < rgb.length; i++) {
+      rgb[i] &= 0xFFFFFF;
+    }
+    return new ImagePixels(width, height, rgb);
+  }
+}
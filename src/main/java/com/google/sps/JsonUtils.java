@@ -0,0 +1,93 @@
+package com.google.sps.servlets;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Provides shared JSON serialization for servlet responses.
+ * Gson instances and type adapters are thread-safe, so they are built once
+ * rather than per request, and output is compact rather than pretty-printed.
+ */
+public final class JsonUtils {
+  public static final Gson GSON =
+      new GsonBuilder().disableHtmlEscaping().create();
+  public static final TypeAdapter<ImageInfo> IMAGE_ADAPTER =
+      GSON.getAdapter(ImageInfo.class);
+  public static final TypeAdapter<MaskInfo> MASK_ADAPTER =
+      GSON.getAdapter(MaskInfo.class);
+  public static final TypeAdapter<ProjectInfo> PROJECT_ADAPTER =
+      GSON.getAdapter(ProjectInfo.class);
+
+  /**
+   * Starts streaming a list of results to the response.
+   * A paged list is wrapped in an object with the same shape as PageInfo.
+   * Each result should then be written with one of the type adapters.
+   * @param     {PrintWriter}   out       response writer
+   * @param     {boolean}       isPaged
+   * @return    {JsonWriter}
+   */
+  public static JsonWriter beginResults(PrintWriter out, boolean isPaged)
+      throws IOException {
+    JsonWriter jsonWriter = GSON.newJsonWriter(out);
+    if (isPaged) {
+      jsonWriter.beginObject();
+      jsonWriter.name("results");
+    }
+    jsonWriter.beginArray();
+    return jsonWriter;
+  }
+
+  /**
+   * Finishes streaming a list of results started with beginResults.
+   * The response writer is left open.
+   * @param     {JsonWriter}    jsonWriter
+   * @param     {PrintWriter}   out         response writer
+   * @param     {boolean}       isPaged
+   * @param     {String}        nextCursor  omitted if null
+   * @return    {void}
+   */
+  public static void endResults(JsonWriter jsonWriter, PrintWriter out,
+                                boolean isPaged, String nextCursor)
+      throws IOException {
+    jsonWriter.endArray();
+    if (isPaged) {
+      if (nextCursor != null) {
+        jsonWriter.name("nextCursor").value(nextCursor);
+      }
+      jsonWriter.endObject();
+    }
+    jsonWriter.flush();
+    out.println();
+  }
+
+  /**
+   * Writes a result with only the requested fields, or every field if
+   * fields is null. Null fields are omitted as usual.
+   * @param     {JsonWriter}    jsonWriter
+   * @param     {Object}        result
+   * @param     {Set<String>}   fields
+   * @return    {void}
+   */
+  public static void writeFields(JsonWriter jsonWriter, Object result,
+                                 Set<String> fields) throws IOException {
+    JsonObject tree = GSON.toJsonTree(result).getAsJsonObject();
+    jsonWriter.beginObject();
+    for (Map.Entry<String, JsonElement> field : tree.entrySet()) {
+      if (fields == null || fields.contains(field.getKey())) {
+        jsonWriter.name(field.getKey());
+        GSON.toJson(field.getValue(), jsonWriter);
+      }
+    }
+    jsonWriter.endObject();
+  }
+
+  private JsonUtils() {}
+}
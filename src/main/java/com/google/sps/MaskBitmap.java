@@ -0,0 +1,449 @@
+package com.google.sps.servlets;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Holds a mask as a set of pixel indices, one bit per pixel in 64-bit
+ * words. Pixel index y * width + x is bit index % 64 of word index / 64.
+ * Masks are stored and transferred in a compact encoding: a header byte,
+ * the width and height as varints, then either the lengths of alternating
+ * runs of clear and set pixels as varints, starting with clear, or the raw
+ * words in little-endian byte order, whichever is smaller. Typical masks
+ * are a few large regions, so runs take a few bytes per row crossing.
+ */
+public final class MaskBitmap {
+  // Largest mask accepted, matching the largest image dimensions the
+  // Images service handles
+  public static final long MAX_PIXELS = 4000L * 4000L;
+
+  private static final byte RUNS = 1;
+  private static final byte WORDS = 2;
+  // Alpha of mask pixels as the editor draws and reads them
+  private static final int MASK_ALPHA = 0xFF;
+  private static final int MASK_COLOR = 0xFFFF00FF;
+
+  private final int width;
+  private final int height;
+  private final long[] words;
+
+  /**
+   * Creates an empty mask.
+   * @param     {int}       width
+   * @param     {int}       height
+   */
+  public MaskBitmap(int width, int height) throws IOException {
+    checkDimensions(width, height);
+    this.width = width;
+    this.height = height;
+    this.words = new long[(getSize() + 63) / 64];
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Returns the number of pixels the mask covers, set or not.
+   * @return    {int}
+   */
+  public int getSize() {
+    return width * height;
+  }
+
+  public boolean get(int index) {
+    return (words[index >>> 6] & (1L << index)) != 0;
+  }
+
+  public void set(int index) {
+    words[index >>> 6] |= 1L << index;
+  }
+
+  public void clear(int index) {
+    words[index >>> 6] &= ~(1L << index);
+  }
+
+  /**
+   * Returns the number of set pixels.
+   * @return    {int}
+   */
+  public int cardinality() {
+    int count = 0;
+    for (long word : words) {
+      count += Long.bitCount(word);
+    }
+    return count;
+  }
+
+  /**
+   * Returns the index of the first set pixel at or after an index, or the
+   * mask size if there is none.
+   * @param     {int}       from
+   * @return    {int}
+   */
+  public int nextSetBit(int from) {
+    int size = getSize();
+    if (from >= size) {
+      return size;
+    }
+    int wordIndex = from >>> 6;
+    long word = words[wordIndex] & (-1L << from);
+    while (word == 0) {
+      if (++wordIndex == words.length) {
+        return size;
+      }
+      word = words[wordIndex];
+    }
+    return Math.min(size, wordIndex * 64 + Long.numberOfTrailingZeros(word));
+  }
+
+  /**
+   * Returns the index of the first clear pixel at or after an index, or the
+   * mask size if there is none.
+   * @param     {int}       from
+   * @return    {int}
+   */
+  public int nextClearBit(int from) {
+    int size = getSize();
+    if (from >= size) {
+      return size;
+    }
+    int wordIndex = from >>> 6;
+    long word = ~words[wordIndex] & (-1L << from);
+    while (word == 0) {
+      if (++wordIndex == words.length) {
+        return size;
+      }
+      word = ~words[wordIndex];
+    }
+    return Math.min(size, wordIndex * 64 + Long.numberOfTrailingZeros(word));
+  }
+
+  /**
+   * Returns a mask with the same pixels set.
+   * @return    {MaskBitmap}
+   */
+  public MaskBitmap copy() throws IOException {
+    MaskBitmap copy = new MaskBitmap(width, height);
+    System.arraycopy(words, 0, copy.words, 0, words.length);
+    return copy;
+  }
+
+  /**
+   * Sets every pixel set in another mask of the same dimensions.
+   * @param     {MaskBitmap}    other
+   * @return    {void}
+   */
+  public void or(MaskBitmap other) throws IOException {
+    checkSameDimensions(other);
+    for (int i = 0; i < words.length; i++) {
+      words[i] |= other.words[i];
+    }
+  }
+
+  /**
+   * Clears every pixel set in another mask of the same dimensions.
+   * @param     {MaskBitmap}    other
+   * @return    {void}
+   */
+  public void andNot(MaskBitmap other) throws IOException {
+    checkSameDimensions(other);
+    for (int i = 0; i < words.length; i++) {
+      words[i] &= ~other.words[i];
+    }
+  }
+
+  /**
+   * Clears every pixel not set in another mask of the same dimensions.
+   * @param     {MaskBitmap}    other
+   * @return    {void}
+   */
+  public void and(MaskBitmap other) throws IOException {
+    checkSameDimensions(other);
+    for (int i = 0; i < words.length; i++) {
+      words[i] &= other.words[i];
+    }
+  }
+
+  /**
+   * Flips every pixel set in another mask of the same dimensions.
+   * @param     {MaskBitmap}    other
+   * @return    {void}
+   */
+  public void xor(MaskBitmap other) throws IOException {
+    checkSameDimensions(other);
+    for (int i = 0; i < words.length; i++) {
+      words[i] ^= other.words[i];
+    }
+  }
+
+  /**
+   * Flips every pixel.
+   * @return    {void}
+   */
+  public void invert() {
+    for (int i = 0; i < words.length; i++) {
+      words[i] = ~words[i];
+    }
+    // Bits past the last pixel must stay clear
+    int size = getSize();
+    if (size % 64 != 0) {
+      words[words.length - 1] &= (1L << size) - 1;
+    }
+  }
+
+  /**
+   * Encodes the mask in the compact format.
+   * @return    {byte[]}
+   */
+  public byte[] encode() {
+    ByteArrayOutputStream runs = new ByteArrayOutputStream();
+    writeHeader(runs, RUNS);
+    int size = getSize();
+    int wordBytes = (size + 7) / 8;
+    int headerBytes = runs.size();
+    boolean isSet = false;
+    for (int start = 0; start < size;) {
+      int end = (isSet) ? nextClearBit(start) : nextSetBit(start);
+      writeVarint(runs, end - start);
+      // Scattered pixels are smaller as raw words
+      if (runs.size() - headerBytes > wordBytes) {
+        return encodeWords();
+      }
+      start = end;
+      isSet = !isSet;
+    }
+    return runs.toByteArray();
+  }
+
+  /**
+   * Decodes a mask in the compact format.
+   * @param     {byte[]}        encoded
+   * @return    {MaskBitmap}
+   */
+  public static MaskBitmap decode(byte[] encoded) throws IOException {
+    int[] position = {1};
+    if (encoded.length == 0) {
+      throw new IOException("Invalid mask data.");
+    }
+    int width = readVarint(encoded, position);
+    int height = readVarint(encoded, position);
+    MaskBitmap mask = new MaskBitmap(width, height);
+    int size = mask.getSize();
+
+    if (encoded[0] == RUNS) {
+      boolean isSet = false;
+      int start = 0;
+      while (position[0] < encoded.length) {
+        int length = readVarint(encoded, position);
+        if (length > size - start) {
+          throw new IOException("Invalid mask data.");
+        }
+        if (isSet) {
+          mask.setRange(start, start + length);
+        }
+        start += length;
+        isSet = !isSet;
+      }
+      if (start != size) {
+        throw new IOException("Invalid mask data.");
+      }
+    } else if (encoded[0] == WORDS) {
+      if (encoded.length - position[0] != (size + 7) / 8) {
+        throw new IOException("Invalid mask data.");
+      }
+      for (int i = position[0]; i < encoded.length; i++) {
+        int byteIndex = i - position[0];
+        mask.words[byteIndex >>> 3] |=
+            (encoded[i] & 0xFFL) << ((byteIndex & 7) * 8);
+      }
+      // Bits past the last pixel must not be counted as set
+      if (size % 64 != 0) {
+        mask.words[mask.words.length - 1] &= (1L << size) - 1;
+      }
+    } else {
+      throw new IOException("Invalid mask data.");
+    }
+    return mask;
+  }
+
+  /**
+   * Reads a mask from a PNG, where fully opaque pixels are set.
+   * @param     {InputStream}   png
+   * @return    {MaskBitmap}
+   */
+  public static MaskBitmap fromPng(InputStream png) throws IOException {
+    BufferedImage image = readImage(png);
+    if (image == null) {
+      throw new IOException("Invalid PNG.");
+    }
+    MaskBitmap mask = new MaskBitmap(image.getWidth(), image.getHeight());
+    int[] row = new int[mask.width];
+    for (int y = 0; y < mask.height; y++) {
+      image.getRGB(0, y, mask.width, 1, row, 0, mask.width);
+      for (int x = 0; x < mask.width; x++) {
+        if (row[x] >>> 24 == MASK_ALPHA) {
+          mask.set(y * mask.width + x);
+        }
+      }
+    }
+    return mask;
+  }
+
+  /**
+   * Decodes an image, checking its dimensions against MAX_PIXELS from its
+   * header before any pixels are decoded, so a small file declaring huge
+   * dimensions cannot exhaust memory.
+   * @param     {InputStream}   in
+   * @return    {BufferedImage}     null if the format is not recognized
+   */
+  static BufferedImage readImage(InputStream in) throws IOException {
+    try (ImageInputStream stream = ImageIO.createImageInputStream(in)) {
+      if (stream == null) {
+        return null;
+      }
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+      if (!readers.hasNext()) {
+        return null;
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(stream, true, true);
+        if ((long)reader.getWidth(0) * reader.getHeight(0) > MAX_PIXELS) {
+          throw new IOException("Image is too large.");
+        }
+        return reader.read(0);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * Writes the mask as a PNG the editor can load, with set pixels in opaque
+   * magenta and the rest transparent.
+   * @param     {OutputStream}  png
+   * @return    {void}
+   */
+  public void writePng(OutputStream png) throws IOException {
+    BufferedImage image =
+        new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    int[] row = new int[width];
+    for (int y = 0; y < height; y++) {
+      int rowStart = y * width;
+      for (int x = 0; x < width; x++) {
+        row[x] = get(rowStart + x) ? MASK_COLOR : 0;
+      }
+      image.setRGB(0, y, width, 1, row, 0, width);
+    }
+    ImageIO.write(image, "png", png);
+  }
+
+  /**
+   * Sets every pixel in [start, end).
+   * @param     {int}       start
+   * @param     {int}       end
+   * @return    {void}
+   */
+  void setRange(int start, int end) {
+    if (start >= end) {
+      return;
+    }
+    int startWord = start >>> 6;
+    int endWord = (end - 1) >>> 6;
+    long firstMask = -1L << start;
+    long lastMask = -1L >>> -end;
+    if (startWord == endWord) {
+      words[startWord] |= firstMask & lastMask;
+      return;
+    }
+    words[startWord] |= firstMask;
+    for (int i = startWord + 1; i < endWord; i++) {
+      words[i] = -1L;
+    }
+    words[endWord] |= lastMask;
+  }
+
+  /**
+   * Encodes the mask as raw words.
+   * @return    {byte[]}
+   */
+  private byte[] encodeWords() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeHeader(out, WORDS);
+    int wordBytes = (getSize() + 7) / 8;
+    for (int i = 0; i < wordBytes; i++) {
+      out.write((int)(words[i >>> 3] >>> ((i & 7) * 8)));
+    }
+    return out.toByteArray();
+  }
+
+  private void writeHeader(ByteArrayOutputStream out, byte format) {
+    out.write(format);
+    writeVarint(out, width);
+    writeVarint(out, height);
+  }
+
+  /**
+   * Checks that mask dimensions are positive and within MAX_PIXELS.
+   * @param     {int}       width
+   * @param     {int}       height
+   * @return    {void}
+   */
+  private static void checkDimensions(int width, int height)
+      throws IOException {
+    if (width <= 0 || height <= 0 || (long)width * height > MAX_PIXELS) {
+      throw new IOException("Invalid mask dimensions.");
+    }
+  }
+
+  private void checkSameDimensions(MaskBitmap other) throws IOException {
+    if (other.width != width || other.height != height) {
+      throw new IOException("Mask dimensions do not match.");
+    }
+  }
+
+  static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /**
+   * Reads an unsigned varint, advancing the position.
+   * @param     {byte[]}    bytes
+   * @param     {int[]}     position    single-element holder
+   * @return    {int}
+   */
+  static int readVarint(byte[] bytes, int[] position)
+      throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      if (position[0] >= bytes.length) {
+        throw new IOException("Invalid mask data.");
+      }
+      byte b = bytes[position[0]++];
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (value < 0) {
+          throw new IOException("Invalid mask data.");
+        }
+        return value;
+      }
+    }
+    throw new IOException("Invalid mask data.");
+  }
+}
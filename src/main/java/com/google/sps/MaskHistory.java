@@ -0,0 +1,275 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps every version of a mask's compact data.
+ * Each version is a MaskVersion entity holding a MaskPatch against the
+ * version before it, or a snapshot referring to the mask's data in
+ * MaskStore as stored when the version was saved, so that data is kept
+ * when the mask moves on and removed only with the history. A
+ * snapshot is taken at least every SNAPSHOT_INTERVAL versions, and whenever
+ * a patch would not be much smaller, so any version is rebuilt from one
+ * batch get and a bounded number of patches, and storage grows with the
+ * size of edits.
+ * Versions are keyed by the mask's history ID rather than its key, so they
+ * stay with a mask when it is renamed.
+ */
+public final class MaskHistory {
+  public static final String MASK_VERSION = "MaskVersion";
+  // Versions from one snapshot to the next at most, so rebuilding a version
+  // applies fewer patches than this
+  public static final int SNAPSHOT_INTERVAL = 16;
+
+  /**
+   * Records the data a mask is about to take as its next version, and sets
+   * the mask's history, version and snapshot properties.
+   * Returns the version's entity, to be put with the mask.
+   * @param     {Key}           projKey
+   * @param     {Entity}        maskEntity
+   * @param     {MaskBitmap}    previous    the mask's current data; null
+   *                                        if it has no compact data
+   * @param     {MaskBitmap}    current
+   * @param     {byte[]}        encoded     current, encoded
+   * @param     {String}        maskDataId  where encoded is stored
+   * @param     {String}        utc
+   * @return    {Entity}
+   */
+  public static Entity addVersion(Key projKey, Entity maskEntity,
+                                  MaskBitmap previous, MaskBitmap current,
+                                  byte[] encoded, String maskDataId,
+                                  String utc)
+      throws IOException {
+    String history = (String)maskEntity.getProperty("history");
+    long version = 0;
+    long snapshot = 0;
+    if (history == null) {
+      history = UUID.randomUUID().toString().replace("-", "");
+    } else {
+      version = (Long)maskEntity.getProperty("version") + 1;
+      snapshot = (Long)maskEntity.getProperty("snapshot");
+    }
+
+    Entity versionEntity = new Entity(getVersionKey(history, version));
+    versionEntity.setUnindexedProperty("history", history);
+    // Indexed so a project's versions can be found when it is deleted
+    versionEntity.setIndexedProperty("project", projKey);
+    versionEntity.setUnindexedProperty("version", version);
+    versionEntity.setUnindexedProperty("utc", utc);
+
+    byte[] patch = null;
+    // The first version, and any resized mask, has nothing to patch
+    if (previous != null && version > 0 &&
+        version - snapshot < SNAPSHOT_INTERVAL &&
+        previous.getWidth() == current.getWidth() &&
+        previous.getHeight() == current.getHeight()) {
+      patch = MaskPatch.diff(previous, current);
+      if (patch.length > Math.min(encoded.length / 2, MaskStore.CHUNK_BYTES)) {
+        patch = null;
+      }
+    }
+    if (patch != null) {
+      versionEntity.setUnindexedProperty("patch", new Blob(patch));
+      versionEntity.setUnindexedProperty("size", (long)patch.length);
+    } else {
+      snapshot = version;
+      versionEntity.setUnindexedProperty("maskdata", maskDataId);
+      versionEntity.setUnindexedProperty("size", (long)encoded.length);
+    }
+    versionEntity.setUnindexedProperty("snapshot", snapshot);
+
+    maskEntity.setUnindexedProperty("history", history);
+    maskEntity.setUnindexedProperty("version", version);
+    maskEntity.setUnindexedProperty("snapshot", snapshot);
+    return versionEntity;
+  }
+
+  /**
+   * Determines if a mask has a version.
+   * @param     {Entity}        maskEntity
+   * @param     {long}          version
+   * @return    {boolean}
+   */
+  public static boolean hasVersion(Entity maskEntity, long version) {
+    return maskEntity.hasProperty("history") && version >= 0 &&
+        version <= (Long)maskEntity.getProperty("version");
+  }
+
+  /**
+   * Rebuilds one version of a mask.
+   * @param     {Entity}        maskEntity
+   * @param     {long}          version
+   * @return    {MaskBitmap}
+   */
+  public static MaskBitmap getVersion(Entity maskEntity, long version)
+      throws IOException {
+    if (!hasVersion(maskEntity, version)) {
+      throw new IOException("Version not found.");
+    }
+    String history = (String)maskEntity.getProperty("history");
+
+    // The version's snapshot is within the interval before it
+    ArrayList<Key> keys = new ArrayList<Key>();
+    for (long v = Math.max(0, version - SNAPSHOT_INTERVAL + 1); v <= version;
+         v++) {
+      keys.add(getVersionKey(history, v));
+    }
+    Map<Key, Entity> versions =
+        DatastoreServiceFactory.getDatastoreService().get(keys);
+    Entity target = versions.get(getVersionKey(history, version));
+    if (target == null) {
+      throw new IOException("Version not found.");
+    }
+    long snapshot = (Long)target.getProperty("snapshot");
+    Entity snapshotEntity = versions.get(getVersionKey(history, snapshot));
+    if (snapshotEntity == null) {
+      throw new IOException("Version not found.");
+    }
+    MaskBitmap mask = MaskBitmap.decode(
+        MaskStore.get((String)snapshotEntity.getProperty("maskdata")).encoded);
+    for (long v = snapshot + 1; v <= version; v++) {
+      Entity patch = versions.get(getVersionKey(history, v));
+      if (patch == null) {
+        throw new IOException("Version not found.");
+      }
+      MaskPatch.apply(mask, ((Blob)patch.getProperty("patch")).getBytes());
+    }
+    return mask;
+  }
+
+  /**
+   * Lists a mask's versions, newest first.
+   * @param     {Entity}                    maskEntity
+   * @return    {List<MaskVersionInfo>}
+   */
+  public static List<MaskVersionInfo> getVersions(Entity maskEntity) {
+    ArrayList<MaskVersionInfo> versions = new ArrayList<MaskVersionInfo>();
+    String history = (String)maskEntity.getProperty("history");
+    if (history == null) {
+      return versions;
+    }
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    long head = (Long)maskEntity.getProperty("version");
+    for (long start = head; start >= 0; start -= BlobUtils.MAX_BATCH_PUT) {
+      ArrayList<Key> keys = new ArrayList<Key>();
+      for (long v = start; v >= 0 && v > start - BlobUtils.MAX_BATCH_PUT;
+           v--) {
+        keys.add(getVersionKey(history, v));
+      }
+      Map<Key, Entity> entities = datastore.get(keys);
+      for (Key key : keys) {
+        Entity versionEntity = entities.get(key);
+        if (versionEntity != null) {
+          versions.add(toMaskVersionInfo(versionEntity));
+        }
+      }
+    }
+    return versions;
+  }
+
+  /**
+   * Returns the keys of a mask's current data that can be removed when the
+   * mask moves on to other data. Data a snapshot refers to is kept for the
+   * history.
+   * @param     {Entity}        maskEntity  as it was before moving on
+   * @return    {List<Key>}
+   */
+  public static List<Key> getSupersededKeys(Entity maskEntity) {
+    String maskDataId = (String)maskEntity.getProperty("maskdata");
+    if (maskDataId == null) {
+      return Collections.emptyList();
+    }
+    String history = (String)maskEntity.getProperty("history");
+    if (history != null) {
+      // Versions never change once stored, so this need not be transactional
+      DatastoreService datastore =
+          DatastoreServiceFactory.getDatastoreService();
+      try {
+        Entity versionEntity = datastore.get(
+            getVersionKey(history, (Long)maskEntity.getProperty("version")));
+        if (maskDataId.equals(versionEntity.getProperty("maskdata"))) {
+          return Collections.emptyList();
+        }
+      } catch (EntityNotFoundException e) {
+        // Nothing refers to the data
+      }
+    }
+    return MaskStore.getKeys(maskDataId);
+  }
+
+  /**
+   * Returns the keys of every entity a mask's current data and history are
+   * stored in, so they can be removed with the mask.
+   * Versions are numbered from 0 to the mask's version, so their keys are
+   * built and read by key rather than found by an eventually consistent
+   * query, which could miss versions written just before.
+   * @param     {Entity}        maskEntity
+   * @return    {List<Key>}
+   */
+  public static List<Key> getKeys(Entity maskEntity) {
+    // Snapshots share their data with the mask
+    LinkedHashSet<Key> keys = new LinkedHashSet<Key>();
+    String maskDataId = (String)maskEntity.getProperty("maskdata");
+    if (maskDataId != null) {
+      keys.addAll(MaskStore.getKeys(maskDataId));
+    }
+    String history = (String)maskEntity.getProperty("history");
+    if (history == null) {
+      return new ArrayList<Key>(keys);
+    }
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    long head = (Long)maskEntity.getProperty("version");
+    for (long start = 0; start <= head; start += BlobUtils.MAX_BATCH_PUT) {
+      ArrayList<Key> versionKeys = new ArrayList<Key>();
+      for (long v = start; v <= head && v < start + BlobUtils.MAX_BATCH_PUT;
+           v++) {
+        versionKeys.add(getVersionKey(history, v));
+      }
+      keys.addAll(versionKeys);
+      for (Entity versionEntity : datastore.get(versionKeys).values()) {
+        keys.addAll(getDataKeys(versionEntity));
+      }
+    }
+    return new ArrayList<Key>(keys);
+  }
+
+  /**
+   * Returns the keys of the data a snapshot refers to, if any.
+   * @param     {Entity}        versionEntity
+   * @return    {List<Key>}
+   */
+  private static List<Key> getDataKeys(Entity versionEntity) {
+    String maskDataId = (String)versionEntity.getProperty("maskdata");
+    if (maskDataId == null) {
+      return Collections.emptyList();
+    }
+    return MaskStore.getKeys(maskDataId);
+  }
+
+  private static MaskVersionInfo toMaskVersionInfo(Entity versionEntity) {
+    return new MaskVersionInfo(
+        (Long)versionEntity.getProperty("version"),
+        (String)versionEntity.getProperty("utc"),
+        (Long)versionEntity.getProperty("size"),
+        versionEntity.hasProperty("maskdata"));
+  }
+
+  private static Key getVersionKey(String history, long version) {
+    return KeyFactory.createKey(MASK_VERSION, history + "-" + version);
+  }
+
+  private MaskHistory() {}
+}
@@ -0,0 +1,71 @@
+package com.google.sps.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Encodes and applies patches of pixels added to and removed from a mask.
+ * A patch is the length of the added pixels' encoding as a varint, then the
+ * added pixels, then the removed pixels, each as a mask of the patched
+ * mask's dimensions in the MaskBitmap encoding. Edits are runs of a few
+ * pixels in otherwise clear masks, so patches cost bytes in proportion to
+ * the edit rather than the mask.
+ */
+public final class MaskPatch {
+
+  /**
+   * Encodes a patch.
+   * @param     {MaskBitmap}    added
+   * @param     {MaskBitmap}    removed
+   * @return    {byte[]}
+   */
+  public static byte[] encode(MaskBitmap added, MaskBitmap removed) {
+    byte[] addedEncoded = added.encode();
+    byte[] removedEncoded = removed.encode();
+    ByteArrayOutputStream patch = new ByteArrayOutputStream();
+    MaskBitmap.writeVarint(patch, addedEncoded.length);
+    patch.write(addedEncoded, 0, addedEncoded.length);
+    patch.write(removedEncoded, 0, removedEncoded.length);
+    return patch.toByteArray();
+  }
+
+  /**
+   * Encodes the patch that changes one mask into another of the same
+   * dimensions.
+   * @param     {MaskBitmap}    from
+   * @param     {MaskBitmap}    to
+   * @return    {byte[]}
+   */
+  public static byte[] diff(MaskBitmap from, MaskBitmap to)
+      throws IOException {
+    MaskBitmap added = to.copy();
+    added.andNot(from);
+    MaskBitmap removed = from.copy();
+    removed.andNot(to);
+    return encode(added, removed);
+  }
+
+  /**
+   * Applies a patch to a mask, adding pixels before removing them.
+   * @param     {MaskBitmap}    mask
+   * @param     {byte[]}        patch
+   * @return    {void}
+   */
+  public static void apply(MaskBitmap mask, byte[] patch) throws IOException {
+    int[] position = {0};
+    int addedLength = MaskBitmap.readVarint(patch, position);
+    if (addedLength > patch.length - position[0]) {
+      throw new IOException("Invalid mask data.");
+    }
+    int addedEnd = position[0] + addedLength;
+    MaskBitmap added =
+        MaskBitmap.decode(Arrays.copyOfRange(patch, position[0], addedEnd));
+    MaskBitmap removed =
+        MaskBitmap.decode(Arrays.copyOfRange(patch, addedEnd, patch.length));
+    mask.or(added);
+    mask.andNot(removed);
+  }
+
+  private MaskPatch() {}
+}
@@ -0,0 +1,139 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Stores masks in the compact MaskBitmap encoding.
+ * Each stored mask has an ID and never changes, like a blob under its
+ * blobkey; a Mask entity refers to its current data by the maskdata
+ * property. Data is split over up to MAX_CHUNKS entities to stay within
+ * the entity size limit, and is cached in Memcache once read.
+ */
+public final class MaskStore {
+  public static final String MASK_DATA = "MaskData";
+  public static final int MAX_CHUNKS = 4;
+  // Leaves room for the rest of the entity under the 1 MiB entity limit
+  public static final int CHUNK_BYTES = 1000000;
+  public static final int MAX_BYTES = MAX_CHUNKS * CHUNK_BYTES;
+
+  private static final String CACHE_NAMESPACE = "mask-data";
+
+  /**
+   * Stores encoded mask data for a project.
+   * Returns the ID of the stored data.
+   * @param     {Key}       projKey
+   * @param     {byte[]}    encoded
+   * @return    {String}
+   */
+  public static String put(Key projKey, byte[] encoded) throws IOException {
+    if (encoded.length > MAX_BYTES) {
+      throw new IOException("Mask is too large.");
+    }
+    String id = UUID.randomUUID().toString().replace("-", "");
+    ArrayList<Entity> chunks = new ArrayList<Entity>();
+    for (int i = 0; i == 0 || i * CHUNK_BYTES < encoded.length; i++) {
+      Entity chunk = new Entity(getChunkKey(id, i));
+      int end = Math.min(encoded.length, (i + 1) * CHUNK_BYTES);
+      chunk.setUnindexedProperty(
+          "data", new Blob(Arrays.copyOfRange(encoded, i * CHUNK_BYTES, end)));
+      // Indexed so a project's data can be found when it is deleted
+      chunk.setIndexedProperty("project", projKey);
+      chunks.add(chunk);
+    }
+    chunks.get(0).setUnindexedProperty("chunks", (long)chunks.size());
+    DatastoreServiceFactory.getDatastoreService().put(chunks);
+    return id;
+  }
+
+  /**
+   * Reads stored mask data with one batch get, or from the cache.
+   * @param     {String}            id
+   * @return    {StoredMaskData}
+   */
+  public static StoredMaskData get(String id) throws IOException {
+    MemcacheService cache =
+        MemcacheServiceFactory.getMemcacheService(CACHE_NAMESPACE);
+    StoredMaskData cached = null;
+    try {
+      cached = (StoredMaskData)cache.get(id);
+    } catch (RuntimeException e) {
+      // The cache is an optimization; fall back to Datastore
+    }
+    if (cached != null) {
+      return cached;
+    }
+
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    List<Key> keys = getKeys(id);
+    Map<Key, Entity> chunks = datastore.get(keys);
+    Entity first = chunks.get(keys.get(0));
+    if (first == null) {
+      throw new IOException("Mask not found.");
+    }
+    long chunkCount = (Long)first.getProperty("chunks");
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    for (int i = 0; i < chunkCount; i++) {
+      Entity chunk = chunks.get(keys.get(i));
+      if (chunk == null) {
+        throw new IOException("Mask not found.");
+      }
+      encoded.write(((Blob)chunk.getProperty("data")).getBytes());
+    }
+    StoredMaskData stored = new StoredMaskData(
+        (Key)first.getProperty("project"), encoded.toByteArray());
+
+    if (stored.encoded.length <= CHUNK_BYTES) {
+      try {
+        cache.put(id, stored);
+      } catch (RuntimeException e) {
+        // Read from Datastore next time
+      }
+    }
+    return stored;
+  }
+
+  /**
+   * Returns the keys of every entity stored data may use, so it can be
+   * removed without reading it first.
+   * @param     {String}        id
+   * @return    {List<Key>}
+   */
+  public static List<Key> getKeys(String id) {
+    ArrayList<Key> keys = new ArrayList<Key>();
+    for (int i = 0; i < MAX_CHUNKS; i++) {
+      keys.add(getChunkKey(id, i));
+    }
+    return keys;
+  }
+
+  /**
+   * Returns the URL stored data is hosted at, as a PNG or in the compact
+   * encoding.
+   * @param     {String}    id
+   * @param     {boolean}   asPng
+   * @return    {String}
+   */
+  public static String getUrl(String id, boolean asPng) {
+    return "/mask-data?id=" + id + ((asPng) ? "&format=png" : "");
+  }
+
+  private static Key getChunkKey(String id, int index) {
+    return KeyFactory.createKey(MASK_DATA, id + "-" + index);
+  }
+
+  private MaskStore() {}
+}
@@ -0,0 +1,20 @@
+package com.google.sps.servlets;
+
+/**
+ * Holds the number, time and stored size of one version of a mask, and
+ * whether it is stored whole or as a patch, for JSON responses.
+ */
+class MaskVersionInfo {
+  long version;
+  String utc;
+  long size;
+  boolean snapshot;
+
+  public MaskVersionInfo(long version, String utc, long size,
+                         boolean snapshot) {
+    this.version = version;
+    this.utc = utc;
+    this.size = size;
+    this.snapshot = snapshot;
+  }
+}
@@ -0,0 +1,16 @@
+package com.google.sps.servlets;
+
+/**
+ * Holds the progress of one migration batch to return to front end and
+ * allows for easy creation of JSON response.
+ * nextCursor is null once the migration is complete.
+ */
+class MigrationInfo {
+  int migrated;
+  String nextCursor;
+
+  public MigrationInfo(int migrated, String nextCursor) {
+    this.migrated = migrated;
+    this.nextCursor = nextCursor;
+  }
+}
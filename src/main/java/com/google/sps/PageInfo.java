@@ -0,0 +1,18 @@
+package com.google.sps.servlets;
+
+import java.util.ArrayList;
+
+/**
+ * Holds one page of results and the cursor for the following page to return
+ * to front end and allows for easy creation of JSON response.
+ * nextCursor is null when there are no more results.
+ */
+class PageInfo<T> {
+  ArrayList<T> results;
+  String nextCursor;
+
+  public PageInfo(ArrayList<T> results, String nextCursor) {
+    this.results = results;
+    this.nextCursor = nextCursor;
+  }
+}
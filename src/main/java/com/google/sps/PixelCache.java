@@ -0,0 +1,65 @@
+package com.google.sps.servlets;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps per-image data in memory, least recently used first out, up to a
+ * total number of pixels. Values must never change under their key.
+ * @param <V> type of cached values
+ */
+public final class PixelCache<V> {
+  private final long maxPixels;
+  private final LinkedHashMap<String, Entry<V>> entries =
+      new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+  private long cachedPixels = 0;
+
+  /**
+   * @param     {long}      maxPixels
+   */
+  public PixelCache(long maxPixels) {
+    this.maxPixels = maxPixels;
+  }
+
+  /**
+   * Returns a cached value, or null if there is none.
+   * @param     {String}    key
+   * @return    {V}
+   */
+  public synchronized V get(String key) {
+    Entry<V> entry = entries.get(key);
+    return (entry == null) ? null : entry.value;
+  }
+
+  /**
+   * Caches a value covering a number of pixels, evicting the least
+   * recently used values over the limit. Values over the limit alone are
+   * not cached.
+   * @param     {String}    key
+   * @param     {V}         value
+   * @param     {long}      pixels
+   * @return    {void}
+   */
+  public synchronized void put(String key, V value, long pixels) {
+    if (pixels > maxPixels) {
+      return;
+    }
+    Entry<V> replaced = entries.put(key, new Entry<V>(value, pixels));
+    cachedPixels += pixels - ((replaced == null) ? 0 : replaced.pixels);
+    Iterator<Entry<V>> oldest = entries.values().iterator();
+    while (cachedPixels > maxPixels) {
+      cachedPixels -= oldest.next().pixels;
+      oldest.remove();
+    }
+  }
+
+  private static final class Entry<V> {
+    final V value;
+    final long pixels;
+
+    Entry(V value, long pixels) {
+      this.value = value;
+      this.pixels = pixels;
+    }
+  }
+}
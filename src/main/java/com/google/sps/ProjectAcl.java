@@ -0,0 +1,89 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Entity;
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * Holds the access control fields of a project for caching.
+ * The project's last-modified time serves as the version; a deleted project
+ * is recorded as a tombstone that grants no access.
+ */
+class ProjectAcl implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  HashSet<String> owners;
+  HashSet<String> editors;
+  String visibility;
+  String utc;
+  boolean deleted;
+
+  public ProjectAcl(Collection<String> owners, Collection<String> editors,
+                    String visibility, String utc, boolean deleted) {
+    this.owners = (owners == null) ? new HashSet<String>()
+                                   : new HashSet<String>(owners);
+    this.editors = (editors == null) ? new HashSet<String>()
+                                     : new HashSet<String>(editors);
+    this.visibility = visibility;
+    this.utc = utc;
+    this.deleted = deleted;
+  }
+
+  /**
+   * Creates the ACL of a stored project Entity.
+   * @param     {Entity}        projEntity
+   * @return    {ProjectAcl}
+   */
+  public static ProjectAcl fromEntity(Entity projEntity) {
+    boolean deleted = Boolean.TRUE.equals(projEntity.getProperty("deleted"));
+    return new ProjectAcl((Collection<String>)projEntity.getProperty("owners"),
+                          (Collection<String>)projEntity.getProperty("editors"),
+                          (String)projEntity.getProperty("visibility"),
+                          (String)projEntity.getProperty("utc"), deleted);
+  }
+
+  /**
+   * Creates a tombstone for a project deleted at the given time.
+   * @param     {String}        utc
+   * @return    {ProjectAcl}
+   */
+  public static ProjectAcl tombstone(String utc) {
+    return new ProjectAcl(null, null, null, utc, true);
+  }
+
+  /**
+   * Determines if the user can access the project.
+   * @param     {String}    userEmail
+   * @param     {boolean}   accessIfEditor  whether editors can access
+   * @param     {boolean}   accessIfPublic  whether the project can be used
+   *                                        given it is public
+   * @return    {boolean}
+   */
+  public boolean canAccess(String userEmail, boolean accessIfEditor,
+                           boolean accessIfPublic) {
+    if (deleted) {
+      return false;
+    }
+    boolean isOwner = owners.contains(userEmail);
+    boolean isEditor = accessIfEditor && editors.contains(userEmail);
+    boolean isPublic = accessIfPublic && DataUtils.PUBLIC.equals(visibility);
+    return isOwner || isEditor || isPublic;
+  }
+
+  /**
+   * Determines if this ACL is a later version than the other.
+   * Projects without a last-modified time are the earliest version.
+   * @param     {ProjectAcl}    other
+   * @return    {boolean}
+   */
+  public boolean isNewerThan(ProjectAcl other) {
+    if (utc == null) {
+      return false;
+    } else if (other.utc == null) {
+      return true;
+    }
+    return Instant.parse(utc).isAfter(Instant.parse(other.utc));
+  }
+}
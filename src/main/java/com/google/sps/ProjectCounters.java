@@ -0,0 +1,452 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.gson.reflect.TypeToken;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Maintains per-project summary counters: image count, mask count, total
+ * blob bytes and last upload time, as well as the number of images and
+ * masks carrying each tag.
+ * Each project's counters are split across root entity shards outside the
+ * project's entity group, so concurrent uploads update different entities
+ * and never contend with writes to the project or its assets. Shard keys
+ * are derived from the project key, so summaries are read with gets.
+ * Changes are made after the assets they count are stored, so a change that
+ * cannot be applied because every shard is contended is handed to a task
+ * instead of failing a request whose write has already succeeded.
+ */
+public final class ProjectCounters {
+  public static final String PROJECT_COUNTER = "ProjectCounter";
+  public static final String TASK_URL = "/tasks/increment-project-counters";
+  public static final int SHARD_COUNT = 8;
+  public static final int RECOUNT_BATCH_SIZE = 20;
+
+  private static final int TRANSACTION_ATTEMPTS = SHARD_COUNT;
+  // Tag counts are stored as one property per asset kind and tag
+  private static final String TAG_PROPERTY_PREFIX = "tag:";
+
+  /**
+   * Returns the key of one of a project's counter shards.
+   * @param     {Key}       projKey
+   * @param     {int}       shard       from 0 to SHARD_COUNT - 1
+   * @return    {Key}
+   */
+  public static Key getShardKey(Key projKey, int shard) {
+    return KeyFactory.createKey(PROJECT_COUNTER,
+                                KeyFactory.keyToString(projKey) + "-" + shard);
+  }
+
+  /**
+   * Returns the keys of every counter shard of a project.
+   * @param     {Key}       projKey
+   * @return    {List<Key>}
+   */
+  public static List<Key> getShardKeys(Key projKey) {
+    ArrayList<Key> shardKeys = new ArrayList<Key>();
+    for (int shard = 0; shard < SHARD_COUNT; shard++) {
+      shardKeys.add(getShardKey(projKey, shard));
+    }
+    return shardKeys;
+  }
+
+  /**
+   * Adds to a project's counters without changing tag counts.
+   * @param     {Key}       projKey
+   * @param     {long}      images      change in image count
+   * @param     {long}      masks       change in mask count
+   * @param     {long}      bytes       change in total blob bytes
+   * @param     {String}    lastUpload  upload time; null if nothing uploaded
+   * @return    {void}
+   */
+  public static void increment(Key projKey, long images, long masks,
+                               long bytes, String lastUpload) {
+    increment(projKey, images, masks, bytes, lastUpload,
+              new HashMap<String, Long>());
+  }
+
+  /**
+   * Adds to a project's counters, scheduling a task to add them later if
+   * every shard is contended.
+   * @param     {Key}               projKey
+   * @param     {long}              images      change in image count
+   * @param     {long}              masks       change in mask count
+   * @param     {long}              bytes       change in total blob bytes
+   * @param     {String}            lastUpload  upload time; null if nothing
+   *                                            uploaded
+   * @param     {Map<String, Long>} tagChanges  from getTagChanges
+   * @return    {void}
+   */
+  public static void increment(Key projKey, long images, long masks,
+                               long bytes, String lastUpload,
+                               Map<String, Long> tagChanges) {
+    if (!tryIncrement(projKey, images, masks, bytes, lastUpload,
+                      tagChanges)) {
+      TaskOptions task = TaskOptions.Builder.withUrl(TASK_URL)
+          .param("proj-id", KeyFactory.keyToString(projKey))
+          .param("images", Long.toString(images))
+          .param("masks", Long.toString(masks))
+          .param("bytes", Long.toString(bytes))
+          .param("tag-changes", JsonUtils.GSON.toJson(tagChanges));
+      if (lastUpload != null) {
+        task.param("last-upload", lastUpload);
+      }
+      QueueFactory.getDefaultQueue().add(task);
+    }
+  }
+
+  /**
+   * Adds to a project's counters from a task scheduled by increment.
+   * Fails if every shard is still contended, so the task queue retries it.
+   * @param     {Key}       projKey
+   * @param     {long}      images      change in image count
+   * @param     {long}      masks       change in mask count
+   * @param     {long}      bytes       change in total blob bytes
+   * @param     {String}    lastUpload  upload time; may be null
+   * @param     {String}    tagChanges  JSON object of tag count changes
+   * @return    {void}
+   */
+  public static void applyTask(Key projKey, long images, long masks,
+                               long bytes, String lastUpload,
+                               String tagChanges) throws IOException {
+    Map<String, Long> changes = JsonUtils.GSON.fromJson(
+        tagChanges, new TypeToken<HashMap<String, Long>>() {}.getType());
+    if (changes == null) {
+      changes = new HashMap<String, Long>();
+    }
+    if (!tryIncrement(projKey, images, masks, bytes, lastUpload, changes)) {
+      throw new IOException("Project counters are busy; try again.");
+    }
+  }
+
+  /**
+   * Adds to a project's counters in one shard, starting from a random one.
+   * A conflicting transaction moves on to the next shard, which another
+   * request is unlikely to be updating too.
+   * @param     {Key}               projKey
+   * @param     {long}              images      change in image count
+   * @param     {long}              masks       change in mask count
+   * @param     {long}              bytes       change in total blob bytes
+   * @param     {String}            lastUpload  upload time; null if nothing
+   *                                            uploaded
+   * @param     {Map<String, Long>} tagChanges  from getTagChanges
+   * @return    {boolean}           false if every attempt conflicted
+   */
+  private static boolean tryIncrement(Key projKey, long images, long masks,
+                                      long bytes, String lastUpload,
+                                      Map<String, Long> tagChanges) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    int firstShard = ThreadLocalRandom.current().nextInt(SHARD_COUNT);
+
+    for (int attempt = 0; attempt < TRANSACTION_ATTEMPTS; attempt++) {
+      Key shardKey =
+          getShardKey(projKey, (firstShard + attempt) % SHARD_COUNT);
+      Transaction txn = datastore.beginTransaction();
+      try {
+        Entity shard;
+        try {
+          shard = datastore.get(txn, shardKey);
+        } catch (EntityNotFoundException e) {
+          shard = newShard(shardKey, projKey);
+        }
+        add(shard, "images", images);
+        add(shard, "masks", masks);
+        add(shard, "bytes", bytes);
+        for (Map.Entry<String, Long> tagChange : tagChanges.entrySet()) {
+          addTag(shard, tagChange.getKey(), tagChange.getValue());
+        }
+        shard.setUnindexedProperty(
+            "last-upload",
+            later((String)shard.getProperty("last-upload"), lastUpload));
+        datastore.put(txn, shard);
+        txn.commit();
+        return true;
+      } catch (ConcurrentModificationException e) {
+        // Another request updated the same shard; try the next
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the changes in tag counts when an asset's tags are replaced.
+   * Tags both removed and added cancel out.
+   * @param     {String}                kind        asset kind
+   * @param     {Collection<String>}    removed     old tags; may be null
+   * @param     {Collection<String>}    added       new tags; may be null
+   * @return    {Map<String, Long>}
+   */
+  public static Map<String, Long> getTagChanges(String kind,
+                                                Collection<String> removed,
+                                                Collection<String> added) {
+    HashMap<String, Long> tagChanges = new HashMap<String, Long>();
+    if (removed != null) {
+      for (String tag : removed) {
+        tagChanges.merge(getTagProperty(kind, tag), -1L, Long::sum);
+      }
+    }
+    if (added != null) {
+      for (String tag : added) {
+        tagChanges.merge(getTagProperty(kind, tag), 1L, Long::sum);
+      }
+    }
+    tagChanges.values().removeIf(change -> change == 0);
+    return tagChanges;
+  }
+
+  /**
+   * Reads how many images and masks of a project carry each tag, with a
+   * single batch get. Tags no longer carried by any asset are left out.
+   * @param     {Key}           projKey
+   * @return    {TagFacets}
+   */
+  public static TagFacets getTagFacets(Key projKey) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    TreeMap<String, Long> imageTags = new TreeMap<String, Long>();
+    TreeMap<String, Long> maskTags = new TreeMap<String, Long>();
+    String imagePrefix = getTagProperty(DataUtils.IMAGE, "");
+    String maskPrefix = getTagProperty(DataUtils.MASK, "");
+
+    for (Entity shard : datastore.get(getShardKeys(projKey)).values()) {
+      for (Map.Entry<String, Object> property :
+           shard.getProperties().entrySet()) {
+        String name = property.getKey();
+        if (name.startsWith(imagePrefix)) {
+          imageTags.merge(name.substring(imagePrefix.length()),
+                          (Long)property.getValue(), Long::sum);
+        } else if (name.startsWith(maskPrefix)) {
+          maskTags.merge(name.substring(maskPrefix.length()),
+                         (Long)property.getValue(), Long::sum);
+        }
+      }
+    }
+    imageTags.values().removeIf(count -> count <= 0);
+    maskTags.values().removeIf(count -> count <= 0);
+    return new TagFacets(imageTags, maskTags);
+  }
+
+  /**
+   * Creates zeroed counters for a new project.
+   * @param     {Key}       projKey
+   * @return    {void}
+   */
+  public static void initialize(Key projKey) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    datastore.put(newShard(getShardKey(projKey, 0), projKey));
+  }
+
+  /**
+   * Reads the summaries of several projects with a single batch get.
+   * Projects without counters, such as those created before counters were
+   * kept and not yet recounted, are absent from the returned Map.
+   * @param     {Collection<Key>}           projKeys
+   * @return    {Map<Key, ProjectSummary>}
+   */
+  public static Map<Key, ProjectSummary> getSummaries(
+      Collection<Key> projKeys) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    ArrayList<Key> shardKeys = new ArrayList<Key>();
+    for (Key projKey : projKeys) {
+      shardKeys.addAll(getShardKeys(projKey));
+    }
+
+    HashMap<Key, ProjectSummary> summaries = new HashMap<Key, ProjectSummary>();
+    for (Entity shard : datastore.get(shardKeys).values()) {
+      Key projKey = (Key)shard.getProperty("project");
+      ProjectSummary summary = summaries.get(projKey);
+      if (summary == null) {
+        summary = new ProjectSummary(0, 0, 0, null);
+        summaries.put(projKey, summary);
+      }
+      summary.imageCount += getLong(shard, "images");
+      summary.maskCount += getLong(shard, "masks");
+      summary.totalBytes += getLong(shard, "bytes");
+      summary.lastUpload =
+          later(summary.lastUpload, (String)shard.getProperty("last-upload"));
+    }
+    return summaries;
+  }
+
+  /**
+   * Recounts the counters of one batch of projects from their assets.
+   * Returns the number of projects recounted and the cursor for the next
+   * batch, which is null once every project has been visited.
+   * @param     {String}            cursorString    empty for the first batch
+   * @return    {MigrationInfo}
+   */
+  public static MigrationInfo recountBatch(String cursorString)
+      throws IOException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+    FetchOptions batchOptions =
+        FetchOptions.Builder.withLimit(RECOUNT_BATCH_SIZE);
+    if (!DataUtils.isEmptyParameter(cursorString)) {
+      batchOptions.startCursor(DataUtils.parseCursor(cursorString));
+    }
+
+    PreparedQuery projects = datastore.prepare(new Query(DataUtils.PROJECT));
+    QueryResultList<Entity> batch = projects.asQueryResultList(batchOptions);
+
+    int recounted = 0;
+    for (Entity project : batch) {
+      // Deleted projects lose their counters with the rest of their data
+      if (!Boolean.TRUE.equals(project.getProperty("deleted"))) {
+        recount(project.getKey());
+        recounted++;
+      }
+    }
+    return new MigrationInfo(recounted,
+                             DataUtils.getNextCursor(batch, batchOptions));
+  }
+
+  /**
+   * Rebuilds a project's counters from its images and masks, replacing
+   * every shard. Uploads made while recounting may be lost.
+   * @param     {Key}       projKey
+   * @return    {void}
+   */
+  public static void recount(Key projKey) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+    Entity totals = newShard(getShardKey(projKey, 0), projKey);
+    String lastUpload = null;
+    Query assetQuery = new Query(projKey);
+    for (Entity asset : datastore.prepare(assetQuery).asIterable()) {
+      String kind = asset.getKind();
+      if (!kind.equals(DataUtils.IMAGE) && !kind.equals(DataUtils.MASK)) {
+        continue;
+      }
+      add(totals, kind.equals(DataUtils.IMAGE) ? "images" : "masks", 1);
+      add(totals, "bytes", getLong(asset, "size"));
+      Collection<String> tags = (Collection<String>)asset.getProperty("tags");
+      if (tags != null) {
+        for (String tag : tags) {
+          addTag(totals, getTagProperty(kind, tag), 1);
+        }
+      }
+      lastUpload = later(lastUpload, (String)asset.getProperty("utc"));
+    }
+    totals.setUnindexedProperty("last-upload", lastUpload);
+
+    // Shards are separate entity groups
+    List<Key> shardKeys = getShardKeys(projKey);
+    Transaction txn =
+        datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+    try {
+      datastore.put(txn, totals);
+      datastore.delete(txn, shardKeys.subList(1, shardKeys.size()));
+      txn.commit();
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+    ProjectVersions.bump(projKey);
+  }
+
+  /**
+   * Returns the name of the property counting a tag on one asset kind.
+   * @param     {String}    kind
+   * @param     {String}    tag
+   * @return    {String}
+   */
+  private static String getTagProperty(String kind, String tag) {
+    return TAG_PROPERTY_PREFIX + kind + ":" + tag;
+  }
+
+  /**
+   * Adds to a tag count in a shard, removing counts that reach zero so
+   * shards do not accumulate tags that are no longer used.
+   * @param     {Entity}    shard
+   * @param     {String}    property
+   * @param     {long}      amount
+   * @return    {void}
+   */
+  private static void addTag(Entity shard, String property, long amount) {
+    long count = getLong(shard, property) + amount;
+    if (count == 0) {
+      shard.removeProperty(property);
+    } else {
+      shard.setUnindexedProperty(property, count);
+    }
+  }
+
+  /**
+   * Creates an empty counter shard.
+   * @param     {Key}       shardKey
+   * @param     {Key}       projKey
+   * @return    {Entity}
+   */
+  private static Entity newShard(Key shardKey, Key projKey) {
+    Entity shard = new Entity(shardKey);
+    shard.setUnindexedProperty("project", projKey);
+    shard.setUnindexedProperty("images", 0L);
+    shard.setUnindexedProperty("masks", 0L);
+    shard.setUnindexedProperty("bytes", 0L);
+    return shard;
+  }
+
+  /**
+   * Returns the later of two UTC timestamps, either of which may be null.
+   * @param     {String}    a
+   * @param     {String}    b
+   * @return    {String}
+   */
+  private static String later(String a, String b) {
+    if (a == null) {
+      return b;
+    } else if (b == null) {
+      return a;
+    }
+    return (a.compareTo(b) >= 0) ? a : b;
+  }
+
+  /**
+   * Adds to a numeric property of an entity.
+   * @param     {Entity}    entity
+   * @param     {String}    property
+   * @param     {long}      amount
+   * @return    {void}
+   */
+  private static void add(Entity entity, String property, long amount) {
+    entity.setUnindexedProperty(property, getLong(entity, property) + amount);
+  }
+
+  /**
+   * Returns a numeric property of an entity, treating missing values as 0.
+   * @param     {Entity}    entity
+   * @param     {String}    property
+   * @return    {long}
+   */
+  private static long getLong(Entity entity, String property) {
+    Long value = (Long)entity.getProperty(property);
+    return (value == null) ? 0 : value;
+  }
+
+  private ProjectCounters() {}
+}
@@ -0,0 +1,201 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Deletes projects in the background.
+ * A deleted project is first marked with a tombstone so it disappears from
+ * listings immediately; its assets are then removed in chunks of keys-only
+ * batch deletes, one chunk per task, and the project and its counters last.
+ */
+public final class ProjectDeletion {
+  public static final String TASK_URL = "/tasks/delete-project";
+  public static final int CHUNK_SIZE = 500;
+  public static final String IN_PROGRESS = "in-progress";
+  public static final String COMPLETE = "complete";
+
+  // Runs deletions in-process instead of through the task queue when set
+  private static Executor localExecutor = null;
+
+  /**
+   * Marks a project as deleted and schedules removal of it and its assets.
+   * @param     {Entity}    projEntity
+   * @return    {void}
+   */
+  public static void start(Entity projEntity) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+    // Unindexed properties match no query, so the tombstone leaves every
+    // listing while owners remain available for status checks
+    for (Map.Entry<String, Object> property :
+         projEntity.getProperties().entrySet()) {
+      projEntity.setUnindexedProperty(property.getKey(), property.getValue());
+    }
+    projEntity.setUnindexedProperty("deleted", true);
+    projEntity.setUnindexedProperty("deleted-count", 0L);
+    datastore.put(projEntity);
+
+    schedule(projEntity.getKey());
+  }
+
+  /**
+   * Schedules the next chunk of a project's deletion. Each chunk schedules
+   * the one after it, on the local executor as in the task queue.
+   * @param     {Key}       projKey
+   * @return    {void}
+   */
+  public static void schedule(Key projKey) {
+    if (localExecutor != null) {
+      localExecutor.execute(() -> {
+        if (!deleteChunk(projKey)) {
+          schedule(projKey);
+        }
+      });
+      return;
+    }
+    QueueFactory.getDefaultQueue().add(
+        TaskOptions.Builder.withUrl(TASK_URL).param(
+            "proj-id", KeyFactory.keyToString(projKey)));
+  }
+
+  /**
+   * Deletes up to CHUNK_SIZE keys belonging to a deleted project.
+   * Blob index entries go first, with the variants of their blobs, then
+   * compact mask data and mask versions, then images and masks, then the
+   * project.
+   * Safe to repeat if a task is retried.
+   * Returns whether the project is completely deleted.
+   * @param     {Key}       projKey
+   * @return    {boolean}
+   */
+  public static boolean deleteChunk(Key projKey) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    FetchOptions chunk = FetchOptions.Builder.withLimit(CHUNK_SIZE);
+
+    Query blobIndexQuery =
+        new Query(DataUtils.BLOB_INDEX)
+            .setFilter(new FilterPredicate("project", FilterOperator.EQUAL,
+                                           projKey))
+            .setKeysOnly();
+    FetchOptions blobChunk = FetchOptions.Builder.withLimit(
+        CHUNK_SIZE / (1 + Renditions.WIDTHS.size()));
+    ArrayList<Key> keys = new ArrayList<Key>();
+    for (Entity blobIndexEntity :
+         datastore.prepare(blobIndexQuery).asIterable(blobChunk)) {
+      // Index entries are named after their blobkeys
+      keys.addAll(Renditions.getKeys(blobIndexEntity.getKey().getName()));
+      keys.add(blobIndexEntity.getKey());
+    }
+
+    // Compact mask data and mask versions are found by their project the
+    // same way
+    for (String kind :
+         new String[] {MaskStore.MASK_DATA, MaskHistory.MASK_VERSION}) {
+      if (keys.isEmpty()) {
+        Query dataQuery =
+            new Query(kind)
+                .setFilter(new FilterPredicate("project", FilterOperator.EQUAL,
+                                               projKey))
+                .setKeysOnly();
+        for (Entity data : datastore.prepare(dataQuery).asIterable(chunk)) {
+          keys.add(data.getKey());
+        }
+      }
+    }
+
+    // Kindless ancestor queries include the project itself
+    if (keys.isEmpty()) {
+      Query assetQuery = new Query(projKey).setKeysOnly();
+      for (Entity asset : datastore.prepare(assetQuery).asIterable(chunk)) {
+        if (!asset.getKey().equals(projKey)) {
+          keys.add(asset.getKey());
+        }
+      }
+    }
+
+    if (keys.isEmpty()) {
+      ArrayList<Key> projectKeys =
+          new ArrayList<Key>(ProjectCounters.getShardKeys(projKey));
+      projectKeys.add(projKey);
+      datastore.delete(projectKeys);
+      return true;
+    }
+
+    datastore.delete(keys);
+    recordProgress(projKey, keys.size());
+    return false;
+  }
+
+  /**
+   * Returns the deletion status of a project for one of its owners.
+   * Projects no longer stored are reported as complete.
+   * @param     {Key}           projKey
+   * @param     {String}        userEmail
+   * @return    {DeletionInfo}
+   */
+  public static DeletionInfo getStatus(Key projKey, String userEmail)
+      throws IOException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity projEntity;
+    try {
+      projEntity = datastore.get(projKey);
+    } catch (EntityNotFoundException e) {
+      return new DeletionInfo(COMPLETE, 0);
+    }
+
+    ProjectAcl acl = ProjectAcl.fromEntity(projEntity);
+    if (!acl.deleted || !acl.owners.contains(userEmail)) {
+      throw new IOException(
+          "You do not have permission to access this project.");
+    }
+    Long deletedCount = (Long)projEntity.getProperty("deleted-count");
+    return new DeletionInfo(IN_PROGRESS,
+                            (deletedCount == null) ? 0 : deletedCount);
+  }
+
+  /**
+   * Runs deletions on the given executor instead of the task queue, or
+   * restores the task queue if null. Used in tests.
+   * @param     {Executor}  executor
+   * @return    {void}
+   */
+  static void setLocalExecutor(Executor executor) {
+    localExecutor = executor;
+  }
+
+  /**
+   * Adds to the count of deleted keys on the project's tombstone.
+   * @param     {Key}       projKey
+   * @param     {int}       count
+   * @return    {void}
+   */
+  private static void recordProgress(Key projKey, int count) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    try {
+      Entity projEntity = datastore.get(projKey);
+      Long deletedCount = (Long)projEntity.getProperty("deleted-count");
+      projEntity.setUnindexedProperty(
+          "deleted-count", ((deletedCount == null) ? 0 : deletedCount) + count);
+      datastore.put(projEntity);
+    } catch (EntityNotFoundException e) {
+      // Progress is informational only
+    }
+  }
+
+  private ProjectDeletion() {}
+}
@@ -5,6 +5,7 @@ import java.util.ArrayList;
 /**
  * Holds relevant project info to return to front end and
  * allows for easy creation of JSON response.
+ * summary is null for projects without counters.
  */
 class ProjectInfo {
   String projId;
@@ -13,6 +14,7 @@ class ProjectInfo {
   String visibility;
   ArrayList<String> owners;
   ArrayList<String> editors;
+  ProjectSummary summary;
 
   public ProjectInfo(String projId, String name, String timestamp,
                      String visibility, ArrayList<String> owners,
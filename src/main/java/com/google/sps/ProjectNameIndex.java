@@ -0,0 +1,183 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Maintains a prefix index of project names for typeahead search.
+ * Each project stores the lowercase prefixes of its whole name and of each
+ * word in it as an indexed list, so a partial name is matched with a single
+ * equality lookup on that list.
+ */
+public final class ProjectNameIndex {
+  public static final int MAX_PREFIX_LENGTH = 20;
+  public static final int DEFAULT_SUGGESTIONS = 10;
+  public static final int MAX_SUGGESTIONS = 50;
+  public static final int INDEX_BATCH_SIZE = 100;
+
+  private static final String WORD_SEPARATORS = "[\\s\\-_.]+";
+
+  /**
+   * Sets a project's name along with its prefix index.
+   * @param     {Entity}    projEntity
+   * @param     {String}    name
+   * @return    {void}
+   */
+  public static void setName(Entity projEntity, String name) {
+    projEntity.setProperty("name", name);
+    projEntity.setIndexedProperty("name-prefixes", getPrefixes(name));
+  }
+
+  /**
+   * Returns the prefixes under which a name is found, up to
+   * MAX_PREFIX_LENGTH characters, for the whole name and each word.
+   * @param     {String}        name
+   * @return    {List<String>}
+   */
+  public static List<String> getPrefixes(String name) {
+    LinkedHashSet<String> prefixes = new LinkedHashSet<String>();
+    String normalized = normalize(name);
+    ArrayList<String> starts = new ArrayList<String>(Arrays.asList(normalized));
+    starts.addAll(Arrays.asList(normalized.split(WORD_SEPARATORS)));
+    for (String start : starts) {
+      for (int length = 1;
+           length <= Math.min(start.length(), MAX_PREFIX_LENGTH); length++) {
+        prefixes.add(start.substring(0, length));
+      }
+    }
+    return new ArrayList<String>(prefixes);
+  }
+
+  /**
+   * Finds projects the user owns or edits whose name, or a word in it,
+   * starts with the given term. Most recently modified projects are first.
+   * @param     {String}        userEmail
+   * @param     {String}        term
+   * @param     {int}           limit
+   * @return    {List<Entity>}  projected with name and utc
+   */
+  public static List<Entity> suggest(String userEmail, String term,
+                                     int limit) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    String normalized = normalize(term);
+    boolean isTruncated = normalized.length() > MAX_PREFIX_LENGTH;
+    String prefix =
+        (isTruncated) ? normalized.substring(0, MAX_PREFIX_LENGTH) : normalized;
+
+    Filter accessFilter = new CompositeFilter(
+        CompositeFilterOperator.OR,
+        Arrays.asList(
+            new FilterPredicate("owners", FilterOperator.EQUAL, userEmail),
+            new FilterPredicate("editors", FilterOperator.EQUAL, userEmail)));
+    Query suggestQuery =
+        new Query(DataUtils.PROJECT)
+            .setFilter(new CompositeFilter(
+                CompositeFilterOperator.AND,
+                Arrays.asList(accessFilter,
+                              new FilterPredicate("name-prefixes",
+                                                  FilterOperator.EQUAL,
+                                                  prefix))))
+            .addSort("utc", Query.SortDirection.DESCENDING)
+            .addProjection(new PropertyProjection("utc", String.class))
+            .addProjection(new PropertyProjection("name", String.class));
+
+    // Terms longer than the indexed prefixes are checked against the name
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(
+        (isTruncated) ? MAX_SUGGESTIONS : limit);
+    ArrayList<Entity> suggestions = new ArrayList<Entity>();
+    for (Entity project :
+         datastore.prepare(suggestQuery).asIterable(fetchOptions)) {
+      if (isTruncated &&
+          !startsWithTerm((String)project.getProperty("name"), normalized)) {
+        continue;
+      }
+      suggestions.add(project);
+      if (suggestions.size() == limit) {
+        break;
+      }
+    }
+    return suggestions;
+  }
+
+  /**
+   * Adds the prefix index to one batch of projects stored without it.
+   * Returns the number of projects indexed and the cursor for the next
+   * batch, which is null once every project has been visited.
+   * @param     {String}            cursorString    empty for the first batch
+   * @return    {MigrationInfo}
+   */
+  public static MigrationInfo indexBatch(String cursorString)
+      throws IOException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+    FetchOptions batchOptions =
+        FetchOptions.Builder.withLimit(INDEX_BATCH_SIZE);
+    if (!DataUtils.isEmptyParameter(cursorString)) {
+      batchOptions.startCursor(DataUtils.parseCursor(cursorString));
+    }
+
+    PreparedQuery projects = datastore.prepare(new Query(DataUtils.PROJECT));
+    QueryResultList<Entity> batch = projects.asQueryResultList(batchOptions);
+
+    ArrayList<Entity> indexed = new ArrayList<Entity>();
+    for (Entity project : batch) {
+      String name = (String)project.getProperty("name");
+      // Tombstoned projects must stay unindexed
+      if (name != null && !project.hasProperty("name-prefixes") &&
+          !Boolean.TRUE.equals(project.getProperty("deleted"))) {
+        setName(project, name);
+        indexed.add(project);
+      }
+    }
+    datastore.put(indexed);
+    return new MigrationInfo(indexed.size(),
+                             DataUtils.getNextCursor(batch, batchOptions));
+  }
+
+  /**
+   * Determines if a name or a word in it starts with a normalized term.
+   * @param     {String}    name
+   * @param     {String}    term
+   * @return    {boolean}
+   */
+  private static boolean startsWithTerm(String name, String term) {
+    String normalized = normalize(name);
+    if (normalized.startsWith(term)) {
+      return true;
+    }
+    for (String word : normalized.split(WORD_SEPARATORS)) {
+      if (word.startsWith(term)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Lowercases and trims a name or search term.
+   * @param     {String}    text
+   * @return    {String}
+   */
+  private static String normalize(String text) {
+    return text.trim().toLowerCase(Locale.ROOT);
+  }
+
+  private ProjectNameIndex() {}
+}
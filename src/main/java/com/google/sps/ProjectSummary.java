@@ -0,0 +1,21 @@
+package com.google.sps.servlets;
+
+/**
+ * Holds the summary counters of a project to return to front end and
+ * allows for easy creation of JSON response.
+ * lastUpload is null if nothing has been uploaded.
+ */
+class ProjectSummary {
+  long imageCount;
+  long maskCount;
+  long totalBytes;
+  String lastUpload;
+
+  public ProjectSummary(long imageCount, long maskCount, long totalBytes,
+                        String lastUpload) {
+    this.imageCount = imageCount;
+    this.maskCount = maskCount;
+    this.totalBytes = totalBytes;
+    this.lastUpload = lastUpload;
+  }
+}
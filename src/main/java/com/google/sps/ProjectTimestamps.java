@@ -0,0 +1,218 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.Executor;
+
+/**
+ * Coalesces updates to projects' last-modified times.
+ * Asset writes record the time in Memcache instead of rewriting the project.
+ * The first write in a window schedules one delayed flush, which stores the
+ * latest recorded time, so a project is written at most about once per
+ * window however many assets change. Listings sorted by utc lag by at most
+ * FLUSH_DELAY_MILLIS plus task queue latency. A time that cannot be stored
+ * because the project is contended is kept and the flush scheduled again.
+ */
+public final class ProjectTimestamps {
+  public static final String TASK_URL = "/tasks/flush-project-utc";
+  public static final long FLUSH_DELAY_MILLIS = 10000;
+
+  private static final String PENDING_NAMESPACE = "project-utc";
+  // Outlives the flush delay so pending times are not expired before use
+  private static final int PENDING_EXPIRATION = 300;
+  private static final int CAS_ATTEMPTS = 3;
+  private static final int TRANSACTION_ATTEMPTS = 3;
+
+  // Runs flushes in-process instead of through the task queue when set
+  private static Executor localExecutor = null;
+
+  /**
+   * Records that a project was modified at the given time.
+   * The project's version changes immediately, so cached responses about it
+   * are not revalidated; only the stored time is coalesced.
+   * Falls back to writing the project directly if Memcache is unavailable.
+   * @param     {Key}       projKey
+   * @param     {String}    utc
+   * @return    {void}
+   */
+  public static void touch(Key projKey, String utc) {
+    ProjectVersions.bump(projKey);
+    String projId = KeyFactory.keyToString(projKey);
+    MemcacheService pending =
+        MemcacheServiceFactory.getMemcacheService(PENDING_NAMESPACE);
+    Expiration expiration = Expiration.byDeltaSeconds(PENDING_EXPIRATION);
+    try {
+      for (int attempt = 0; attempt < CAS_ATTEMPTS; attempt++) {
+        IdentifiableValue recorded = pending.getIdentifiable(projId);
+        if (recorded == null || recorded.getValue() == null) {
+          // First modification in this window schedules the flush
+          boolean recordedNow = (recorded == null)
+              ? pending.put(projId, utc, expiration,
+                            SetPolicy.ADD_ONLY_IF_NOT_PRESENT)
+              : pending.putIfUntouched(projId, recorded, utc, expiration);
+          if (recordedNow) {
+            schedule(projKey);
+            return;
+          }
+        } else if (utc.compareTo((String)recorded.getValue()) <= 0 ||
+                   pending.putIfUntouched(projId, recorded, utc, expiration)) {
+          return;
+        }
+      }
+    } catch (RuntimeException e) {
+      // Handled below
+    }
+    // Memcache is unavailable or persistently contended, so the time is
+    // carried by the flush itself if it cannot be stored now
+    if (!write(projKey, utc)) {
+      schedule(projKey, utc);
+    }
+  }
+
+  /**
+   * Stores the latest recorded modification time of a project.
+   * The recorded time is cleared only if no modification was recorded while
+   * it was stored; otherwise the later time is stored too, and if
+   * modifications keep arriving the flush is scheduled again, so none is
+   * lost. A cleared time is kept as null rather than deleted, so clearing
+   * can be conditional. If the time cannot be stored it is kept and the
+   * flush is scheduled again.
+   * @param     {Key}       projKey
+   * @return    {void}
+   */
+  public static void flush(Key projKey) {
+    String projId = KeyFactory.keyToString(projKey);
+    MemcacheService pending =
+        MemcacheServiceFactory.getMemcacheService(PENDING_NAMESPACE);
+    Expiration expiration = Expiration.byDeltaSeconds(PENDING_EXPIRATION);
+    for (int attempt = 0; attempt < CAS_ATTEMPTS; attempt++) {
+      IdentifiableValue recorded = pending.getIdentifiable(projId);
+      if (recorded == null || recorded.getValue() == null) {
+        return;
+      }
+      if (!write(projKey, (String)recorded.getValue())) {
+        break;
+      }
+      if (pending.putIfUntouched(projId, recorded, null, expiration)) {
+        return;
+      }
+    }
+    schedule(projKey);
+  }
+
+  /**
+   * Stores a modification time that could not be recorded in Memcache.
+   * If it cannot be stored either, the flush is scheduled again.
+   * @param     {Key}       projKey
+   * @param     {String}    utc
+   * @return    {void}
+   */
+  public static void flush(Key projKey, String utc) {
+    if (!write(projKey, utc)) {
+      schedule(projKey, utc);
+    }
+  }
+
+  /**
+   * Runs flushes on the given executor without delay instead of the task
+   * queue, or restores the task queue if null. Used in tests.
+   * @param     {Executor}  executor
+   * @return    {void}
+   */
+  static void setLocalExecutor(Executor executor) {
+    localExecutor = executor;
+  }
+
+  /**
+   * Schedules a flush after the coalescing window.
+   * @param     {Key}       projKey
+   * @return    {void}
+   */
+  private static void schedule(Key projKey) {
+    schedule(projKey, null);
+  }
+
+  /**
+   * Schedules a flush after the coalescing window, carrying the time to store
+   * in the task if it is not recorded in Memcache.
+   * @param     {Key}       projKey
+   * @param     {String}    utc         time to store, or null for Memcache's
+   * @return    {void}
+   */
+  private static void schedule(Key projKey, String utc) {
+    if (localExecutor != null) {
+      localExecutor.execute(() -> {
+        if (utc == null) {
+          flush(projKey);
+        } else {
+          flush(projKey, utc);
+        }
+      });
+      return;
+    }
+    TaskOptions task = TaskOptions.Builder.withUrl(TASK_URL)
+        .param("proj-id", KeyFactory.keyToString(projKey))
+        .countdownMillis(FLUSH_DELAY_MILLIS);
+    if (utc != null) {
+      task.param("utc", utc);
+    }
+    QueueFactory.getDefaultQueue().add(task);
+  }
+
+  /**
+   * Sets a project's last-modified time unless it is already later.
+   * Deleted projects are left alone.
+   * @param     {Key}       projKey
+   * @param     {String}    utc
+   * @return    {boolean}   false if the project stayed contended
+   */
+  private static boolean write(Key projKey, String utc) {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    for (int attempt = 0; attempt < TRANSACTION_ATTEMPTS; attempt++) {
+      Transaction txn = datastore.beginTransaction();
+      try {
+        Entity projEntity;
+        try {
+          projEntity = datastore.get(txn, projKey);
+        } catch (EntityNotFoundException e) {
+          return true;
+        }
+        String stored = (String)projEntity.getProperty("utc");
+        if (Boolean.TRUE.equals(projEntity.getProperty("deleted")) ||
+            (stored != null && stored.compareTo(utc) >= 0)) {
+          return true;
+        }
+        projEntity.setProperty("utc", utc);
+        datastore.put(txn, projEntity);
+        txn.commit();
+        // Listings sorted by utc change when the time is stored
+        ProjectAcl acl = ProjectAcl.fromEntity(projEntity);
+        ProjectVersions.bump(projKey, acl);
+        DataUtils.cacheProjectAcl(KeyFactory.keyToString(projKey), acl);
+        return true;
+      } catch (ConcurrentModificationException e) {
+        // The project was changed concurrently; try again
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+    return false;
+  }
+
+  private ProjectTimestamps() {}
+}
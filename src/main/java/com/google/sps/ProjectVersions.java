@@ -0,0 +1,268 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tracks when each project's assets and the project listings last changed,
+ * so GET responses can carry validators and answer If-None-Match without
+ * running their queries.
+ * Each user's listings of the projects they own or edit have their own
+ * version, changed only by writes to those projects, and listings of public
+ * projects share one. Other listings are never validated.
+ * A version is the time of the last change, kept in Memcache. Validators are
+ * only issued once a version is SETTLE_MILLIS old, so
+ * responses that may predate a change made in the same millisecond, or come
+ * from eventually consistent listing queries, are never validated. A
+ * version lost from Memcache is replaced by the current time, which no
+ * issued validator carries.
+ */
+public final class ProjectVersions {
+  public static final long SETTLE_MILLIS = 2000;
+
+  private static final String VERSION_NAMESPACE = "project-version";
+  // Project IDs never contain ':', so listing versions cannot collide
+  private static final String USER_LISTING_PREFIX = "listing:";
+  private static final String PUBLIC_LISTING_VERSION = "public-listing";
+
+  private static long settleMillis = SETTLE_MILLIS;
+
+  /**
+   * Records that a project, and so the listings it appears in, changed.
+   * The listings are found from the project's cached ACL, or the project
+   * itself if the ACL is not cached.
+   * @param     {Key}       projKey
+   * @return    {void}
+   */
+  public static void bump(Key projKey) {
+    ProjectAcl acl =
+        DataUtils.getCachedProjectAcl(KeyFactory.keyToString(projKey));
+    if (acl == null || acl.deleted) {
+      try {
+        acl = ProjectAcl.fromEntity(
+            DatastoreServiceFactory.getDatastoreService().get(projKey));
+      } catch (EntityNotFoundException e) {
+        acl = null;
+      }
+    }
+    bump(projKey, acl);
+  }
+
+  /**
+   * Records that a project changed, along with the listings it appears in
+   * under the given ACL.
+   * @param     {Key}           projKey
+   * @param     {ProjectAcl}    acl         may be null
+   * @return    {void}
+   */
+  public static void bump(Key projKey, ProjectAcl acl) {
+    List<String> versionKeys = getListingVersions(acl);
+    versionKeys.add(KeyFactory.keyToString(projKey));
+    bumpVersions(versionKeys);
+  }
+
+  /**
+   * Records that the listings a project appeared in under the given ACL
+   * changed, such as when owners, editors or visibility are replaced.
+   * @param     {ProjectAcl}    acl
+   * @return    {void}
+   */
+  public static void bumpListings(ProjectAcl acl) {
+    bumpVersions(getListingVersions(acl));
+  }
+
+  /**
+   * Returns the versions of the listings a project appears in: those of
+   * its owners and editors, and the public listing if it is public.
+   * @param     {ProjectAcl}    acl         may be null
+   * @return    {List<String>}
+   */
+  private static List<String> getListingVersions(ProjectAcl acl) {
+    ArrayList<String> versionKeys = new ArrayList<String>();
+    if (acl == null) {
+      return versionKeys;
+    }
+    for (String userEmail : acl.owners) {
+      versionKeys.add(USER_LISTING_PREFIX + userEmail);
+    }
+    for (String userEmail : acl.editors) {
+      if (!acl.owners.contains(userEmail)) {
+        versionKeys.add(USER_LISTING_PREFIX + userEmail);
+      }
+    }
+    if (DataUtils.PUBLIC.equals(acl.visibility)) {
+      versionKeys.add(PUBLIC_LISTING_VERSION);
+    }
+    return versionKeys;
+  }
+
+  /**
+   * Sets versions to the current time.
+   * @param     {List<String>}  versionKeys
+   * @return    {void}
+   */
+  private static void bumpVersions(List<String> versionKeys) {
+    MemcacheService versions =
+        MemcacheServiceFactory.getMemcacheService(VERSION_NAMESPACE);
+    Long now = System.currentTimeMillis();
+    for (String versionKey : versionKeys) {
+      try {
+        versions.put(versionKey, now);
+      } catch (RuntimeException e) {
+        // A version that cannot be updated must not keep validating
+        try {
+          versions.delete(versionKey);
+        } catch (RuntimeException ignored) {
+          // Memcache is unavailable; versions cannot be read either
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the ETag of a response about one project's assets, or null if
+   * none can be issued yet.
+   * @param     {Key}                   projKey
+   * @param     {HttpServletRequest}    request
+   * @return    {String}
+   */
+  public static String getProjectETag(Key projKey,
+                                      HttpServletRequest request) {
+    String projId = KeyFactory.keyToString(projKey);
+    return getETag(projId, projId, request);
+  }
+
+  /**
+   * Returns the ETag of a project listing response, or null if none can be
+   * issued yet. Listings depend on the user as well as the request.
+   * Listings of the user's own and edited projects follow the user's
+   * listing version, and listings of public projects the public one.
+   * @param     {HttpServletRequest}    request
+   * @param     {String}                userEmail
+   * @return    {String}
+   */
+  public static String getListingETag(HttpServletRequest request,
+                                      String userEmail) {
+    String role = request.getParameter("role");
+    String visibility = request.getParameter("visibility");
+    if (Boolean.parseBoolean(request.getParameter("global"))) {
+      return getETag(PUBLIC_LISTING_VERSION, userEmail, request);
+    } else if (DataUtils.isEmptyParameter(role) ||
+               role.equalsIgnoreCase("owner") ||
+               role.equalsIgnoreCase("editor")) {
+      return getETag(USER_LISTING_PREFIX + userEmail, userEmail, request);
+    } else if (DataUtils.PUBLIC.equals(visibility)) {
+      return getETag(PUBLIC_LISTING_VERSION, userEmail, request);
+    }
+    return null;
+  }
+
+  /**
+   * Sets the ETag of a response and determines if the request's
+   * If-None-Match already matches it, in which case the response is
+   * completed as 304 Not Modified. Responses are cached privately and
+   * revalidated on every use.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @param     {String}                etag      may be null
+   * @return    {boolean}
+   */
+  public static boolean isNotModified(HttpServletRequest request,
+                                      HttpServletResponse response,
+                                      String etag) {
+    response.setHeader("Cache-Control", "private, no-cache");
+    if (etag == null) {
+      return false;
+    }
+    response.setHeader("ETag", etag);
+    if (DataUtils.matchesETag(request, etag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Sets how long a version must be unchanged before validators are issued.
+   * Used in tests.
+   * @param     {long}      millis
+   * @return    {void}
+   */
+  static void setSettleMillis(long millis) {
+    settleMillis = millis;
+  }
+
+  /**
+   * Returns an ETag combining a version with a digest of the scope and the
+   * request's parameters, or null if the version is missing or unsettled.
+   * @param     {String}                versionKey
+   * @param     {String}                scope     what else the response
+   *                                                depends on
+   * @param     {HttpServletRequest}    request
+   * @return    {String}
+   */
+  private static String getETag(String versionKey, String scope,
+                                HttpServletRequest request) {
+    Long version = getVersion(versionKey);
+    if (version == null ||
+        System.currentTimeMillis() - version < settleMillis) {
+      return null;
+    }
+    String query = request.getQueryString();
+    String digest = digest(scope + "?" + ((query == null) ? "" : query));
+    return "\"" + Long.toString(version, 36) + "-" + digest + "\"";
+  }
+
+  /**
+   * Reads a version, starting it at the current time if missing.
+   * Returns null if Memcache is unavailable.
+   * @param     {String}    versionKey
+   * @return    {Long}
+   */
+  private static Long getVersion(String versionKey) {
+    MemcacheService versions =
+        MemcacheServiceFactory.getMemcacheService(VERSION_NAMESPACE);
+    try {
+      Long version = (Long)versions.get(versionKey);
+      if (version == null) {
+        versions.put(versionKey, System.currentTimeMillis(), null,
+                     SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        version = (Long)versions.get(versionKey);
+      }
+      return version;
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns a URL-safe SHA-256 digest of a string.
+   * @param     {String}    value
+   * @return    {String}
+   */
+  private static String digest(String value) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(
+          value.getBytes(StandardCharsets.UTF_8));
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform provides SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private ProjectVersions() {}
+}
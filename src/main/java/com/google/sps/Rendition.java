@@ -0,0 +1,20 @@
+package com.google.sps.servlets;
+
+import java.io.Serializable;
+
+/**
+ * Holds a resized variant of a hosted image for caching.
+ * data is null if the original should be served instead, as when resizing
+ * would not make the image smaller.
+ */
+class Rendition implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  byte[] data;
+  String contentType;
+
+  public Rendition(byte[] data, String contentType) {
+    this.data = data;
+    this.contentType = contentType;
+  }
+}
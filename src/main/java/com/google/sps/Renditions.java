@@ -0,0 +1,182 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesService.OutputEncoding;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.api.images.OutputSettings;
+import com.google.appengine.api.images.Transform;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Produces resized variants of hosted images at a few fixed widths.
+ * A variant is made on first request with the Images service, stored in
+ * Datastore keyed by blobkey and width, and cached in Memcache. Blobs never
+ * change under a blobkey, so neither do their variants.
+ */
+public final class Renditions {
+  public static final String RENDITION = "Rendition";
+  public static final List<Integer> WIDTHS = Arrays.asList(128, 256, 512, 1024);
+  public static final int THUMBNAIL_WIDTH = 256;
+
+  private static final String CACHE_NAMESPACE = "renditions";
+  // Leaves room for the rest of the entity under the 1 MiB entity limit
+  private static final int MAX_RENDITION_BYTES = 1000000;
+  // Largest dimension the Images service resizes to
+  private static final int MAX_DIMENSION = 4000;
+  private static final int JPEG_QUALITY = 85;
+
+  /**
+   * Returns the URL a variant of a blob is hosted at.
+   * @param     {String}    blobKeyString
+   * @param     {int}       width
+   * @return    {String}
+   */
+  public static String getUrl(String blobKeyString, int width) {
+    return "/blob-host?blobkey=" + blobKeyString + "&size=" + width;
+  }
+
+  /**
+   * Returns the keys of every stored variant a blob may have, so they can
+   * be removed with the blob's index entry.
+   * @param     {String}        blobKeyString
+   * @return    {List<Key>}
+   */
+  public static List<Key> getKeys(String blobKeyString) {
+    ArrayList<Key> keys = new ArrayList<Key>();
+    for (int width : WIDTHS) {
+      keys.add(getKey(blobKeyString, width));
+    }
+    return keys;
+  }
+
+  /**
+   * Returns the variant of a blob at one of WIDTHS, making and storing it
+   * if it does not exist yet. Failures that may pass, unlike unreadable
+   * formats, are thrown rather than stored, so the variant is made again
+   * on the next request.
+   * @param     {String}        blobKeyString
+   * @param     {int}           width
+   * @param     {String}        filetype        file extension of the blob
+   * @return    {Rendition}
+   */
+  public static Rendition get(String blobKeyString, int width,
+                              String filetype) throws IOException {
+    MemcacheService cache =
+        MemcacheServiceFactory.getMemcacheService(CACHE_NAMESPACE);
+    String cacheKey = blobKeyString + "-" + width;
+    Rendition rendition = null;
+    try {
+      rendition = (Rendition)cache.get(cacheKey);
+    } catch (RuntimeException e) {
+      // The cache is an optimization; fall back to Datastore
+    }
+    if (rendition != null) {
+      return rendition;
+    }
+
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key key = getKey(blobKeyString, width);
+    try {
+      Entity stored = datastore.get(key);
+      Blob data = (Blob)stored.getProperty("data");
+      rendition =
+          new Rendition((data == null) ? null : data.getBytes(),
+                        (String)stored.getProperty("content-type"));
+    } catch (EntityNotFoundException e) {
+      rendition = render(blobKeyString, width, filetype);
+      Entity stored = new Entity(key);
+      if (rendition.data != null) {
+        stored.setUnindexedProperty("data", new Blob(rendition.data));
+      }
+      stored.setUnindexedProperty("content-type", rendition.contentType);
+      datastore.put(stored);
+    }
+
+    try {
+      cache.put(cacheKey, rendition);
+    } catch (RuntimeException e) {
+      // Served from Datastore next time
+    }
+    return rendition;
+  }
+
+  /**
+   * Resizes a blob to fit a width, keeping its aspect ratio.
+   * JPEGs stay JPEGs; everything else becomes PNG to keep transparency.
+   * The original is used when it cannot be resized or when resizing would
+   * not make it smaller, which covers images already narrower than the
+   * width.
+   * @param     {String}        blobKeyString
+   * @param     {int}           width
+   * @param     {String}        filetype
+   * @return    {Rendition}
+   */
+  private static Rendition render(String blobKeyString, int width,
+                                  String filetype) throws IOException {
+    Rendition original = new Rendition(null, null);
+    // Vector images scale without loss
+    if ("svg".equals(filetype)) {
+      return original;
+    }
+
+    BlobKey blobKey = new BlobKey(blobKeyString);
+    BlobInfo blobInfo = new BlobInfoFactory().loadBlobInfo(blobKey);
+    if (blobInfo == null) {
+      throw new IOException("Image could not be read.");
+    }
+
+    boolean isJpeg = "image/jpeg".equals(BlobUtils.getContentType(filetype));
+    OutputSettings settings = new OutputSettings(
+        (isJpeg) ? OutputEncoding.JPEG : OutputEncoding.PNG);
+    if (isJpeg) {
+      settings.setQuality(JPEG_QUALITY);
+    }
+    Transform resize = ImagesServiceFactory.makeResize(width, MAX_DIMENSION);
+
+    byte[] data;
+    try {
+      ImagesService imagesService = ImagesServiceFactory.getImagesService();
+      Image resized = imagesService.applyTransform(
+          resize, ImagesServiceFactory.makeImageFromBlob(blobKey), settings);
+      data = resized.getImageData();
+    } catch (IllegalArgumentException e) {
+      // Formats the Images service cannot read are served as uploaded
+      return original;
+    } catch (RuntimeException e) {
+      throw new IOException("Image could not be resized.");
+    }
+    if (data.length >= blobInfo.getSize() ||
+        data.length > MAX_RENDITION_BYTES) {
+      return original;
+    }
+    return new Rendition(data, (isJpeg) ? "image/jpeg" : "image/png");
+  }
+
+  /**
+   * Returns the key of the stored variant of a blob at a width.
+   * @param     {String}    blobKeyString
+   * @param     {int}       width
+   * @return    {Key}
+   */
+  private static Key getKey(String blobKeyString, int width) {
+    return KeyFactory.createKey(RENDITION, blobKeyString + "-" + width);
+  }
+
+  private Renditions() {}
+}
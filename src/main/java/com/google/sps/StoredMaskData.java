@@ -0,0 +1,20 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Key;
+import java.io.Serializable;
+
+/**
+ * Holds compact mask data read from storage along with the project it
+ * belongs to, so access can be checked.
+ */
+class StoredMaskData implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  Key projKey;
+  byte[] encoded;
+
+  public StoredMaskData(Key projKey, byte[] encoded) {
+    this.projKey = projKey;
+    this.encoded = encoded;
+  }
+}
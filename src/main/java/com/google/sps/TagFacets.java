@@ -0,0 +1,17 @@
+package com.google.sps.servlets;
+
+import java.util.Map;
+
+/**
+ * Holds the number of images and masks carrying each tag in a project to
+ * return to front end and allows for easy creation of JSON response.
+ */
+class TagFacets {
+  Map<String, Long> images;
+  Map<String, Long> masks;
+
+  public TagFacets(Map<String, Long> images, Map<String, Long> masks) {
+    this.images = images;
+    this.masks = masks;
+  }
+}
@@ -0,0 +1,203 @@
+package com.google.sps.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Holds, for every pixel of an image, the lowest magic wand tolerance from
+ * a seed pixel that selects it, so a selection at any tolerance is a
+ * lookup rather than a fill.
+ * A pixel's level is the smallest whole tolerance its color is within of
+ * the seed's; a fill at a tolerance selects exactly the pixels connected
+ * to the seed through pixels of that level or below. So a pixel's
+ * tolerance is the least, over paths from the seed, of the greatest level
+ * on the path. Tolerances are whole numbers up to MAX_TOLERANCE, so paths
+ * are extended in order of tolerance from one list per tolerance, which
+ * takes time in proportion to the pixels.
+ * Maps are computed lazily and kept in memory, least recently used first
+ * out, up to MAX_CACHED_PIXELS. Encoded maps are the width and height as
+ * varints, then runs of pixels of equal tolerance, row by row, as pairs of
+ * tolerance and run length varints.
+ */
+public final class ToleranceMap {
+  // Distance between black and white
+  public static final int MAX_TOLERANCE = 442;
+  // About 32 MB of tolerances; see ImagePixels.MAX_CACHED_PIXELS
+  public static final long MAX_CACHED_PIXELS = 16000000L;
+
+  private static final PixelCache<ToleranceMap> cache =
+      new PixelCache<ToleranceMap>(MAX_CACHED_PIXELS);
+
+  private final int width;
+  private final int height;
+  private final short[] tolerances;
+
+  private ToleranceMap(int width, int height, short[] tolerances) {
+    this.width = width;
+    this.height = height;
+    this.tolerances = tolerances;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Returns the lowest tolerance that selects a pixel.
+   * @param     {int}       index     y * width + x
+   * @return    {int}
+   */
+  public int getTolerance(int index) {
+    return tolerances[index];
+  }
+
+  /**
+   * Returns the map for a seed in a hosted image, computing it if not
+   * cached.
+   * @param     {String}        blobKeyString
+   * @param     {int}           seedX
+   * @param     {int}           seedY
+   * @return    {ToleranceMap}
+   */
+  public static ToleranceMap get(String blobKeyString, int seedX, int seedY)
+      throws IOException {
+    String cacheKey = blobKeyString + "/" + seedX + "," + seedY;
+    ToleranceMap cached = cache.get(cacheKey);
+    if (cached != null) {
+      return cached;
+    }
+    ImagePixels pixels = ImagePixels.get(blobKeyString);
+    ToleranceMap map = compute(pixels, seedX, seedY);
+    cache.put(cacheKey, map, map.tolerances.length);
+    return map;
+  }
+
+  /**
+   * Computes the map for a seed.
+   * @param     {ImagePixels}   pixels
+   * @param     {int}           seedX
+   * @param     {int}           seedY
+   * @return    {ToleranceMap}
+   */
+  public static ToleranceMap compute(ImagePixels pixels, int seedX,
+                                     int seedY) throws IOException {
+    int width = pixels.getWidth();
+    int height = pixels.getHeight();
+    if (seedX < 0 || seedX >= width || seedY < 0 || seedY >= height) {
+      throw new IOException("Invalid seed.");
+    }
+    int size = pixels.getRgbCount();
+    int seed = seedY * width + seedX;
+    int seedColor = pixels.getRgb(seed);
+
+    // Each pixel is queued once, so the lists of pixels queued at each
+    // tolerance are linked through one array
+    int[] heads = new int[MAX_TOLERANCE + 1];
+    Arrays.fill(heads, -1);
+    int[] next = new int[size];
+    short[] tolerances = new short[size];
+    Arrays.fill(tolerances, (short)-1);
+
+    // A pixel's tolerance is final when queued, as tolerances are taken
+    // from the lists in increasing order and never decrease along a path
+    tolerances[seed] = 0;
+    heads[0] = seed;
+    next[seed] = -1;
+    int lastColor = seedColor;
+    int lastLevel = 0;
+    for (int tolerance = 0; tolerance <= MAX_TOLERANCE; tolerance++) {
+      while (heads[tolerance] != -1) {
+        int index = heads[tolerance];
+        heads[tolerance] = next[index];
+        int x = index % width;
+        for (int direction = 0; direction < 4; direction++) {
+          int neighbor;
+          if (direction == 0) {
+            neighbor = (x > 0) ? index - 1 : -1;
+          } else if (direction == 1) {
+            neighbor = (x < width - 1) ? index + 1 : -1;
+          } else if (direction == 2) {
+            neighbor = index - width;
+          } else {
+            neighbor = (index + width < size) ? index + width : -1;
+          }
+          if (neighbor < 0 || tolerances[neighbor] != -1) {
+            continue;
+          }
+          int color = pixels.getRgb(neighbor);
+          if (color != lastColor) {
+            lastColor = color;
+            lastLevel = getLevel(color, seedColor);
+          }
+          int neighborTolerance = Math.max(tolerance, lastLevel);
+          tolerances[neighbor] = (short)neighborTolerance;
+          next[neighbor] = heads[neighborTolerance];
+          heads[neighborTolerance] = neighbor;
+        }
+      }
+    }
+    return new ToleranceMap(width, height, tolerances);
+  }
+
+  /**
+   * Returns the pixels selected at a tolerance.
+   * @param     {int}           tolerance
+   * @return    {MaskBitmap}
+   */
+  public MaskBitmap getMask(int tolerance) throws IOException {
+    MaskBitmap mask = new MaskBitmap(width, height);
+    int start = -1;
+    for (int i = 0; i < tolerances.length; i++) {
+      if (tolerances[i] <= tolerance) {
+        if (start == -1) {
+          start = i;
+        }
+      } else if (start != -1) {
+        mask.setRange(start, i);
+        start = -1;
+      }
+    }
+    if (start != -1) {
+      mask.setRange(start, tolerances.length);
+    }
+    return mask;
+  }
+
+  /**
+   * Encodes the map as runs of equal tolerance.
+   * @return    {byte[]}
+   */
+  public byte[] encode() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MaskBitmap.writeVarint(out, width);
+    MaskBitmap.writeVarint(out, height);
+    int start = 0;
+    for (int i = 1; i <= tolerances.length; i++) {
+      if (i == tolerances.length || tolerances[i] != tolerances[start]) {
+        MaskBitmap.writeVarint(out, tolerances[start]);
+        MaskBitmap.writeVarint(out, i - start);
+        start = i;
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns the smallest whole tolerance that one color is within of
+   * another by Euclidean RGB distance.
+   * @param     {int}       color
+   * @param     {int}       seedColor
+   * @return    {int}
+   */
+  private static int getLevel(int color, int seedColor) {
+    int dr = (color >>> 16) - (seedColor >>> 16);
+    int dg = ((color >>> 8) & 0xFF) - ((seedColor >>> 8) & 0xFF);
+    int db = (color & 0xFF) - (seedColor & 0xFF);
+    return (int)Math.ceil(Math.sqrt(dr * dr + dg * dg + db * db));
+  }
+}
@@ -0,0 +1,78 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Handles POST requests that retag, rename or delete many images and masks
+ * of one project at once.
+ */
+@WebServlet("/blob-batch")
+public class AssetBatchServlet extends HttpServlet {
+
+  /**
+   * Handles POST requests for a batch of asset operations.
+   * Operations are given as a JSON array in the operations parameter, each
+   * with op (retag, rename or delete), image, and optionally mask, tags and
+   * newName. Access to the project is checked once for the whole batch.
+   * Responds with the result of each operation, in order.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+
+    // Must be logged in
+    if (!userService.isUserLoggedIn()) {
+      response.sendRedirect("/");
+      return;
+    }
+
+    String operationsJson = request.getParameter("operations");
+    if (DataUtils.isEmptyParameter(operationsJson)) {
+      throw new IOException("Operations must be provided.");
+    }
+    List<AssetOperation> operations;
+    try {
+      operations = JsonUtils.GSON.fromJson(
+          operationsJson,
+          new TypeToken<ArrayList<AssetOperation>>() {}.getType());
+    } catch (JsonParseException e) {
+      throw new IOException("Invalid operations.");
+    }
+    if (operations == null) {
+      throw new IOException("Invalid operations.");
+    }
+
+    String userEmail = userService.getCurrentUser().getEmail();
+    String projId = request.getParameter("proj-id");
+    Entity projEntity =
+        DataUtils.getProjectEntity(projId, userEmail, true, false);
+    Key projKey = projEntity.getKey();
+
+    // Owners have additional permissions
+    ArrayList<String> owners =
+        (ArrayList<String>)projEntity.getProperty("owners");
+    boolean isOwner = owners.contains(userEmail);
+
+    List<AssetOperationResult> results =
+        AssetBatch.apply(projKey, operations, isOwner);
+
+    response.setContentType("application/json");
+    response.getWriter().println(JsonUtils.GSON.toJson(results));
+  }
+}
@@ -0,0 +1,46 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Migrates images and masks to name-based keys, one batch per request.
+ * Restricted to application admins.
+ */
+@WebServlet("/admin/migrate-asset-keys")
+public class AssetKeyMigrationServlet extends HttpServlet {
+
+  /**
+   * Handles POST requests to migrate a batch of images.
+   * Responds with the number of images migrated and the cursor to pass as
+   * the cursor parameter for the next batch; null when finished.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+
+    // Must be logged in as an admin
+    if (!userService.isUserLoggedIn()) {
+      response.sendRedirect("/");
+      return;
+    }
+    if (!userService.isUserAdmin()) {
+      throw new IOException("Only admins can run migrations.");
+    }
+
+    MigrationInfo progress =
+        AssetKeyMigration.migrateBatch(request.getParameter("cursor"));
+
+    response.setContentType("application/json");
+    response.getWriter().println(JsonUtils.GSON.toJson(progress));
+  }
+}
@@ -3,9 +3,14 @@ package com.google.sps.servlets;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.blobstore.ByteRange;
+import com.google.appengine.api.blobstore.RangeFormatException;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.Filter;
@@ -22,17 +27,31 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Hosts Blobs directly.
+ * Hosts Blobs directly, or resized variants of them.
+ * Blobs never change once uploaded, since updating an asset's file gives it
+ * a new blobkey, so responses are cached privately for a long time, are
+ * validated by blobkey and can be fetched in byte ranges.
  */
 @WebServlet("/blob-host")
 public class BlobHost extends HttpServlet {
+  private static final String CACHE_CONTROL =
+      "private, max-age=31536000, immutable";
+
+  /**
+   * Handles GET requests for a blob, given as the blobkey parameter.
+   * If size is provided, responds with the blob resized to that width,
+   * which must be one of Renditions.WIDTHS.
+   * Responds with 304 Not Modified if If-None-Match carries the response's
+   * ETag, and with the single byte range in Range if provided, unless
+   * If-Range names another ETag.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
-    response.setContentType("image");
-
     UserService userService = UserServiceFactory.getUserService();
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
 
     if (!userService.isUserLoggedIn()) {
       response.sendRedirect("/");
@@ -44,41 +63,123 @@ public class BlobHost extends HttpServlet {
       throw new IOException("You do not have access to that resource.");
     }
 
-    Entity assetEntity = new Entity("Image");
-    boolean isMask = false;
+    Entity blobIndexEntity = getBlobIndexEntity(blobKeyString);
+    Key projKey = (Key)blobIndexEntity.getProperty("project");
+    String projId = KeyFactory.keyToString(projKey);
 
-    // Find asset with the given blobkey
-    try {
-      assetEntity = getAssetEntity(DataUtils.IMAGE, blobKeyString);
-    } catch (Exception e) {
-      assetEntity = getAssetEntity(DataUtils.MASK, blobKeyString);
-      isMask = true;
-    }
+    String userEmail = userService.getCurrentUser().getEmail();
 
-    String projId = new String();
-    try {
-      Entity projEntity = datastore.get(assetEntity.getParent());
-      // If Mask, parent's parent --> Project
-      if (isMask) {
-        projEntity = datastore.get(projEntity.getParent());
+    // Check the user is either an owner, editor, or asset is public
+    DataUtils.checkProjectAccess(projId, userEmail, true, true);
+
+    int width = 0;
+    String size = request.getParameter("size");
+    if (!DataUtils.isEmptyParameter(size)) {
+      try {
+        width = Integer.parseInt(size);
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid size.");
+      }
+      if (!Renditions.WIDTHS.contains(width)) {
+        throw new IOException("Invalid size.");
       }
-      projId = (String)projEntity.getProperty("proj-id");
-    } catch (Exception e) {
-      throw new IOException(
-          "You do not have permission to access this project.");
     }
 
-    String userEmail = userService.getCurrentUser().getEmail();
+    String etag = "\"" + blobKeyString +
+                  ((width == 0) ? "" : "-" + width) + "\"";
+    response.setHeader("ETag", etag);
+    response.setHeader("Cache-Control", CACHE_CONTROL);
+    if (DataUtils.matchesETag(request, etag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
 
-    // Check the user is either an owner, editor, or asset is public
-    DataUtils.getProjectEntity(projId, userEmail, true, true);
+    // Hosted files, SVG in particular, must not run as documents of the app
+    response.setHeader("X-Content-Type-Options", "nosniff");
+    response.setHeader("Content-Security-Policy", "sandbox");
+
+    String filetype = (String)blobIndexEntity.getProperty("filetype");
+    if (width != 0) {
+      Rendition rendition = Renditions.get(blobKeyString, width, filetype);
+      // Otherwise the original is as small as the variant would be
+      if (rendition.data != null) {
+        response.setContentType(rendition.contentType);
+        response.setContentLength(rendition.data.length);
+        response.getOutputStream().write(rendition.data);
+        return;
+      }
+    }
+
+    // Entries indexed before file types were recorded are served with the
+    // type Blobstore stored on upload
+    String contentType = BlobUtils.getContentType(filetype);
+    if (contentType != null) {
+      response.setContentType(contentType);
+    }
+    response.setHeader("Accept-Ranges", "bytes");
 
     BlobKey blobKey = new BlobKey(blobKeyString);
 
     BlobstoreService blobstoreService =
         BlobstoreServiceFactory.getBlobstoreService();
 
-    blobstoreService.serve(blobKey, response);
+    // Ranges that cannot be served as one range get the whole blob
+    ByteRange range = null;
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null || ifRange.equals(etag)) {
+      try {
+        range = blobstoreService.getByteRange(request);
+      } catch (RangeFormatException e) {
+        range = null;
+      }
+    }
+
+    if (range == null) {
+      blobstoreService.serve(blobKey, response);
+    } else {
+      blobstoreService.serve(blobKey, range, response);
+    }
+  }
+
+  /**
+   * Retrieves the blob index entry of the asset with the given blobkey,
+   * with a single get.
+   * Assets uploaded before the blob index existed are found by query once
+   * and then added to the index.
+   * @param     {String}    blobKeyString
+   * @return    {Entity}
+   */
+  private Entity getBlobIndexEntity(String blobKeyString) throws IOException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+    try {
+      return datastore.get(BlobUtils.getBlobIndexKey(blobKeyString));
+    } catch (EntityNotFoundException e) {
+      // Fall back to searching the assets
+    }
+
+    Entity assetEntity = new Entity(DataUtils.IMAGE);
+    boolean isMask = false;
+
+    // Find asset with the given blobkey
+    try {
+      assetEntity = getAssetEntity(DataUtils.IMAGE, blobKeyString);
+    } catch (Exception e) {
+      assetEntity = getAssetEntity(DataUtils.MASK, blobKeyString);
+      isMask = true;
+    }
+
+    // Image parent --> Project; Mask parent's parent --> Project
+    Key projKey = assetEntity.getParent();
+    if (isMask) {
+      projKey = projKey.getParent();
+    }
+
+    Entity blobIndexEntity = BlobUtils.newBlobIndexEntity(
+        blobKeyString, assetEntity.getKind(), projKey,
+        (String)assetEntity.getProperty("filetype"));
+    datastore.put(blobIndexEntity);
+    return blobIndexEntity;
   }
 
   /**
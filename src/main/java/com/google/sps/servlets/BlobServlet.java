@@ -5,9 +5,11 @@ import com.google.appengine.api.blobstore.BlobInfoFactory;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
@@ -17,15 +19,25 @@ import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
 import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
 import com.google.sps.servlets.BlobUtils;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -61,6 +73,15 @@ public class BlobServlet extends HttpServlet {
     // Mode is a required parameter
     boolean isCreateMode = DataUtils.parseMode(request);
 
+    // Many images may be created at once
+    if (Boolean.parseBoolean(request.getParameter("bulk"))) {
+      if (!isCreateMode) {
+        throw new IOException("Bulk uploads can only create images.");
+      }
+      bulkCreateImages(request, response);
+      return;
+    }
+
     // Check if working with image or mask
     String parentImg = request.getParameter("parent-img");
     boolean isMask = !DataUtils.isEmptyParameter(parentImg);
@@ -81,30 +102,61 @@ public class BlobServlet extends HttpServlet {
 
     String userEmail = userService.getCurrentUser().getEmail();
     String projId = request.getParameter("proj-id");
-    Entity projEntity =
-        DataUtils.getProjectEntity(projId, userEmail, true, false);
-    Key projKey = projEntity.getKey();
-    Key assetParentKey = projKey;
+    Key projKey = DataUtils.getProjectKey(projId);
 
-    // Default case: creating a new base image
-    Entity imgEntity = new Entity(DataUtils.IMAGE, projKey);
+    // Images are children of the project; masks are children of an image,
+    // which must already exist
+    String assetKind = (isMask) ? DataUtils.MASK : DataUtils.IMAGE;
+    Key assetParentKey = (isMask) ? BlobUtils.getAssetKey(DataUtils.IMAGE,
+                                                          projKey, parentImg)
+                                  : projKey;
 
-    // Asset to update must already exist
-    if (isMask) {
-      Entity existingImg =
-          BlobUtils.getAssetEntity(DataUtils.IMAGE, projKey, parentImg);
+    String newName = request.getParameter("new-name");
+    boolean rename = !isCreateMode && !DataUtils.isEmptyParameter(newName) &&
+                     !imgName.equals(newName);
+    String checkedName = (rename) ? newName : imgName;
 
-      if (isCreateMode) {
-        Key parentEntityKey = existingImg.getKey();
-        imgEntity = new Entity(DataUtils.MASK, parentEntityKey);
-      } else {
-        assetParentKey = existingImg.getKey();
-        imgEntity =
-            BlobUtils.getAssetEntity(DataUtils.MASK, assetParentKey, imgName);
-      }
-    } else {
-      if (!isCreateMode) {
-        imgEntity = BlobUtils.getAssetEntity(DataUtils.IMAGE, projKey, imgName);
+    // Every key is known from the request, so the project, the parent image,
+    // the asset to update and the name uniqueness probe are read in one
+    // batch that overlaps with validating the uploaded file
+    Key existingKey = BlobUtils.getAssetKey(assetKind, assetParentKey, imgName);
+    Key probeKey =
+        BlobUtils.getAssetKey(assetKind, assetParentKey, checkedName);
+    AsyncDatastoreService asyncDatastore =
+        DatastoreServiceFactory.getAsyncDatastoreService();
+    Future<Map<Key, Entity>> pendingEntities = asyncDatastore.get(
+        Arrays.asList(projKey, assetParentKey, existingKey, probeKey));
+
+    // Masks of a renamed image move with it
+    List<Entity> masks = new ArrayList<Entity>();
+    if (rename && !isMask) {
+      masks = asyncDatastore
+                  .prepare(new Query(DataUtils.MASK).setAncestor(existingKey))
+                  .asList(FetchOptions.Builder.withDefaults());
+    }
+
+    // Process blobkey if an image was uploaded
+    // Deletions are not upload callbacks, so they carry no file
+    boolean delete = Boolean.parseBoolean(request.getParameter("delete"));
+    CustomBlobInfo fileInfo = null;
+    if (!delete || isCreateMode) {
+      fileInfo = BlobUtils.processBlobKey(request);
+    }
+
+    Map<Key, Entity> entities = DataUtils.awaitEntities(pendingEntities);
+    Entity projEntity = DataUtils.checkProjectEntity(
+        projId, entities.get(projKey), userEmail, true, false);
+
+    if (isMask && !entities.containsKey(assetParentKey)) {
+      throw new IOException("Image not found.");
+    }
+
+    // Asset to update must already exist
+    Entity imgEntity = null;
+    if (!isCreateMode) {
+      imgEntity = entities.get(existingKey);
+      if (imgEntity == null) {
+        throw new IOException("Image not found.");
       }
     }
 
@@ -118,7 +170,6 @@ public class BlobServlet extends HttpServlet {
           "You do not have permission to to upload an image to this project.");
     }
 
-    boolean delete = Boolean.parseBoolean(request.getParameter("delete"));
     if (delete && !isCreateMode) {
       if (!isOwner) {
         throw new IOException("Only owners can delete assets.");
@@ -128,58 +179,243 @@ public class BlobServlet extends HttpServlet {
       }
     }
 
-    // Process blobkey if an image was uploaded
-    CustomBlobInfo fileInfo = BlobUtils.processBlobKey(request);
+    // Set/update name, ensuring uniqueness under parent
+    if (isCreateMode || rename) {
+      if (entities.containsKey(probeKey)) {
+        checkedName += "-" + now;
+      }
+      BlobUtils.checkReservedName(checkedName);
+    }
+    Key assetKey =
+        BlobUtils.getAssetKey(assetKind, assetParentKey, checkedName);
+
+    // Entities to put and keys to delete in batch operations; moved assets
+    // are removed with the put, and data of replaced blobs afterwards
+    ArrayList<Entity> changedEntities = new ArrayList<Entity>();
+    ArrayList<Key> movedKeys = new ArrayList<Key>();
+    ArrayList<Key> deletedKeys = new ArrayList<Key>();
+
+    if (isCreateMode) {
+      imgEntity = new Entity(assetKey);
+    } else if (rename) {
+      // Key names follow asset names, so a renamed asset and any masks under
+      // it move to new keys
+      List<Entity> copies = BlobUtils.copyAsset(imgEntity, masks, assetKey);
+      movedKeys.add(imgEntity.getKey());
+      for (Entity mask : masks) {
+        movedKeys.add(mask.getKey());
+      }
+      imgEntity = copies.get(0);
+      changedEntities.addAll(copies.subList(1, copies.size()));
+    }
+    changedEntities.add(imgEntity);
+    imgEntity.setProperty("name", checkedName);
+
+    // The blob index lets BlobHost find the project from the blobkey alone
+    long sizeChange = 0;
     if (fileInfo != null) {
+      Long oldSize = (Long)imgEntity.getProperty("size");
+      sizeChange = fileInfo.size - ((oldSize == null) ? 0 : oldSize);
+      imgEntity.setUnindexedProperty("size", fileInfo.size);
+      String oldBlobKey = (String)imgEntity.getProperty("blobkey");
+      if (oldBlobKey != null && !oldBlobKey.equals(fileInfo.blobKeyString)) {
+        deletedKeys.add(BlobUtils.getBlobIndexKey(oldBlobKey));
+        deletedKeys.addAll(Renditions.getKeys(oldBlobKey));
+      }
+      // A mask uploaded as a file no longer uses compact data
+      String oldMaskDataId = (String)imgEntity.getProperty("maskdata");
+      if (oldMaskDataId != null) {
+        deletedKeys.addAll(MaskHistory.getSupersededKeys(imgEntity));
+        imgEntity.removeProperty("maskdata");
+      }
       imgEntity.setProperty("blobkey", fileInfo.blobKeyString);
       imgEntity.setProperty("filetype", fileInfo.fileExtension);
+      changedEntities.add(BlobUtils.newBlobIndexEntity(
+          fileInfo.blobKeyString, assetKind, projKey, fileInfo.fileExtension));
     }
 
-    // Last-modified time
+    // Last-modified time; the project's is coalesced with other writes
+    // rather than written here
     imgEntity.setProperty("utc", now);
-    projEntity.setProperty("utc", now);
 
-    // Add indexed tags
+    // Add indexed tags, keeping the project's tag counts in step
     String tags = request.getParameter("tags");
+    Map<String, Long> tagChanges = new HashMap<String, Long>();
     if (!DataUtils.isEmptyParameter(tags)) {
       ArrayList<String> listTags =
           new ArrayList<String>(DataUtils.parseCommaList(tags));
-      imgEntity.setIndexedProperty("tags",
-                                   DataUtils.withDuplicatesRemoved(listTags));
+      List<String> newTags = DataUtils.withDuplicatesRemoved(listTags);
+      tagChanges = ProjectCounters.getTagChanges(
+          assetKind, (List<String>)imgEntity.getProperty("tags"), newTags);
+      imgEntity.setIndexedProperty("tags", newTags);
     }
 
-    // Set/update name, ensuring uniqueness under parent
-    String newName = request.getParameter("new-name");
-    boolean rename = !isCreateMode && !DataUtils.isEmptyParameter(newName) &&
-                     !imgName.equals(newName);
-    String checkedName = (rename) ? newName : imgName;
-    if (isCreateMode || rename) {
-      try {
-        BlobUtils.getAssetEntity((isMask) ? DataUtils.MASK : DataUtils.IMAGE,
-                                 assetParentKey, checkedName);
-        checkedName += "-" + now;
-        imgEntity.setProperty("name", checkedName);
-      } catch (Exception e) {
-        imgEntity.setProperty("name", checkedName);
+    // A rename writes the copies and removes the originals together, so a
+    // failure cannot leave both; the new blob index entry is another group
+    Transaction txn =
+        datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+    try {
+      datastore.put(txn, changedEntities);
+      if (!movedKeys.isEmpty()) {
+        datastore.delete(txn, movedKeys);
+      }
+      txn.commit();
+    } catch (ConcurrentModificationException e) {
+      throw new IOException("Image has changed; try again.");
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
       }
     }
+    if (!deletedKeys.isEmpty()) {
+      datastore.delete(deletedKeys);
+    }
 
-    // Batch operation
-    datastore.put(Arrays.asList(imgEntity, projEntity));
+    ProjectTimestamps.touch(projKey, now);
+
+    if (isCreateMode || fileInfo != null || !tagChanges.isEmpty()) {
+      long imageChange = (isCreateMode && !isMask) ? 1 : 0;
+      long maskChange = (isCreateMode && isMask) ? 1 : 0;
+      ProjectCounters.increment(projKey, imageChange, maskChange, sizeChange,
+                                (fileInfo == null) ? null : now, tagChanges);
+    }
 
     // Send the image URL and name
     response.setContentType("application/json");
     String url =
         "/blob-host?blobkey=" + (String)imgEntity.getProperty("blobkey");
-    Gson gson =
-        new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
-    String jsonImgInfo = gson.toJson(new BlobPostReturn(url, checkedName));
+    String jsonImgInfo =
+        JsonUtils.GSON.toJson(new BlobPostReturn(url, checkedName));
     response.getWriter().println(jsonImgInfo);
   }
 
+  /**
+   * Creates an image for every file uploaded under the image field.
+   * Each image is named after its file, with names made unique in one pass
+   * against stored images and the rest of the upload. Tags, if provided,
+   * apply to every image.
+   * Responds with the URL and name of each created image and the filenames
+   * of rejected files.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  private static void bulkCreateImages(HttpServletRequest request,
+                                       HttpServletResponse response)
+      throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+    String userEmail = userService.getCurrentUser().getEmail();
+    String projId = request.getParameter("proj-id");
+    Key projKey = DataUtils.getProjectKey(projId);
+
+    // Only owners can create images; a denied caller's files are deleted
+    // rather than left without any asset referring to them
+    try {
+      DataUtils.checkProjectEntity(
+          projId, datastore.get(Arrays.asList(projKey)).get(projKey),
+          userEmail, false, false);
+    } catch (IOException e) {
+      BlobUtils.deleteUploads(request);
+      throw e;
+    }
+    List<CustomBlobInfo> files = BlobUtils.processBlobKeys(request);
+
+    String now = Instant.now().toString();
+    ArrayList<CustomBlobInfo> accepted = new ArrayList<CustomBlobInfo>();
+    ArrayList<String> rejected = new ArrayList<String>();
+    ArrayList<String> baseNames = new ArrayList<String>();
+    ArrayList<Key> candidateKeys = new ArrayList<Key>();
+    for (CustomBlobInfo file : files) {
+      if (file.fileExtension == null) {
+        rejected.add(file.fileName);
+        continue;
+      }
+      String baseName = (file.fileName == null)
+                            ? ""
+                            : file.fileName.replaceFirst("\\.[^.]*$", "");
+      if (baseName.isEmpty() || BlobUtils.isReservedName(baseName)) {
+        baseName = "Untitled-" + now;
+      }
+      accepted.add(file);
+      baseNames.add(baseName);
+      candidateKeys.add(
+          BlobUtils.getAssetKey(DataUtils.IMAGE, projKey, baseName));
+    }
+
+    // One batch get finds every name already taken
+    HashSet<String> takenNames = new HashSet<String>();
+    for (Key takenKey : datastore.get(candidateKeys).keySet()) {
+      takenNames.add(takenKey.getName());
+    }
+
+    List<String> tags = null;
+    String tagsString = request.getParameter("tags");
+    if (!DataUtils.isEmptyParameter(tagsString)) {
+      tags = DataUtils.withDuplicatesRemoved(
+          DataUtils.parseCommaList(tagsString));
+    }
+
+    ArrayList<Entity> newEntities = new ArrayList<Entity>();
+    ArrayList<BlobPostReturn> uploaded = new ArrayList<BlobPostReturn>();
+    HashMap<String, Long> tagChanges = new HashMap<String, Long>();
+    long bytes = 0;
+    for (int i = 0; i < accepted.size(); i++) {
+      CustomBlobInfo file = accepted.get(i);
+      String name = baseNames.get(i);
+      if (takenNames.contains(name)) {
+        name = baseNames.get(i) + "-" + now;
+        for (int suffix = 1; takenNames.contains(name); suffix++) {
+          name = baseNames.get(i) + "-" + now + "-" + suffix;
+        }
+      }
+      takenNames.add(name);
+
+      Entity imgEntity =
+          new Entity(BlobUtils.getAssetKey(DataUtils.IMAGE, projKey, name));
+      imgEntity.setProperty("name", name);
+      imgEntity.setProperty("blobkey", file.blobKeyString);
+      imgEntity.setProperty("filetype", file.fileExtension);
+      imgEntity.setUnindexedProperty("size", file.size);
+      imgEntity.setProperty("utc", now);
+      if (tags != null) {
+        imgEntity.setIndexedProperty("tags", tags);
+        ProjectCounters.getTagChanges(DataUtils.IMAGE, null, tags)
+            .forEach((tag, change) -> tagChanges.merge(tag, change, Long::sum));
+      }
+      newEntities.add(imgEntity);
+      newEntities.add(BlobUtils.newBlobIndexEntity(
+          file.blobKeyString, DataUtils.IMAGE, projKey, file.fileExtension));
+      bytes += file.size;
+      uploaded.add(new BlobPostReturn(
+          "/blob-host?blobkey=" + file.blobKeyString, name));
+    }
+
+    for (int start = 0; start < newEntities.size();
+         start += BlobUtils.MAX_BATCH_PUT) {
+      int end = Math.min(start + BlobUtils.MAX_BATCH_PUT, newEntities.size());
+      datastore.put(newEntities.subList(start, end));
+    }
+
+    // The project is updated once for the whole upload
+    if (!uploaded.isEmpty()) {
+      ProjectTimestamps.touch(projKey, now);
+      ProjectCounters.increment(projKey, uploaded.size(), 0, bytes, now,
+                                tagChanges);
+    }
+
+    response.setContentType("application/json");
+    response.getWriter().println(
+        JsonUtils.GSON.toJson(new BulkUploadInfo(uploaded, rejected)));
+  }
+
   /**
    * Handles GET requests for images and masks.
    * Responds with JSON string of ImageInfo objects upon successful GET.
+   * If limit or cursor is provided, responds with one page of ImageInfo
+   * objects and the cursor for the next page instead.
+   * If fields is provided, each ImageInfo has only the listed fields.
    * @param     {HttpServletRequest}    request
    * @param     {HttpServletResponse}   response
    * @return    {void}
@@ -201,9 +437,14 @@ public class BlobServlet extends HttpServlet {
     String userEmail = userService.getCurrentUser().getEmail();
 
     String projId = request.getParameter("proj-id");
-    Entity projEntity =
-        DataUtils.getProjectEntity(projId, userEmail, true, true);
-    Key projKey = projEntity.getKey();
+    Key projKey = DataUtils.checkProjectAccess(projId, userEmail, true, true);
+
+    // Unchanged results are answered before running any query
+    if (ProjectVersions.isNotModified(
+            request, response,
+            ProjectVersions.getProjectETag(projKey, request))) {
+      return;
+    }
 
     boolean withMasks =
         Boolean.parseBoolean(request.getParameter("with-masks"));
@@ -228,59 +469,89 @@ public class BlobServlet extends HttpServlet {
             .setFilter(BlobUtils.combinedGetFilters(request, withMasks,
                                                     DataUtils.IMAGE));
 
+    // Only read what the requested fields need; filtered queries are not
+    // projected since they have no projection indexes
+    Set<String> fields = DataUtils.parseFields(request);
+    DataUtils.applyFields(imageQuery, fields, BlobUtils.IMAGE_KEY_FIELDS,
+                          (imageQuery.getFilter() == null)
+                              ? BlobUtils.IMAGE_PROJECTED_FIELDS
+                              : null,
+                          BlobUtils.IMAGE_PROJECTION);
+    boolean loadMasks =
+        withMasks && (fields == null || fields.contains("masks"));
+
     PreparedQuery storedImages = datastore.prepare(imageQuery);
 
-    ArrayList<ImageInfo> imageObjects = new ArrayList<ImageInfo>();
+    // Paging is opt-in; without limit or cursor every image is returned
+    boolean isPaged = DataUtils.isPagedRequest(request);
+    Iterable<Entity> imageEntities = storedImages.asIterable();
+    String nextCursor = null;
+    Map<Key, ArrayList<MaskInfo>> masksByImage =
+        new HashMap<Key, ArrayList<MaskInfo>>();
+
+    if (isPaged) {
+      FetchOptions pageOptions = DataUtils.getPageOptions(request);
+      QueryResultList<Entity> page;
+      try {
+        page = storedImages.asQueryResultList(pageOptions);
+      } catch (IllegalArgumentException e) {
+        // Cursor was created by a query with different parameters
+        throw new IOException("Invalid cursor.");
+      }
+      imageEntities = page;
+      nextCursor = DataUtils.getNextCursor(page, pageOptions);
+
+      // Only masks of the images on this page are loaded
+      if (loadMasks) {
+        ArrayList<Key> imgKeys = new ArrayList<Key>();
+        for (Entity storedImage : page) {
+          imgKeys.add(storedImage.getKey());
+        }
+        masksByImage = BlobUtils.getMasksForImages(request, imgKeys);
+      }
+    } else if (loadMasks) {
+      // All masks in the project are loaded with a single ancestor query
+      // rather than one query per image
+      masksByImage = BlobUtils.getMasksByParent(request, projKey);
+    }
 
-    for (Entity storedImage : storedImages.asIterable()) {
-      String imageUrl =
-          "/blob-host?blobkey=" + (String)storedImage.getProperty("blobkey");
+    // Each image is written as soon as it is read
+    PrintWriter out = response.getWriter();
+    JsonWriter jsonWriter = JsonUtils.beginResults(out, isPaged);
+
+    for (Entity storedImage : imageEntities) {
+      String blobKeyString = (String)storedImage.getProperty("blobkey");
+      String imageUrl = (blobKeyString == null)
+                            ? null
+                            : "/blob-host?blobkey=" + blobKeyString;
+      String thumbnailUrl =
+          (blobKeyString == null)
+              ? null
+              : Renditions.getUrl(blobKeyString, Renditions.THUMBNAIL_WIDTH);
       String imageName = (String)storedImage.getProperty("name");
+      if (imageName == null) {
+        imageName = storedImage.getKey().getName();
+      }
       String imageType = (String)storedImage.getProperty("filetype");
       String imageTime = (String)storedImage.getProperty("utc");
       ArrayList<String> imageTags =
           (ArrayList<String>)storedImage.getProperty("tags");
 
-      ArrayList<MaskInfo> imageMasks = new ArrayList<MaskInfo>();
-      if (withMasks) {
-        String sortMask = request.getParameter("sort-mask");
-        // Sorted in descending chronological order by default
-        if (DataUtils.isEmptyParameter(sortMask)) {
-          sortMask = DataUtils.DESCENDING_SORT;
-        }
-        sortImg = sortImg.toLowerCase();
-
-        Query maskQuery =
-            new Query(DataUtils.MASK)
-                .setAncestor(storedImage.getKey())
-                .addSort("utc", sortMask.equals(DataUtils.ASCENDING_SORT)
-                                    ? Query.SortDirection.ASCENDING
-                                    : Query.SortDirection.DESCENDING)
-                .setFilter(BlobUtils.combinedGetFilters(request, withMasks,
-                                                        DataUtils.MASK));
-
-        PreparedQuery storedMasks = datastore.prepare(maskQuery);
-
-        for (Entity storedMask : storedMasks.asIterable()) {
-          String maskUrl =
-              "/blob-host?blobkey=" + (String)storedMask.getProperty("blobkey");
-          String maskName = (String)storedMask.getProperty("name");
-          String maskType = (String)storedMask.getProperty("filetype");
-          String maskTime = (String)storedMask.getProperty("utc");
-          ArrayList<String> maskTags =
-              (ArrayList<String>)storedMask.getProperty("tags");
-          imageMasks.add(
-              new MaskInfo(maskUrl, maskName, maskType, maskTime, maskTags));
-        }
+      ArrayList<MaskInfo> imageMasks = masksByImage.get(storedImage.getKey());
+      if (imageMasks == null) {
+        imageMasks = new ArrayList<MaskInfo>();
       }
 
-      imageObjects.add(new ImageInfo(imageUrl, imageName, imageType, imageTime,
-                                     imageTags, imageMasks));
+      ImageInfo imageInfo =
+          new ImageInfo(imageUrl, thumbnailUrl, imageName, imageType,
+                        imageTime, imageTags, imageMasks);
+      if (fields == null) {
+        JsonUtils.IMAGE_ADAPTER.write(jsonWriter, imageInfo);
+      } else {
+        JsonUtils.writeFields(jsonWriter, imageInfo, fields);
+      }
     }
 
-    Gson gson =
-        new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
-    String jsonImages = gson.toJson(imageObjects);
-    response.getWriter().println(jsonImages);
+    JsonUtils.endResults(jsonWriter, out, isPaged, nextCursor);
   }
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Task queue worker that deletes one chunk of a deleted project and
+ * schedules the next chunk until the project is gone.
+ * Restricted to application admins, which includes the task queue.
+ */
+@WebServlet(ProjectDeletion.TASK_URL)
+public class DeleteProjectTask extends HttpServlet {
+
+  /**
+   * Handles POST requests from the task queue.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    Key projKey;
+    try {
+      projKey = KeyFactory.stringToKey(request.getParameter("proj-id"));
+    } catch (Exception e) {
+      // Malformed tasks would otherwise be retried forever
+      response.setStatus(HttpServletResponse.SC_OK);
+      return;
+    }
+
+    if (!ProjectDeletion.deleteChunk(projKey)) {
+      ProjectDeletion.schedule(projKey);
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+}
@@ -0,0 +1,44 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Task queue worker that stores a project's coalesced last-modified time.
+ * Restricted to application admins, which includes the task queue.
+ */
+@WebServlet(ProjectTimestamps.TASK_URL)
+public class FlushProjectUtcTask extends HttpServlet {
+
+  /**
+   * Handles POST requests from the task queue.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    Key projKey;
+    try {
+      projKey = KeyFactory.stringToKey(request.getParameter("proj-id"));
+    } catch (Exception e) {
+      // Malformed tasks would otherwise be retried forever
+      response.setStatus(HttpServletResponse.SC_OK);
+      return;
+    }
+
+    String utc = request.getParameter("utc");
+    if (utc == null) {
+      ProjectTimestamps.flush(projKey);
+    } else {
+      ProjectTimestamps.flush(projKey, utc);
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+}
@@ -0,0 +1,49 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Task queue worker that applies a counter change which was contended when
+ * its asset was stored. Fails while the counters stay contended, so the
+ * task queue retries it.
+ * Restricted to application admins, which includes the task queue.
+ */
+@WebServlet(ProjectCounters.TASK_URL)
+public class IncrementProjectCountersTask extends HttpServlet {
+
+  /**
+   * Handles POST requests from the task queue.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    Key projKey;
+    long images;
+    long masks;
+    long bytes;
+    try {
+      projKey = KeyFactory.stringToKey(request.getParameter("proj-id"));
+      images = Long.parseLong(request.getParameter("images"));
+      masks = Long.parseLong(request.getParameter("masks"));
+      bytes = Long.parseLong(request.getParameter("bytes"));
+    } catch (Exception e) {
+      // Malformed tasks would otherwise be retried forever
+      response.setStatus(HttpServletResponse.SC_OK);
+      return;
+    }
+
+    ProjectCounters.applyTask(projKey, images, masks, bytes,
+                              request.getParameter("last-upload"),
+                              request.getParameter("tag-changes"));
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+}
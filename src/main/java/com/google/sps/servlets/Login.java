@@ -2,8 +2,6 @@ package com.google.sps.servlets;
 
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import java.io.IOException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -36,12 +34,10 @@ public class Login extends HttpServlet {
     UserService userService = UserServiceFactory.getUserService();
     if (userService.isUserLoggedIn()) {
       String logoutUrl = userService.createLogoutURL("/#/logout");
-      Gson gson = new GsonBuilder().setPrettyPrinting().create();
-      userInfo = gson.toJson(new UserInfo(true, logoutUrl));
+      userInfo = JsonUtils.GSON.toJson(new UserInfo(true, logoutUrl));
     } else {
       String loginUrl = userService.createLoginURL("/");
-      Gson gson = new GsonBuilder().setPrettyPrinting().create();
-      userInfo = gson.toJson(new UserInfo(false, loginUrl));
+      userInfo = JsonUtils.GSON.toJson(new UserInfo(false, loginUrl));
     }
     response.getWriter().println(userInfo);
   }
@@ -0,0 +1,129 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Selects regions of similar color in a hosted image, as the editor's
+ * magic wand does, without sending the image's pixels to the browser.
+ * Selections are returned as compact mask data, or as a PNG if format is
+ * png.
+ */
+@WebServlet("/magic-wand")
+public class MagicWandServlet extends HttpServlet {
+
+  /**
+   * Handles GET requests filling from the pixel at x and y of the image
+   * given by proj-id and img-name, with colors within tolerance of the
+   * seed's color.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    select(request, response, false);
+  }
+
+  /**
+   * Handles POST requests filling as GET does, but with the colors of
+   * scribbled pixels as references. The body is the scribbles as compact
+   * mask data, so parameters are given in the query string.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    select(request, response, true);
+  }
+
+  /**
+   * Fills from the requested seed and writes the selection.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @param     {boolean}               hasScribbles
+   * @return    {void}
+   */
+  private static void select(HttpServletRequest request,
+                             HttpServletResponse response,
+                             boolean hasScribbles) throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+
+    if (!userService.isUserLoggedIn()) {
+      response.sendRedirect("/");
+      return;
+    }
+
+    String imgName = request.getParameter("img-name");
+    if (DataUtils.isEmptyParameter(imgName)) {
+      throw new IOException("Image not found.");
+    }
+    int x = parseInt(request.getParameter("x"), "Invalid seed.");
+    int y = parseInt(request.getParameter("y"), "Invalid seed.");
+    int tolerance =
+        parseInt(request.getParameter("tolerance"), "Invalid tolerance.");
+    MaskBitmap scribbles = null;
+    if (hasScribbles) {
+      scribbles = MaskBitmap.decode(
+          DataUtils.readBody(request, MaskStore.MAX_BYTES));
+    }
+
+    // Check the user is either an owner, editor, or project is public
+    String userEmail = userService.getCurrentUser().getEmail();
+    String projId = request.getParameter("proj-id");
+    Key projKey = DataUtils.checkProjectAccess(projId, userEmail, true, true);
+    ImagePixels pixels =
+        ImagePixels.get(getImageBlobKey(projKey, imgName));
+    MaskBitmap mask = FloodFill.fill(pixels, x, y, tolerance, scribbles);
+
+    response.setHeader("Cache-Control", "private, no-cache");
+    MaskDataServlet.writeMask(response, mask.encode(),
+                              MaskDataServlet.isPngFormat(request));
+  }
+
+  /**
+   * Returns the blobkey of an image.
+   * @param     {Key}       projKey
+   * @param     {String}    imgName
+   * @return    {String}
+   */
+  static String getImageBlobKey(Key projKey, String imgName)
+      throws IOException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    try {
+      Entity imgEntity = datastore.get(
+          BlobUtils.getAssetKey(DataUtils.IMAGE, projKey, imgName));
+      return (String)imgEntity.getProperty("blobkey");
+    } catch (EntityNotFoundException e) {
+      throw new IOException("Image not found.");
+    }
+  }
+
+  /**
+   * Parses an integer parameter.
+   * @param     {String}    value
+   * @param     {String}    message   error if missing or invalid
+   * @return    {int}
+   */
+  static int parseInt(String value, String message)
+      throws IOException {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IOException(message);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Combines stored masks of an image by set operations and saves the
+ * result as a new mask, without sending any mask to the browser.
+ * Operations run over whole 64-bit words of the masks' bitmaps.
+ */
+@WebServlet("/mask-algebra")
+public class MaskAlgebraServlet extends HttpServlet {
+  private static final List<String> OPERATIONS =
+      Arrays.asList("union", "intersect", "xor", "subtract", "invert");
+
+  /**
+   * Handles POST requests combining the masks of the image given by
+   * proj-id and parent-img named by each mask parameter, in order.
+   * op is union, intersect, xor, subtract, which removes the later masks
+   * from the first, or invert, which takes exactly one mask.
+   * The result is created as img-name, or a timestamped name if none is
+   * given or the name is taken.
+   * Responds with the new mask's PNG URL and name.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+    if (!userService.isUserLoggedIn()) {
+      response.sendRedirect("/");
+      return;
+    }
+
+    String now = Instant.now().toString();
+    String op = request.getParameter("op");
+    if (!OPERATIONS.contains(op)) {
+      throw new IOException("Invalid operation.");
+    }
+    String parentImg = request.getParameter("parent-img");
+    if (DataUtils.isEmptyParameter(parentImg)) {
+      throw new IOException("Image not found.");
+    }
+    String[] operandNames = request.getParameterValues("mask");
+    if (operandNames == null || operandNames.length == 0 ||
+        (op.equals("invert") && operandNames.length != 1)) {
+      throw new IOException("Invalid operands.");
+    }
+    String maskName = request.getParameter("img-name");
+    if (DataUtils.isEmptyParameter(maskName)) {
+      maskName = "Untitled-" + now;
+    }
+    BlobUtils.checkReservedName(maskName);
+
+    String userEmail = userService.getCurrentUser().getEmail();
+    String projId = request.getParameter("proj-id");
+    Key projKey = DataUtils.getProjectKey(projId);
+    Key imgKey = BlobUtils.getAssetKey(DataUtils.IMAGE, projKey, parentImg);
+    List<Key> operandKeys = new ArrayList<Key>();
+    for (String operandName : operandNames) {
+      operandKeys.add(
+          BlobUtils.getAssetKey(DataUtils.MASK, imgKey, operandName));
+    }
+    List<Key> keys = new ArrayList<Key>(operandKeys);
+    keys.add(projKey);
+    Map<Key, Entity> entities = datastore.get(keys);
+
+    // Editors can create masks
+    DataUtils.checkProjectEntity(projId, entities.get(projKey), userEmail,
+                                 true, false);
+
+    MaskBitmap mask = null;
+    for (Key operandKey : operandKeys) {
+      Entity operandEntity = entities.get(operandKey);
+      if (operandEntity == null) {
+        throw new IOException("Mask not found.");
+      }
+      MaskBitmap operand =
+          MaskBitmap.decode(MaskDataServlet.getEncoded(operandEntity));
+      if (mask == null) {
+        mask = operand;
+      } else {
+        combine(op, mask, operand);
+      }
+    }
+    if (op.equals("invert")) {
+      mask.invert();
+    }
+    byte[] encoded = mask.encode();
+
+    // Created the same way as by /mask-data, so a taken name is never
+    // replaced
+    BlobPostReturn saved = MaskDataServlet.save(projKey, imgKey, maskName,
+                                                true, mask, encoded, null,
+                                                now);
+
+    response.setContentType("application/json");
+    response.getWriter().println(JsonUtils.GSON.toJson(saved));
+  }
+
+  /**
+   * Combines a mask with another in place.
+   * @param     {String}        op
+   * @param     {MaskBitmap}    mask
+   * @param     {MaskBitmap}    other
+   * @return    {void}
+   */
+  private static void combine(String op, MaskBitmap mask, MaskBitmap other)
+      throws IOException {
+    if (op.equals("union")) {
+      mask.or(other);
+    } else if (op.equals("intersect")) {
+      mask.and(other);
+    } else if (op.equals("xor")) {
+      mask.xor(other);
+    } else if (op.equals("subtract")) {
+      mask.andNot(other);
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Converts masks between PNGs and the compact MaskBitmap encoding without
+ * storing them, so clients can hold masks in either form.
+ */
+@WebServlet("/mask-convert")
+public class MaskConvertServlet extends HttpServlet {
+  /**
+   * Handles POST requests converting the mask in the body.
+   * If format is png, the body is a PNG and the response is the compact
+   * encoding; otherwise the body is the compact encoding and the response
+   * is a PNG.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+
+    if (!userService.isUserLoggedIn()) {
+      response.sendRedirect("/");
+      return;
+    }
+
+    if (MaskDataServlet.isPngFormat(request)) {
+      MaskBitmap mask = MaskBitmap.fromPng(new ByteArrayInputStream(
+          DataUtils.readBody(request, MaskDataServlet.MAX_PNG_BYTES)));
+      MaskDataServlet.writeMask(response, mask.encode(), false);
+    } else {
+      byte[] encoded = DataUtils.readBody(request, MaskStore.MAX_BYTES);
+      MaskDataServlet.writeMask(response, encoded, true);
+    }
+  }
+}
@@ -0,0 +1,435 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreInputStream;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Uploads and downloads masks in the compact MaskBitmap encoding, or as
+ * PNGs converted on the server.
+ * Masks uploaded here keep their data in MaskStore rather than Blobstore;
+ * masks uploaded as PNGs through /blobs are converted when read.
+ */
+@WebServlet("/mask-data")
+public class MaskDataServlet extends HttpServlet {
+  // PNGs of the largest masks can exceed the compact limit
+  static final int MAX_PNG_BYTES = 32 * 1024 * 1024;
+  static final int TRANSACTION_ATTEMPTS = 3;
+
+  private static final String CACHE_CONTROL =
+      "private, max-age=31536000, immutable";
+
+  /**
+   * Handles GET requests for mask data, either stored data given by id,
+   * or the data of the mask given by proj-id, parent-img and img-name at
+   * version, or currently if no version is given. Responds with the compact
+   * encoding, or a PNG if format is png. Stored data and past versions never
+   * change, so responses for them are cached privately for a long time.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+
+    if (!userService.isUserLoggedIn()) {
+      response.sendRedirect("/");
+      return;
+    }
+
+    String userEmail = userService.getCurrentUser().getEmail();
+    boolean asPng = isPngFormat(request);
+
+    String id = request.getParameter("id");
+    byte[] encoded;
+    if (!DataUtils.isEmptyParameter(id)) {
+      StoredMaskData stored = MaskStore.get(id);
+
+      // Check the user is either an owner, editor, or asset is public
+      DataUtils.checkProjectAccess(KeyFactory.keyToString(stored.projKey),
+                                   userEmail, true, true);
+
+      String etag = "\"" + id + ((asPng) ? "-png" : "") + "\"";
+      response.setHeader("ETag", etag);
+      response.setHeader("Cache-Control", CACHE_CONTROL);
+      if (DataUtils.matchesETag(request, etag)) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+      encoded = stored.encoded;
+    } else {
+      String projId = request.getParameter("proj-id");
+      Key projKey =
+          DataUtils.checkProjectAccess(projId, userEmail, true, true);
+      Entity maskEntity = getMaskEntity(projKey, request);
+
+      String version = request.getParameter("version");
+      if (!DataUtils.isEmptyParameter(version)) {
+        // Past versions never change
+        long versionNumber = parseVersion(version);
+        if (!MaskHistory.hasVersion(maskEntity, versionNumber)) {
+          throw new IOException("Version not found.");
+        }
+        String etag = "\"" + maskEntity.getProperty("history") + "-" +
+                      versionNumber + ((asPng) ? "-png" : "") + "\"";
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", CACHE_CONTROL);
+        if (DataUtils.matchesETag(request, etag)) {
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return;
+        }
+        encoded =
+            MaskHistory.getVersion(maskEntity, versionNumber).encode();
+      } else {
+        // A mask's data changes on update, so it is only cached by id
+        response.setHeader("Cache-Control", "private, no-cache");
+        encoded = getEncoded(maskEntity);
+      }
+    }
+    writeMask(response, encoded, asPng);
+  }
+
+  /**
+   * Handles POST requests creating or updating a mask from its data.
+   * The mask is given by proj-id, parent-img and img-name, and mode is
+   * create or update as for /blobs. The body is the compact encoding, or a
+   * PNG if format is png, so parameters are given in the query string.
+   * Tags, if provided, replace the mask's tags.
+   * Responds with the mask's PNG URL and name.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+    if (!userService.isUserLoggedIn()) {
+      response.sendRedirect("/");
+      return;
+    }
+
+    boolean isCreateMode = DataUtils.parseMode(request);
+    String now = Instant.now().toString();
+
+    String parentImg = request.getParameter("parent-img");
+    if (DataUtils.isEmptyParameter(parentImg)) {
+      throw new IOException("Image not found.");
+    }
+    String maskName = request.getParameter("img-name");
+    if (DataUtils.isEmptyParameter(maskName)) {
+      if (isCreateMode) {
+        maskName = "Untitled-" + now;
+      } else {
+        throw new IOException("Image name must be provided.");
+      }
+    }
+    BlobUtils.checkReservedName(maskName);
+
+    // Uploads are decoded and encoded again, which validates them and
+    // stores the smaller encoding
+    MaskBitmap mask;
+    if (isPngFormat(request)) {
+      mask = MaskBitmap.fromPng(new ByteArrayInputStream(
+          DataUtils.readBody(request, MAX_PNG_BYTES)));
+    } else {
+      mask = MaskBitmap.decode(
+          DataUtils.readBody(request, MaskStore.MAX_BYTES));
+    }
+    byte[] encoded = mask.encode();
+
+    String userEmail = userService.getCurrentUser().getEmail();
+    String projId = request.getParameter("proj-id");
+    Key projKey = DataUtils.getProjectKey(projId);
+    Key imgKey = BlobUtils.getAssetKey(DataUtils.IMAGE, projKey, parentImg);
+    Map<Key, Entity> entities =
+        datastore.get(Arrays.asList(projKey, imgKey));
+
+    // Editors can create and update masks
+    DataUtils.checkProjectEntity(projId, entities.get(projKey), userEmail,
+                                 true, false);
+    if (!entities.containsKey(imgKey)) {
+      throw new IOException("Image not found.");
+    }
+
+    String tags = request.getParameter("tags");
+    List<String> newTags = null;
+    if (!DataUtils.isEmptyParameter(tags)) {
+      newTags =
+          DataUtils.withDuplicatesRemoved(DataUtils.parseCommaList(tags));
+    }
+    BlobPostReturn saved = save(projKey, imgKey, maskName, isCreateMode,
+                                mask, encoded, newTags, now);
+
+    response.setContentType("application/json");
+    response.getWriter().println(JsonUtils.GSON.toJson(saved));
+  }
+
+  /**
+   * Stores a mask's data and creates or updates the mask. The mask is read
+   * again in a transaction, so concurrent saves cannot take the same name
+   * or version or leave history that disagrees with the data. A created
+   * mask whose name is taken gets a timestamped name instead.
+   * Returns the saved mask's PNG URL and name.
+   * @param     {Key}           projKey
+   * @param     {Key}           imgKey
+   * @param     {String}        maskName
+   * @param     {boolean}       isCreateMode
+   * @param     {MaskBitmap}    mask
+   * @param     {byte[]}        encoded     mask, encoded
+   * @param     {List<String>}  newTags     null to keep the mask's tags
+   * @param     {String}        now
+   * @return    {BlobPostReturn}
+   */
+  static BlobPostReturn save(Key projKey, Key imgKey, String maskName,
+                             boolean isCreateMode, MaskBitmap mask,
+                             byte[] encoded, List<String> newTags,
+                             String now) throws IOException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key maskKey = BlobUtils.getAssetKey(DataUtils.MASK, imgKey, maskName);
+    String maskDataId = MaskStore.put(projKey, encoded);
+
+    String savedName = null;
+    long sizeChange = 0;
+    Map<String, Long> tagChanges = new HashMap<String, Long>();
+    ArrayList<Key> deletedKeys = new ArrayList<Key>();
+    Entity supersededMask = null;
+    try {
+      for (int attempt = 0;
+           savedName == null && attempt < TRANSACTION_ATTEMPTS; attempt++) {
+        Transaction txn = datastore.beginTransaction(
+            TransactionOptions.Builder.withXG(true));
+        try {
+          String name = maskName;
+          Key key = maskKey;
+          Entity maskEntity = lookup(datastore, txn, key);
+          if (isCreateMode) {
+            // Taken names are suffixed until one is free, so no mask is
+            // replaced by a create
+            for (int suffix = 0; maskEntity != null; suffix++) {
+              name = maskName + "-" + now + ((suffix == 0) ? "" : "-" + suffix);
+              key = BlobUtils.getAssetKey(DataUtils.MASK, imgKey, name);
+              maskEntity = lookup(datastore, txn, key);
+            }
+            maskEntity = new Entity(key);
+            maskEntity.setProperty("name", name);
+          } else if (maskEntity == null) {
+            throw new IOException("Image not found.");
+          }
+
+          // The old data is replaced, whether it was stored here or in
+          // Blobstore; the version history keeps what is needed to rebuild it
+          ArrayList<Key> oldKeys = new ArrayList<Key>();
+          String oldMaskDataId = (String)maskEntity.getProperty("maskdata");
+          MaskBitmap previous = null;
+          Entity oldMask = null;
+          if (oldMaskDataId != null) {
+            previous =
+                MaskBitmap.decode(MaskStore.get(oldMaskDataId).encoded);
+            oldMask = maskEntity.clone();
+          }
+          String oldBlobKey = (String)maskEntity.getProperty("blobkey");
+          if (oldBlobKey != null) {
+            oldKeys.add(BlobUtils.getBlobIndexKey(oldBlobKey));
+            oldKeys.addAll(Renditions.getKeys(oldBlobKey));
+            maskEntity.removeProperty("blobkey");
+          }
+
+          Long oldSize = (Long)maskEntity.getProperty("size");
+          long change = encoded.length - ((oldSize == null) ? 0 : oldSize);
+          setMaskData(maskEntity, mask, maskDataId, encoded, now);
+          Map<String, Long> changes = new HashMap<String, Long>();
+          if (newTags != null) {
+            changes = ProjectCounters.getTagChanges(
+                DataUtils.MASK, (List<String>)maskEntity.getProperty("tags"),
+                newTags);
+            maskEntity.setIndexedProperty("tags", newTags);
+          }
+
+          Entity versionEntity = MaskHistory.addVersion(
+              projKey, maskEntity, previous, mask, encoded, maskDataId, now);
+          datastore.put(txn, Arrays.asList(maskEntity, versionEntity));
+          txn.commit();
+          savedName = name;
+          sizeChange = change;
+          tagChanges = changes;
+          deletedKeys = oldKeys;
+          supersededMask = oldMask;
+        } catch (ConcurrentModificationException e) {
+          // Another write to the project got in first; try again
+        } finally {
+          if (txn.isActive()) {
+            txn.rollback();
+          }
+        }
+      }
+    } finally {
+      if (savedName == null) {
+        datastore.delete(MaskStore.getKeys(maskDataId));
+      }
+    }
+    if (savedName == null) {
+      throw new IOException("Mask is busy; try again.");
+    }
+    if (supersededMask != null) {
+      deletedKeys.addAll(MaskHistory.getSupersededKeys(supersededMask));
+    }
+    if (!deletedKeys.isEmpty()) {
+      datastore.delete(deletedKeys);
+    }
+
+    ProjectTimestamps.touch(projKey, now);
+    ProjectCounters.increment(projKey, 0, (isCreateMode) ? 1 : 0, sizeChange,
+                              now, tagChanges);
+
+    return new BlobPostReturn(MaskStore.getUrl(maskDataId, true), savedName);
+  }
+
+  /**
+   * Reads an entity in a transaction, or returns null if it does not exist.
+   * @param     {DatastoreService}  datastore
+   * @param     {Transaction}       txn
+   * @param     {Key}               key
+   * @return    {Entity}
+   */
+  private static Entity lookup(DatastoreService datastore, Transaction txn,
+                               Key key) {
+    try {
+      return datastore.get(txn, key);
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Sets a mask's properties for newly stored data.
+   * @param     {Entity}        maskEntity
+   * @param     {MaskBitmap}    mask
+   * @param     {String}        maskDataId
+   * @param     {byte[]}        encoded
+   * @param     {String}        now
+   * @return    {void}
+   */
+  static void setMaskData(Entity maskEntity, MaskBitmap mask,
+                          String maskDataId, byte[] encoded, String now) {
+    maskEntity.setProperty("maskdata", maskDataId);
+    maskEntity.setProperty("filetype", "png");
+    maskEntity.setUnindexedProperty("width", (long)mask.getWidth());
+    maskEntity.setUnindexedProperty("height", (long)mask.getHeight());
+    maskEntity.setUnindexedProperty("size", (long)encoded.length);
+    maskEntity.setProperty("utc", now);
+  }
+
+  /**
+   * Returns a mask's current data in the compact encoding, converting it
+   * if it is still a PNG in Blobstore.
+   * @param     {Entity}    maskEntity
+   * @return    {byte[]}
+   */
+  static byte[] getEncoded(Entity maskEntity) throws IOException {
+    String maskDataId = (String)maskEntity.getProperty("maskdata");
+    if (maskDataId != null) {
+      return MaskStore.get(maskDataId).encoded;
+    }
+    String blobKeyString = (String)maskEntity.getProperty("blobkey");
+    if (blobKeyString == null) {
+      throw new IOException("Mask not found.");
+    }
+    try (InputStream png =
+             new BlobstoreInputStream(new BlobKey(blobKeyString))) {
+      return MaskBitmap.fromPng(png).encode();
+    }
+  }
+
+  /**
+   * Reads the mask given by proj-id, parent-img and img-name.
+   * @param     {Key}                   projKey
+   * @param     {HttpServletRequest}    request
+   * @return    {Entity}
+   */
+  static Entity getMaskEntity(Key projKey, HttpServletRequest request)
+      throws IOException {
+    String parentImg = request.getParameter("parent-img");
+    String maskName = request.getParameter("img-name");
+    if (DataUtils.isEmptyParameter(parentImg) ||
+        DataUtils.isEmptyParameter(maskName)) {
+      throw new IOException("Mask not found.");
+    }
+    Key imgKey = BlobUtils.getAssetKey(DataUtils.IMAGE, projKey, parentImg);
+    try {
+      return DatastoreServiceFactory.getDatastoreService().get(
+          BlobUtils.getAssetKey(DataUtils.MASK, imgKey, maskName));
+    } catch (EntityNotFoundException e) {
+      throw new IOException("Mask not found.");
+    }
+  }
+
+  /**
+   * Parses a version number.
+   * @param     {String}    version
+   * @return    {long}
+   */
+  private static long parseVersion(String version) throws IOException {
+    try {
+      return Long.parseLong(version);
+    } catch (NumberFormatException e) {
+      throw new IOException("Version not found.");
+    }
+  }
+
+  /**
+   * Determines if the request's format parameter asks for a PNG rather than
+   * the compact encoding.
+   * @param     {HttpServletRequest}    request
+   * @return    {boolean}
+   */
+  static boolean isPngFormat(HttpServletRequest request) {
+    return "png".equals(request.getParameter("format"));
+  }
+
+  /**
+   * Writes encoded mask data as the response, converted to a PNG if asked.
+   * @param     {HttpServletResponse}   response
+   * @param     {byte[]}                encoded
+   * @param     {boolean}               asPng
+   * @return    {void}
+   */
+  static void writeMask(HttpServletResponse response, byte[] encoded,
+                        boolean asPng) throws IOException {
+    if (asPng) {
+      response.setContentType("image/png");
+      MaskBitmap.decode(encoded).writePng(response.getOutputStream());
+    } else {
+      response.setContentType("application/octet-stream");
+      response.setContentLength(encoded.length);
+      response.getOutputStream().write(encoded);
+    }
+  }
+}
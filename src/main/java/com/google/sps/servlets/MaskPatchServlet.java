@@ -0,0 +1,157 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Map;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Updates masks from patches of the pixels an edit added and removed, so
+ * saving a small edit uploads bytes in proportion to the edit.
+ * Patches apply to the stored data the editor loaded, so a save that
+ * another save has overtaken is rejected rather than merged.
+ */
+@WebServlet("/mask-patch")
+public class MaskPatchServlet extends HttpServlet {
+
+  /**
+   * Handles POST requests patching the mask given by proj-id, parent-img
+   * and img-name. The body is a MaskPatch, so parameters are given in the
+   * query string; base is the ID of the stored data the patch applies to,
+   * which must be the mask's current data.
+   * Responds with the mask's new PNG URL and name.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+    if (!userService.isUserLoggedIn()) {
+      response.sendRedirect("/");
+      return;
+    }
+
+    String parentImg = request.getParameter("parent-img");
+    String maskName = request.getParameter("img-name");
+    if (DataUtils.isEmptyParameter(parentImg) ||
+        DataUtils.isEmptyParameter(maskName)) {
+      throw new IOException("Mask not found.");
+    }
+    String base = request.getParameter("base");
+    if (DataUtils.isEmptyParameter(base)) {
+      throw new IOException("Base must be provided.");
+    }
+    byte[] patch = DataUtils.readBody(request, MaskStore.MAX_BYTES);
+
+    String userEmail = userService.getCurrentUser().getEmail();
+    String projId = request.getParameter("proj-id");
+    Key projKey = DataUtils.getProjectKey(projId);
+    Key imgKey = BlobUtils.getAssetKey(DataUtils.IMAGE, projKey, parentImg);
+    Key maskKey = BlobUtils.getAssetKey(DataUtils.MASK, imgKey, maskName);
+    Map<Key, Entity> entities =
+        datastore.get(Arrays.asList(projKey, maskKey));
+
+    // Editors can update masks
+    DataUtils.checkProjectEntity(projId, entities.get(projKey), userEmail,
+                                 true, false);
+    Entity maskEntity = entities.get(maskKey);
+    if (maskEntity == null) {
+      throw new IOException("Mask not found.");
+    }
+    checkBase(maskEntity, base);
+
+    MaskBitmap previous = MaskBitmap.decode(MaskStore.get(base).encoded);
+    MaskBitmap mask = previous.copy();
+    MaskPatch.apply(mask, patch);
+    byte[] encoded = mask.encode();
+    String maskDataId = MaskStore.put(projKey, encoded);
+
+    // The mask is read again in a transaction so only one save can replace
+    // a base and take the next version. Contention from other writes to the
+    // project is retried; only a changed base is a conflict
+    String now = Instant.now().toString();
+    long sizeChange = 0;
+    boolean committed = false;
+    Entity supersededMask = null;
+    try {
+      for (int attempt = 0;
+           !committed && attempt < MaskDataServlet.TRANSACTION_ATTEMPTS;
+           attempt++) {
+        Transaction txn = datastore.beginTransaction(
+            TransactionOptions.Builder.withXG(true));
+        try {
+          try {
+            maskEntity = datastore.get(txn, maskKey);
+          } catch (EntityNotFoundException e) {
+            throw new IOException("Mask not found.");
+          }
+          checkBase(maskEntity, base);
+          supersededMask = maskEntity.clone();
+          Long oldSize = (Long)maskEntity.getProperty("size");
+          sizeChange = encoded.length - ((oldSize == null) ? 0 : oldSize);
+          maskEntity.setProperty("maskdata", maskDataId);
+          maskEntity.setUnindexedProperty("size", (long)encoded.length);
+          maskEntity.setProperty("utc", now);
+          Entity versionEntity = MaskHistory.addVersion(
+              projKey, maskEntity, previous, mask, encoded, maskDataId, now);
+          datastore.put(txn, Arrays.asList(maskEntity, versionEntity));
+          txn.commit();
+          committed = true;
+        } catch (ConcurrentModificationException e) {
+          // Another write to the project got in first; try again
+        } finally {
+          if (txn.isActive()) {
+            txn.rollback();
+          }
+        }
+      }
+    } finally {
+      // Data no mask refers to is removed
+      if (!committed) {
+        datastore.delete(MaskStore.getKeys(maskDataId));
+      }
+    }
+    if (!committed) {
+      throw new IOException("Mask is busy; try again.");
+    }
+    datastore.delete(MaskHistory.getSupersededKeys(supersededMask));
+
+    ProjectTimestamps.touch(projKey, now);
+    ProjectCounters.increment(projKey, 0, 0, sizeChange, now);
+
+    response.setContentType("application/json");
+    response.getWriter().println(JsonUtils.GSON.toJson(
+        new BlobPostReturn(MaskStore.getUrl(maskDataId, true), maskName)));
+  }
+
+  /**
+   * Checks that a mask's current data is the base a patch applies to.
+   * @param     {Entity}    maskEntity
+   * @param     {String}    base
+   * @return    {void}
+   */
+  private static void checkBase(Entity maskEntity, String base)
+      throws IOException {
+    if (!base.equals(maskEntity.getProperty("maskdata"))) {
+      throw new IOException("Mask has changed since it was loaded.");
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Lists the versions of a mask kept by MaskHistory. Each version can be
+ * fetched from /mask-data by its number.
+ */
+@WebServlet("/mask-versions")
+public class MaskVersionServlet extends HttpServlet {
+
+  /**
+   * Handles GET requests for the versions of the mask given by proj-id,
+   * parent-img and img-name.
+   * Responds with JSON string of MaskVersionInfo objects, newest first.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+
+    if (!userService.isUserLoggedIn()) {
+      response.sendRedirect("/");
+      return;
+    }
+
+    String userEmail = userService.getCurrentUser().getEmail();
+    String projId = request.getParameter("proj-id");
+    Key projKey = DataUtils.checkProjectAccess(projId, userEmail, true, true);
+
+    Entity maskEntity = MaskDataServlet.getMaskEntity(projKey, request);
+
+    response.setContentType("application/json");
+    response.getWriter().println(
+        JsonUtils.GSON.toJson(MaskHistory.getVersions(maskEntity)));
+  }
+}
@@ -0,0 +1,52 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reports the progress of a project deletion to its owners.
+ */
+@WebServlet("/project-deletion")
+public class ProjectDeletionServlet extends HttpServlet {
+
+  /**
+   * Handles GET requests for the deletion status of proj-id.
+   * Responds with the status and the number of keys deleted so far.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+
+    // Must be logged in
+    if (!userService.isUserLoggedIn()) {
+      response.sendRedirect("/");
+      return;
+    }
+
+    String userEmail = userService.getCurrentUser().getEmail();
+
+    Key projKey;
+    try {
+      projKey = KeyFactory.stringToKey(request.getParameter("proj-id"));
+    } catch (Exception e) {
+      throw new IOException(
+          "Database error when trying to access this project.");
+    }
+
+    DeletionInfo status = ProjectDeletion.getStatus(projKey, userEmail);
+
+    response.setContentType("application/json");
+    response.getWriter().println(JsonUtils.GSON.toJson(status));
+  }
+}
@@ -0,0 +1,46 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Adds the name prefix index to projects stored without it, one batch of
+ * projects per request. Restricted to application admins.
+ */
+@WebServlet("/admin/index-project-names")
+public class ProjectNameIndexServlet extends HttpServlet {
+
+  /**
+   * Handles POST requests to index a batch of projects.
+   * Responds with the number of projects indexed and the cursor to pass as
+   * the cursor parameter for the next batch; null when finished.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+
+    // Must be logged in as an admin
+    if (!userService.isUserLoggedIn()) {
+      response.sendRedirect("/");
+      return;
+    }
+    if (!userService.isUserAdmin()) {
+      throw new IOException("Only admins can index projects.");
+    }
+
+    MigrationInfo progress =
+        ProjectNameIndex.indexBatch(request.getParameter("cursor"));
+
+    response.setContentType("application/json");
+    response.getWriter().println(JsonUtils.GSON.toJson(progress));
+  }
+}
@@ -3,6 +3,7 @@ package com.google.sps.servlets;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
@@ -12,16 +13,20 @@ import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
 import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.users.User;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -34,6 +39,14 @@ import javax.servlet.http.HttpServletResponse;
  */
 @WebServlet("/projects")
 public class ProjectServlet extends HttpServlet {
+  // ProjectInfo fields that keys-only and projection project queries can
+  // supply; project IDs are the keys
+  // Summaries are read from counters by key, so any query can supply them
+  private static final List<String> KEY_FIELDS =
+      Arrays.asList("projId", "summary");
+  private static final List<String> PROJECTED_FIELDS =
+      Arrays.asList("projId", "name", "timestamp", "summary");
+  private static final List<String> PROJECTION = Arrays.asList("utc", "name");
 
   /**
    * Handles POST requests for projects.
@@ -63,15 +76,22 @@ public class ProjectServlet extends HttpServlet {
     // Will be either a new entity for creation or an existing entity for
     // updating
     Entity projEntity = new Entity(DataUtils.PROJECT);
+    ProjectAcl oldAcl = null;
 
     if (!isCreateMode) {
       // Must be owner to update
       projEntity = DataUtils.getProjectEntity(projId, userEmail, false, false);
+      oldAcl = ProjectAcl.fromEntity(projEntity);
 
       // Delete overrides all other updates
       boolean delete = Boolean.parseBoolean(request.getParameter("delete"));
       if (delete) {
-        DataUtils.deleteProjectAndChildren(projEntity.getKey());
+        // Assets are removed in the background; the project leaves listings
+        // and access checks immediately
+        ProjectDeletion.start(projEntity);
+        DataUtils.cacheProjectAcl(projId,
+                                  ProjectAcl.tombstone(Instant.now().toString()));
+        ProjectVersions.bump(projEntity.getKey(), oldAcl);
         response.sendRedirect("/"); // TODO: should redirect to projects gallery
         return;
       }
@@ -86,10 +106,10 @@ public class ProjectServlet extends HttpServlet {
     // Set the project name if provided
     // If creating and nothing provided, set name to Untitled-{current UTC time}
     if (!DataUtils.isEmptyParameter(projName)) {
-      projEntity.setProperty("name", projName);
+      ProjectNameIndex.setName(projEntity, projName);
     } else {
       if (isCreateMode) {
-        projEntity.setProperty("name", "Untitled-" + now);
+        ProjectNameIndex.setName(projEntity, "Untitled-" + now);
       }
       // Don't do anything if updating and no name provided
     }
@@ -141,21 +161,31 @@ public class ProjectServlet extends HttpServlet {
     if (isCreateMode) {
       projEntity.setProperty("proj-id",
                              KeyFactory.keyToString(datastore.put(projEntity)));
+      ProjectCounters.initialize(projEntity.getKey());
     }
 
     datastore.put(projEntity);
+    ProjectAcl acl = ProjectAcl.fromEntity(projEntity);
+    DataUtils.cacheProjectAcl(KeyFactory.keyToString(projEntity.getKey()), acl);
+    // Listings the project leaves change as well as those it is in
+    if (oldAcl != null) {
+      ProjectVersions.bumpListings(oldAcl);
+    }
+    ProjectVersions.bump(projEntity.getKey(), acl);
 
     // Return the project ID
     response.setContentType("application/json");
-    Gson gson = new GsonBuilder().setPrettyPrinting().create();
     String jsonProjId =
-        gson.toJson(KeyFactory.keyToString(projEntity.getKey()));
+        JsonUtils.GSON.toJson(KeyFactory.keyToString(projEntity.getKey()));
     response.getWriter().println(jsonProjId);
   }
 
   /**
    * Handles GET requests for projects.
    * Responds with JSON string of ProjectInfo objects upon successful GET.
+   * If limit or cursor is provided, responds with one page of ProjectInfo
+   * objects and the cursor for the next page instead.
+   * If fields is provided, each ProjectInfo has only the listed fields.
    * @param     {HttpServletRequest}    request
    * @param     {HttpServletResponse}   response
    * @return    {void}
@@ -179,7 +209,27 @@ public class ProjectServlet extends HttpServlet {
 
     // Will be either a single project based on project ID or one or more
     // projects from a query based on various parameters
-    ArrayList<Entity> projects = new ArrayList<Entity>();
+    Iterable<Entity> projects = new ArrayList<Entity>();
+
+    // Paging is opt-in; without limit or cursor every project is returned
+    boolean isPaged = DataUtils.isPagedRequest(request);
+    String nextCursor = null;
+
+    Set<String> fields = DataUtils.parseFields(request);
+
+    // Unchanged results are answered before reading any project; access to
+    // a single project is checked first from the cached ACL
+    String etag;
+    if (!DataUtils.isEmptyParameter(projId)) {
+      etag = ProjectVersions.getProjectETag(
+          DataUtils.checkProjectAccess(projId, userEmail, true, true),
+          request);
+    } else {
+      etag = ProjectVersions.getListingETag(request, userEmail);
+    }
+    if (ProjectVersions.isNotModified(request, response, etag)) {
+      return;
+    }
 
     // Searching for one project with a project ID
     if (!DataUtils.isEmptyParameter(projId)) {
@@ -187,7 +237,7 @@ public class ProjectServlet extends HttpServlet {
       // projects
       Entity projEntity =
           DataUtils.getProjectEntity(projId, userEmail, true, true);
-      projects.add(projEntity);
+      projects = Arrays.asList(projEntity);
     }
 
     // Searching for multiple projects with various parameters
@@ -199,13 +249,13 @@ public class ProjectServlet extends HttpServlet {
       }
       sort = sort.toLowerCase();
 
-      Query projQuery =
-          new Query(DataUtils.PROJECT)
-              .addSort("utc", sort.equals(DataUtils.ASCENDING_SORT)
-                                  ? Query.SortDirection.ASCENDING
-                                  : Query.SortDirection.DESCENDING);
+      Query.SortDirection sortDirection =
+          sort.equals(DataUtils.ASCENDING_SORT)
+              ? Query.SortDirection.ASCENDING
+              : Query.SortDirection.DESCENDING;
 
       // Add relevant filters to array based on parameters
+      // The role filter, if any, is always first
       ArrayList<Filter> allFilters = new ArrayList<Filter>();
 
       String role = request.getParameter("role");
@@ -225,7 +275,8 @@ public class ProjectServlet extends HttpServlet {
           CompositeFilterOperator.OR, Arrays.asList(ownFilter, editFilter));
 
       // By default, filter to only projects the User owns or edits
-      if (DataUtils.isEmptyParameter(role)) {
+      boolean isOwnOrEdit = DataUtils.isEmptyParameter(role);
+      if (isOwnOrEdit) {
         allFilters.add(ownOrEditFilter);
       } else if (role.toLowerCase().equals("owner")) {
         allFilters.add(ownFilter);
@@ -243,7 +294,7 @@ public class ProjectServlet extends HttpServlet {
       }
 
       // Don't filter by search term if not provided
-      // No partial matching/regex
+      // No partial matching/regex; see /project-suggestions for typeahead
       String searchTerm = request.getParameter("search-term");
       if (!DataUtils.isEmptyParameter(searchTerm)) {
         Filter searchFilter = new FilterPredicate("name", FilterOperator.EQUAL,
@@ -251,24 +302,100 @@ public class ProjectServlet extends HttpServlet {
         allFilters.add(searchFilter);
       }
 
-      // A composite filter requres more than one filter
-      if (allFilters.size() == 1) { 
-        projQuery.setFilter(allFilters.get(0));
+      // Only read what the requested fields need
+      // Owned or edited projects are merged by utc in memory, so they cannot
+      // be keys-only, and name searches have no projection indexes
+      boolean isMerged = isPaged && isOwnOrEdit;
+      List<String> keyFields = (isOwnOrEdit) ? null : KEY_FIELDS;
+      List<String> projectedFields =
+          DataUtils.isEmptyParameter(searchTerm) ? PROJECTED_FIELDS : null;
+
+      if (isMerged) {
+        // OR queries cannot be resumed from a cursor, so owned and edited
+        // projects are paged with separate queries that each use their
+        // owners/editors composite index, then merged
+        ArrayList<Filter> ownFilters = new ArrayList<Filter>(allFilters);
+        ownFilters.set(0, ownFilter);
+        ArrayList<Filter> editFilters = new ArrayList<Filter>(allFilters);
+        editFilters.set(0, editFilter);
+
+        Query ownQuery = getProjectQuery(sortDirection, ownFilters);
+        Query editQuery = getProjectQuery(sortDirection, editFilters);
+        DataUtils.applyFields(ownQuery, fields, keyFields, projectedFields,
+                              PROJECTION);
+        DataUtils.applyFields(editQuery, fields, keyFields, projectedFields,
+                              PROJECTION);
+        PageInfo<Entity> page = DataUtils.getMergedPage(
+            Arrays.asList(ownQuery, editQuery), request);
+        projects = page.results;
+        nextCursor = page.nextCursor;
+      } else if (isPaged) {
+        Query projQuery = getProjectQuery(sortDirection, allFilters);
+        DataUtils.applyFields(projQuery, fields, keyFields, projectedFields,
+                              PROJECTION);
+        PreparedQuery accessibleProjects = datastore.prepare(projQuery);
+        FetchOptions pageOptions = DataUtils.getPageOptions(request);
+        QueryResultList<Entity> page;
+        try {
+          page = accessibleProjects.asQueryResultList(pageOptions);
+        } catch (IllegalArgumentException e) {
+          // Cursor was created by a query with different parameters
+          throw new IOException("Invalid cursor.");
+        }
+        projects = page;
+        nextCursor = DataUtils.getNextCursor(page, pageOptions);
       } else {
-        projQuery.setFilter(
-            new CompositeFilter(CompositeFilterOperator.AND, allFilters));
+        Query projQuery = getProjectQuery(sortDirection, allFilters);
+        DataUtils.applyFields(projQuery, fields, keyFields, projectedFields,
+                              PROJECTION);
+        PreparedQuery accessibleProjects = datastore.prepare(projQuery);
+        projects = accessibleProjects.asIterable();
       }
+    }
 
-      PreparedQuery accessibleProjects = datastore.prepare(projQuery);
-      for (Entity entity : accessibleProjects.asIterable()) {
-        projects.add(entity);
+    // Parse Entities to custom objects, writing them in batches so each
+    // batch's summary counters are read with one batch get
+    PrintWriter out = response.getWriter();
+    JsonWriter jsonWriter = JsonUtils.beginResults(out, isPaged);
+    ArrayList<Entity> batch = new ArrayList<Entity>();
+    for (Entity entity : projects) {
+      batch.add(entity);
+      if (batch.size() == DataUtils.DEFAULT_PAGE_SIZE) {
+        writeProjects(jsonWriter, batch, fields);
+        batch.clear();
       }
     }
+    writeProjects(jsonWriter, batch, fields);
+    JsonUtils.endResults(jsonWriter, out, isPaged, nextCursor);
+  }
 
-    // Parse Entities to custom objects
-    ArrayList<ProjectInfo> projectInfoList = new ArrayList<ProjectInfo>();
-    for (Entity entity : projects) {
+  /**
+   * Writes projects along with their summary counters, if requested.
+   * @param     {JsonWriter}    jsonWriter
+   * @param     {List<Entity>}  batch
+   * @param     {Set<String>}   fields      requested fields; null if all
+   * @return    {void}
+   */
+  private static void writeProjects(JsonWriter jsonWriter, List<Entity> batch,
+                                    Set<String> fields) throws IOException {
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    Map<Key, ProjectSummary> summaries = new HashMap<Key, ProjectSummary>();
+    if (fields == null || fields.contains("summary")) {
+      ArrayList<Key> projKeys = new ArrayList<Key>();
+      for (Entity entity : batch) {
+        projKeys.add(entity.getKey());
+      }
+      summaries = ProjectCounters.getSummaries(projKeys);
+    }
+
+    for (Entity entity : batch) {
       String curProjId = (String)entity.getProperty("proj-id");
+      if (curProjId == null) {
+        curProjId = KeyFactory.keyToString(entity.getKey());
+      }
       String curProjName = (String)entity.getProperty("name");
       String timestamp = (String)entity.getProperty("utc");
       String curVis = (String)entity.getProperty("visibility");
@@ -276,13 +403,35 @@ public class ProjectServlet extends HttpServlet {
           (ArrayList<String>)entity.getProperty("owners");
       ArrayList<String> projEditors =
           (ArrayList<String>)entity.getProperty("editors");
-      projectInfoList.add(new ProjectInfo(curProjId, curProjName, timestamp,
-                                          curVis, projOwners, projEditors));
+      ProjectInfo projInfo = new ProjectInfo(curProjId, curProjName, timestamp,
+                                             curVis, projOwners, projEditors);
+      projInfo.summary = summaries.get(entity.getKey());
+      if (fields == null) {
+        JsonUtils.PROJECT_ADAPTER.write(jsonWriter, projInfo);
+      } else {
+        JsonUtils.writeFields(jsonWriter, projInfo, fields);
+      }
     }
+  }
 
-    Gson gson =
-        new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
-    String jsonProjects = gson.toJson(projectInfoList);
-    response.getWriter().println(jsonProjects);
+  /**
+   * Builds a project query sorted by last-modified time.
+   * @param     {Query.SortDirection}   sortDirection
+   * @param     {List<Filter>}          filters         combined with AND
+   * @return    {Query}
+   */
+  private static Query getProjectQuery(Query.SortDirection sortDirection,
+                                       List<Filter> filters) {
+    Query projQuery =
+        new Query(DataUtils.PROJECT).addSort("utc", sortDirection);
+
+    // A composite filter requres more than one filter
+    if (filters.size() == 1) {
+      projQuery.setFilter(filters.get(0));
+    } else if (filters.size() > 1) {
+      projQuery.setFilter(
+          new CompositeFilter(CompositeFilterOperator.AND, filters));
+    }
+    return projQuery;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,71 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Suggests projects the User owns or edits as a name is typed.
+ */
+@WebServlet("/project-suggestions")
+public class ProjectSuggestionServlet extends HttpServlet {
+  private static final Set<String> FIELDS =
+      new LinkedHashSet<String>(Arrays.asList("projId", "name"));
+
+  /**
+   * Handles GET requests for projects matching the partial name q.
+   * Responds with JSON string of ProjectInfo objects holding only the
+   * project ID and name, at most limit of them.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    response.setContentType("application/json");
+
+    UserService userService = UserServiceFactory.getUserService();
+
+    // Must be logged in
+    if (!userService.isUserLoggedIn()) {
+      response.sendRedirect("/");
+      return;
+    }
+
+    String userEmail = userService.getCurrentUser().getEmail();
+
+    String term = request.getParameter("q");
+    if (DataUtils.isEmptyParameter(term)) {
+      throw new IOException("Search term must be provided.");
+    }
+
+    int limit = ProjectNameIndex.DEFAULT_SUGGESTIONS;
+    if (!DataUtils.isEmptyParameter(request.getParameter("limit"))) {
+      limit = Math.min(DataUtils.getPageLimit(request),
+                       ProjectNameIndex.MAX_SUGGESTIONS);
+    }
+
+    PrintWriter out = response.getWriter();
+    JsonWriter jsonWriter = JsonUtils.beginResults(out, false);
+    for (Entity project : ProjectNameIndex.suggest(userEmail, term, limit)) {
+      ProjectInfo projInfo =
+          new ProjectInfo(KeyFactory.keyToString(project.getKey()),
+                          (String)project.getProperty("name"), null, null,
+                          null, null);
+      JsonUtils.writeFields(jsonWriter, projInfo, FIELDS);
+    }
+    JsonUtils.endResults(jsonWriter, out, false, null);
+  }
+}
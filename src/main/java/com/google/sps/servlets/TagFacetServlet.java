@@ -0,0 +1,48 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Lists the tags used in a project with the number of images and masks
+ * carrying each, read from maintained counts rather than the assets.
+ */
+@WebServlet("/tag-facets")
+public class TagFacetServlet extends HttpServlet {
+
+  /**
+   * Handles GET requests for the tag counts of proj-id.
+   * Responds with JSON string of a TagFacets object.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    response.setContentType("application/json");
+
+    UserService userService = UserServiceFactory.getUserService();
+
+    // Must be logged in
+    if (!userService.isUserLoggedIn()) {
+      response.sendRedirect("/");
+      return;
+    }
+
+    String userEmail = userService.getCurrentUser().getEmail();
+
+    // Same access as listing the project's images
+    String projId = request.getParameter("proj-id");
+    Key projKey = DataUtils.checkProjectAccess(projId, userEmail, true, true);
+
+    TagFacets facets = ProjectCounters.getTagFacets(projKey);
+    response.getWriter().println(JsonUtils.GSON.toJson(facets));
+  }
+}
@@ -0,0 +1,80 @@
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves magic wand previews for every tolerance from a seed pixel at
+ * once, so the editor's tolerance slider needs no further fills.
+ * Responses are validated by the image's blobkey and the seed, but the URL
+ * names the image rather than its blob, so they are revalidated on every
+ * use in case the image was replaced.
+ */
+@WebServlet("/tolerance-map")
+public class ToleranceMapServlet extends HttpServlet {
+
+  /**
+   * Handles GET requests for the map from the pixel at x and y of the
+   * image given by proj-id and img-name, as an encoded ToleranceMap.
+   * If tolerance is given, responds with the selection at that tolerance
+   * instead, as compact mask data, or as a PNG if format is png.
+   * @param     {HttpServletRequest}    request
+   * @param     {HttpServletResponse}   response
+   * @return    {void}
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    UserService userService = UserServiceFactory.getUserService();
+
+    if (!userService.isUserLoggedIn()) {
+      response.sendRedirect("/");
+      return;
+    }
+
+    String imgName = request.getParameter("img-name");
+    if (DataUtils.isEmptyParameter(imgName)) {
+      throw new IOException("Image not found.");
+    }
+    int x = MagicWandServlet.parseInt(request.getParameter("x"),
+                                      "Invalid seed.");
+    int y = MagicWandServlet.parseInt(request.getParameter("y"),
+                                      "Invalid seed.");
+    String tolerance = request.getParameter("tolerance");
+    boolean asPng = MaskDataServlet.isPngFormat(request);
+
+    // Check the user is either an owner, editor, or project is public
+    String userEmail = userService.getCurrentUser().getEmail();
+    String projId = request.getParameter("proj-id");
+    Key projKey = DataUtils.checkProjectAccess(projId, userEmail, true, true);
+    String blobKeyString = MagicWandServlet.getImageBlobKey(projKey, imgName);
+
+    String etag = "\"" + blobKeyString + "-" + x + "-" + y +
+        ((DataUtils.isEmptyParameter(tolerance)) ? "" : "-" + tolerance) +
+        ((asPng) ? "-png" : "") + "\"";
+    response.setHeader("ETag", etag);
+    response.setHeader("Cache-Control", "private, no-cache");
+    if (DataUtils.matchesETag(request, etag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    ToleranceMap map = ToleranceMap.get(blobKeyString, x, y);
+    if (DataUtils.isEmptyParameter(tolerance)) {
+      byte[] encoded = map.encode();
+      response.setContentType("application/octet-stream");
+      response.setContentLength(encoded.length);
+      response.getOutputStream().write(encoded);
+    } else {
+      MaskBitmap mask = map.getMask(
+          MagicWandServlet.parseInt(tolerance, "Invalid tolerance."));
+      MaskDataServlet.writeMask(response, mask.encode(), asPng);
+    }
+  }
+}
@@ -13,6 +13,7 @@ import { Coordinate } from './Coordinate';
 import * as $ from 'jquery';
 import { MaskAction, Action, Tool } from './mask-action';
 import { MaskControllerService } from './mask-controller.service';
+import { MaskPatchService, SavedMask } from './mask-patch.service';
 import { PreviewMask } from './magic-wand.service';
 import { Zoom, UndoRedo, SwitchImage } from '../enums';
 
@@ -31,6 +32,7 @@ export class EditorComponent implements OnInit {
     private postBlobsService: PostBlobsService,
     private fetchImagesService: FetchImagesService,
     private maskControllerService: MaskControllerService,
+    private maskPatchService: MaskPatchService,
     private snackBar: MatSnackBar
   ) {
     //  Tells Router to not reuse route so when url is changed,
@@ -514,29 +516,57 @@ export class EditorComponent implements OnInit {
     this.initMaskForm();
   }
 
+  /**
+   *  Saves the mask over the one it was loaded from. Masks stored compactly
+   *    are patched with only the pixels changed since the last save; others
+   *    are uploaded whole once, after which they are stored compactly.
+   *  Reloads the editor with the saved mask's new URL.
+   */
   async onClickSaveButton(): Promise<void> {
-    await this.getMaskBlob();
-
-    let imageBlob = new ImageBlob(
-      this.projectId,
-      /*imageName=*/ this.imgName,
-      /*mode=*/ 'update',
-      /*image=*/ this.blobMask,
-      /*parentImageName=*/ this.parentName,
-      /*newImageName=*/ undefined,
-      /*tags=*/ undefined
-    );
-
-    this.postBlobsService.buildForm(
-      this.formData,
-      imageBlob,
-      this.parentName + 'Mask.png'
-    );
+    let base = MaskPatchService.getBase(this.maskUrl);
+    let savedMask: SavedMask;
+    try {
+      if (base) {
+        let changes = this.maskControllerService.getUnsavedChanges();
+        savedMask = await this.maskPatchService.postPatch(
+          this.projectId,
+          this.parentName,
+          this.imgName,
+          base,
+          MaskPatchService.encodePatch(
+            changes.added,
+            changes.removed,
+            this.maskImageData.width,
+            this.maskImageData.height
+          )
+        );
+      } else {
+        await this.getMaskBlob();
+        savedMask = await this.maskPatchService.postMask(
+          this.projectId,
+          this.parentName,
+          this.imgName,
+          this.blobMask
+        );
+      }
+    } catch (err) {
+      console.log(err);
+      window.alert('Mask could not be saved. Reload to see the latest mask.');
+      return;
+    }
 
     this.maskControllerService.save();
-
-    //  Reset form values
-    this.formData = new FormData();
+    window.alert('Mask was updated!');
+    this.router.navigate([
+      '/editor',
+      this.projectId,
+      this.parentName,
+      this.imageUrl,
+      this.imgName,
+      savedMask.url,
+      this.index,
+      this.maskIndex,
+    ]);
   }
   /**
    *  Gets current mask's url and sets the mask as a Blob to be uploaded to server.
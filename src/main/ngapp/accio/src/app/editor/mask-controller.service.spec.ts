@@ -127,4 +127,21 @@ describe('MaskController', () => {
     expect(maskController.isSaved()).toEqual(false);
     expect(maskController.getMask()).toEqual(new Set([1, 2, 3, 4, 5, 6, 7]));
   });
+  it('should return changes since the last save', () => {
+    maskController.do(
+      new MaskAction(Action.ADD, Tool.MAGIC_WAND, new Set([5, 6]))
+    );
+    maskController.save();
+    maskController.do(
+      new MaskAction(Action.ADD, Tool.PAINTBRUSH, new Set([7]))
+    );
+    maskController.do(
+      new MaskAction(Action.SUBTRACT, Tool.ERASER, new Set([1, 7])),
+      new Set([1, 2, 3, 4, 5, 6, 7])
+    );
+    expect(maskController.getUnsavedChanges()).toEqual({
+      added: new Set([]),
+      removed: new Set([1]),
+    });
+  });
 });
@@ -41,6 +41,17 @@ export class MaskControllerService {
     );
   }
 
+  /**
+   * Returns the pixels added to and removed from the mask since it was last
+   * saved, however the history was moved through since.
+   */
+  public getUnsavedChanges(): { added: Set<number>; removed: Set<number> } {
+    return {
+      added: SetOperator.difference(this.mask, this.savedMask),
+      removed: SetOperator.difference(this.savedMask, this.mask),
+    };
+  }
+
   /**
    * Sets the current position in history as the saved position.
    * Should be called after updating the mask in the database.
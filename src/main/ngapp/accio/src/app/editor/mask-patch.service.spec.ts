@@ -0,0 +1,35 @@
+import { TestBed } from '@angular/core/testing';
+import { HttpClientTestingModule } from '@angular/common/http/testing';
+
+import { MaskPatchService } from './mask-patch.service';
+
+describe('MaskPatchService', () => {
+  let service: MaskPatchService;
+
+  beforeEach(() => {
+    TestBed.configureTestingModule({ imports: [HttpClientTestingModule] });
+    service = TestBed.inject(MaskPatchService);
+  });
+
+  it('should be created', () => {
+    expect(service).toBeTruthy();
+  });
+
+  it('should encode runs of pixels', () => {
+    // Pixels 1, 2 and 5 of a 4x2 mask
+    const mask = MaskPatchService.encodeMask(new Set([20, 4, 8]), 4, 2);
+    expect(mask).toEqual([1, 4, 2, 1, 2, 2, 1, 2]);
+  });
+
+  it('should prefix a patch with the length of its added pixels', () => {
+    const patch = MaskPatchService.encodePatch(new Set([0]), new Set(), 2, 1);
+    expect(Array.from(patch)).toEqual([6, 1, 2, 1, 0, 1, 1, 1, 2, 1, 2]);
+  });
+
+  it('should find the base of compact masks only', () => {
+    expect(MaskPatchService.getBase('/mask-data?id=abc&format=png')).toBe(
+      'abc'
+    );
+    expect(MaskPatchService.getBase('/blob-host?blobkey=abc')).toBeNull();
+  });
+});
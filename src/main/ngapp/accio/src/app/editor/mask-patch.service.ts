@@ -0,0 +1,151 @@
+import { Injectable } from '@angular/core';
+import { HttpClient } from '@angular/common/http';
+
+const RUNS = 1;
+const MASK_DATA_URL = '/mask-data?id=';
+
+/** The URL and name of a mask after a successful save. */
+export interface SavedMask {
+  url: string;
+  name: string;
+}
+
+/**
+ * Saves masks in the server's compact mask format, sending only the pixels
+ * changed since the last save once the mask is stored compactly.
+ * Mask sets hold the RGBA offsets of pixels, so offset / 4 is the pixel
+ * index.
+ */
+@Injectable({
+  providedIn: 'root',
+})
+export class MaskPatchService {
+  constructor(private http: HttpClient) {}
+
+  /**
+   * Returns the ID of the stored data a mask URL refers to, or null if the
+   * mask is not stored compactly and must be uploaded whole.
+   * @param     {string}    maskUrl
+   * @return    {string}
+   */
+  static getBase(maskUrl: string): string {
+    if (!maskUrl || !maskUrl.startsWith(MASK_DATA_URL)) {
+      return null;
+    }
+    return maskUrl.substring(MASK_DATA_URL.length).split('&')[0];
+  }
+
+  /**
+   * Encodes a set of pixels as runs of clear and set pixels.
+   * @param     {Set<number>}   pixels    RGBA offsets
+   * @param     {number}        width
+   * @param     {number}        height
+   * @return    {Array<number>}
+   */
+  static encodeMask(
+    pixels: Set<number>,
+    width: number,
+    height: number
+  ): Array<number> {
+    let indices = Int32Array.from(pixels, (offset) => offset / 4).sort();
+    let bytes: Array<number> = [RUNS];
+    MaskPatchService.writeVarint(bytes, width);
+    MaskPatchService.writeVarint(bytes, height);
+    let position = 0;
+    for (let i = 0; i < indices.length; ) {
+      let start = indices[i];
+      let end = start + 1;
+      while (++i < indices.length && indices[i] === end) {
+        end++;
+      }
+      MaskPatchService.writeVarint(bytes, start - position);
+      MaskPatchService.writeVarint(bytes, end - start);
+      position = end;
+    }
+    if (position < width * height) {
+      MaskPatchService.writeVarint(bytes, width * height - position);
+    }
+    return bytes;
+  }
+
+  /**
+   * Encodes a patch of added and removed pixels.
+   * @param     {Set<number>}   added     RGBA offsets
+   * @param     {Set<number>}   removed   RGBA offsets
+   * @param     {number}        width
+   * @param     {number}        height
+   * @return    {Uint8Array}
+   */
+  static encodePatch(
+    added: Set<number>,
+    removed: Set<number>,
+    width: number,
+    height: number
+  ): Uint8Array {
+    let addedBytes = MaskPatchService.encodeMask(added, width, height);
+    let bytes: Array<number> = [];
+    MaskPatchService.writeVarint(bytes, addedBytes.length);
+    return Uint8Array.from(
+      bytes.concat(
+        addedBytes,
+        MaskPatchService.encodeMask(removed, width, height)
+      )
+    );
+  }
+
+  /**
+   * Applies a patch to the stored data a mask was loaded from.
+   * Fails if the mask has been saved since.
+   */
+  postPatch(
+    projectId: string,
+    parentName: string,
+    maskName: string,
+    base: string,
+    patch: Uint8Array
+  ): Promise<SavedMask> {
+    return this.http
+      .post<SavedMask>('/mask-patch', new Blob([patch]), {
+        params: {
+          'proj-id': projectId,
+          'parent-img': parentName,
+          'img-name': maskName,
+          base: base,
+        },
+        headers: { 'Content-Type': 'application/octet-stream' },
+      })
+      .toPromise();
+  }
+
+  /**
+   * Replaces a mask's data with a whole PNG, which the server stores
+   * compactly so later saves can be patches.
+   */
+  postMask(
+    projectId: string,
+    parentName: string,
+    maskName: string,
+    png: Blob
+  ): Promise<SavedMask> {
+    return this.http
+      .post<SavedMask>('/mask-data', png, {
+        params: {
+          'proj-id': projectId,
+          'parent-img': parentName,
+          'img-name': maskName,
+          mode: 'update',
+          format: 'png',
+        },
+        headers: { 'Content-Type': 'image/png' },
+      })
+      .toPromise();
+  }
+
+  private static writeVarint(bytes: Array<number>, value: number): void {
+    while (value > 0x7f) {
+      bytes.push((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    bytes.push(value);
+  }
+}
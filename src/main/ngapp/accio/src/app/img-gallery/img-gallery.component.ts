@@ -11,6 +11,7 @@ import { MatDialog, MatDialogRef, MAT_DIALOG_DATA } from '@angular/material/dial
 
 export interface StoredImage {
   url: string,
+  thumbnail: string,
   name: string,
   type: string,
   utc: string,
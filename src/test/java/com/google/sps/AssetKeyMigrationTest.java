@@ -0,0 +1,86 @@
+package com.google.sps.servlets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class AssetKeyMigrationTest {
+
+  private Key projKey;
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    projKey = datastore.put(new Entity(DataUtils.PROJECT, 123));
+
+    Entity imgEntity = new Entity(DataUtils.IMAGE, 456, projKey);
+    imgEntity.setProperty("name", "Image0");
+    Entity imgEntity2 = new Entity(DataUtils.IMAGE, 789, projKey);
+    imgEntity2.setProperty("name", "Image0");
+    datastore.put(Arrays.asList(imgEntity, imgEntity2));
+
+    Entity maskEntity = new Entity(DataUtils.MASK, 135, imgEntity.getKey());
+    maskEntity.setProperty("name", "Mask0");
+    maskEntity.setProperty("blobkey", "ghi");
+    datastore.put(maskEntity);
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  /**
+   * Every image and mask moves to a key named after it, and colliding names
+   * get the old ID appended.
+   */
+  @Test
+  public void migrateAll() throws IOException, EntityNotFoundException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    MigrationInfo progress = AssetKeyMigration.migrateBatch(null);
+    assertEquals(2, progress.migrated);
+    assertNull(progress.nextCursor);
+
+    Entity image =
+        datastore.get(BlobUtils.getAssetKey(DataUtils.IMAGE, projKey, "Image0"));
+    Entity image2 = datastore.get(
+        BlobUtils.getAssetKey(DataUtils.IMAGE, projKey, "Image0-789"));
+    assertEquals("Image0-789", image2.getProperty("name"));
+    Entity mask = datastore.get(
+        BlobUtils.getAssetKey(DataUtils.MASK, image.getKey(), "Mask0"));
+    assertEquals("ghi", mask.getProperty("blobkey"));
+    assertEquals(
+        2, datastore.prepare(new Query(DataUtils.IMAGE)).countEntities());
+    assertEquals(
+        1, datastore.prepare(new Query(DataUtils.MASK)).countEntities());
+  }
+
+  /**
+   * Running the migration again changes nothing.
+   */
+  @Test
+  public void migrateIdempotent() throws IOException {
+    AssetKeyMigration.migrateBatch(null);
+    assertEquals(0, AssetKeyMigration.migrateBatch(null).migrated);
+  }
+}
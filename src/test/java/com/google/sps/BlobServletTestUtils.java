@@ -7,12 +7,15 @@ import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
 
 public final class BlobServletTestUtils {
   private static final Gson gson =
-      new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+      new GsonBuilder().disableHtmlEscaping().create();
 
   // Image objects
   private static final MaskInfo Mask0 = new MaskInfo(
@@ -22,28 +25,55 @@ public final class BlobServletTestUtils {
       "/blob-host?blobkey=jkl", "Mask1", "png", "2020-08-12T05:39:02.383Z",
       new ArrayList<String>(Arrays.asList("1", "one")));
 
+  private static final MaskInfo Mask2 = new MaskInfo(
+      "/blob-host?blobkey=mno", "Mask2", "png", "2020-08-12T05:39:02.385Z",
+      new ArrayList<String>(Arrays.asList("2", "two")));
+
   private static final ImageInfo Image0 = new ImageInfo(
-      "/blob-host?blobkey=abc", "Image0", "png", "2020-08-12T05:39:02.383Z",
+      "/blob-host?blobkey=abc",
+      "/blob-host?blobkey=abc&size=256", "Image0",
+      "png", "2020-08-12T05:39:02.383Z",
       new ArrayList<String>(Arrays.asList("0", "zero")),
       new ArrayList<MaskInfo>());
   private static final ImageInfo Image1 = new ImageInfo(
-      "/blob-host?blobkey=def", "Image1", "png", "2020-08-12T05:39:02.384Z",
+      "/blob-host?blobkey=def",
+      "/blob-host?blobkey=def&size=256", "Image1",
+      "png", "2020-08-12T05:39:02.384Z",
       new ArrayList<String>(Arrays.asList("1", "one")),
       new ArrayList<MaskInfo>());
   private static final ImageInfo Image0WithMasks = new ImageInfo(
-      "/blob-host?blobkey=abc", "Image0", "png", "2020-08-12T05:39:02.383Z",
+      "/blob-host?blobkey=abc",
+      "/blob-host?blobkey=abc&size=256", "Image0",
+      "png", "2020-08-12T05:39:02.383Z",
       new ArrayList<String>(Arrays.asList("0", "zero")),
       new ArrayList<MaskInfo>(Arrays.asList(Mask0, Mask1)));
+  private static final ImageInfo Image1WithMasks = new ImageInfo(
+      "/blob-host?blobkey=def",
+      "/blob-host?blobkey=def&size=256", "Image1",
+      "png", "2020-08-12T05:39:02.384Z",
+      new ArrayList<String>(Arrays.asList("1", "one")),
+      new ArrayList<MaskInfo>(Arrays.asList(Mask2)));
   private static final ImageInfo Image0WithMasksSortAsc = new ImageInfo(
-      "/blob-host?blobkey=abc", "Image0", "png", "2020-08-12T05:39:02.383Z",
+      "/blob-host?blobkey=abc",
+      "/blob-host?blobkey=abc&size=256", "Image0",
+      "png", "2020-08-12T05:39:02.383Z",
       new ArrayList<String>(Arrays.asList("0", "zero")),
       new ArrayList<MaskInfo>(Arrays.asList(Mask1, Mask0)));
   private static final ImageInfo Image0MaskName = new ImageInfo(
-      "/blob-host?blobkey=abc", "Image0", "png", "2020-08-12T05:39:02.383Z",
+      "/blob-host?blobkey=abc",
+      "/blob-host?blobkey=abc&size=256", "Image0",
+      "png", "2020-08-12T05:39:02.383Z",
       new ArrayList<String>(Arrays.asList("0", "zero")),
       new ArrayList<MaskInfo>(Arrays.asList(Mask0)));
 
   // Expected JSON strings for GET tests
+  public static final String expectedNameFields =
+      "[{\"name\":\"Image1\"},{\"name\":\"Image0\"}]\n";
+  public static final String expectedProjectedFields =
+      "[{\"url\":\"/blob-host?blobkey=def\",\"name\":\"Image1\"," +
+      "\"utc\":\"2020-08-12T05:39:02.384Z\"}," +
+      "{\"url\":\"/blob-host?blobkey=abc\",\"name\":\"Image0\"," +
+      "\"utc\":\"2020-08-12T05:39:02.383Z\"}]\n";
   public static final String expectedNoFilters =
       gson.toJson(new ArrayList<ImageInfo>(Arrays.asList(Image1, Image0))) +
       "\n";
@@ -51,6 +81,10 @@ public final class BlobServletTestUtils {
       gson.toJson(
           new ArrayList<ImageInfo>(Arrays.asList(Image1, Image0WithMasks))) +
       "\n";
+  public static final String expectedMasksGroupedByImage =
+      gson.toJson(new ArrayList<ImageInfo>(
+          Arrays.asList(Image1WithMasks, Image0WithMasks))) +
+      "\n";
   public static final String expectedSortImg =
       gson.toJson(new ArrayList<ImageInfo>(Arrays.asList(Image0, Image1))) +
       "\n";
@@ -60,6 +94,10 @@ public final class BlobServletTestUtils {
       gson.toJson(new ArrayList<ImageInfo>(
           Arrays.asList(Image1, Image0WithMasksSortAsc))) +
       "\n";
+  public static final String expectedFirstPage =
+      gson.toJson(new ArrayList<ImageInfo>(Arrays.asList(Image1)));
+  public static final String expectedSecondPage =
+      gson.toJson(new ArrayList<ImageInfo>(Arrays.asList(Image0)));
   public static final String expectedImgName =
       gson.toJson(new ArrayList<ImageInfo>(Arrays.asList(Image1))) + "\n";
   public static final String expectedMaskName =
@@ -87,14 +125,14 @@ public final class BlobServletTestUtils {
     projEntity.setProperty("proj-id", projId);
     datastore.put(projEntity);
 
-    Entity imgEntity = new Entity(DataUtils.IMAGE, 456, projKey);
+    Entity imgEntity = new Entity(DataUtils.IMAGE, "Image0", projKey);
     imgEntity.setProperty("name", "Image0");
     imgEntity.setProperty("filetype", "png");
     imgEntity.setProperty("utc", "2020-08-12T05:39:02.383Z");
     imgEntity.setProperty("blobkey", "abc");
     imgEntity.setIndexedProperty("tags", Arrays.asList("0", "zero"));
 
-    Entity imgEntity2 = new Entity(DataUtils.IMAGE, 789, projKey);
+    Entity imgEntity2 = new Entity(DataUtils.IMAGE, "Image1", projKey);
     imgEntity2.setProperty("name", "Image1");
     imgEntity2.setProperty("filetype", "png");
     imgEntity2.setProperty("utc", "2020-08-12T05:39:02.384Z");
@@ -103,14 +141,14 @@ public final class BlobServletTestUtils {
 
     datastore.put(Arrays.asList(imgEntity, imgEntity2));
 
-    Entity maskEntity = new Entity(DataUtils.MASK, 135, imgEntity.getKey());
+    Entity maskEntity = new Entity(DataUtils.MASK, "Mask0", imgEntity.getKey());
     maskEntity.setProperty("name", "Mask0");
     maskEntity.setProperty("filetype", "png");
     maskEntity.setProperty("utc", "2020-08-12T05:39:02.384Z");
     maskEntity.setProperty("blobkey", "ghi");
     maskEntity.setIndexedProperty("tags", Arrays.asList("0", "zero"));
 
-    Entity maskEntity2 = new Entity(DataUtils.MASK, 246, imgEntity.getKey());
+    Entity maskEntity2 = new Entity(DataUtils.MASK, "Mask1", imgEntity.getKey());
     maskEntity2.setProperty("name", "Mask1");
     maskEntity2.setProperty("filetype", "png");
     maskEntity2.setProperty("utc", "2020-08-12T05:39:02.383Z");
@@ -122,5 +160,33 @@ public final class BlobServletTestUtils {
     return projId;
   }
 
+  /**
+   * Returns a request body stream over the given bytes.
+   * @param     {byte[]}                content
+   * @return    {ServletInputStream}
+   */
+  public static ServletInputStream newRequestBody(byte[] content) {
+    ByteArrayInputStream in = new ByteArrayInputStream(content);
+    return new ServletInputStream() {
+      @Override
+      public int read() {
+        return in.read();
+      }
+
+      @Override
+      public boolean isFinished() {
+        return in.available() == 0;
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setReadListener(ReadListener listener) {}
+    };
+  }
+
   private BlobServletTestUtils() {}
 }
\ No newline at end of file
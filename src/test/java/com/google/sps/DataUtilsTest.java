@@ -1,6 +1,7 @@
 package com.google.sps.servlets;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
@@ -9,6 +10,7 @@ import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -26,7 +28,8 @@ public final class DataUtilsTest {
   private MockHttpServletRequest request;
 
   private final LocalServiceTestHelper helper =
-      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+                                 new LocalMemcacheServiceTestConfig());
 
   @Before
   public void setUp() {
@@ -216,4 +219,120 @@ public final class DataUtilsTest {
                    e.getMessage());
     }
   }
+
+  /**
+   * Without limit or cursor, a request is not paged.
+   */
+  @Test
+  public void unpagedRequest() {
+    assertEquals(false, DataUtils.isPagedRequest(request));
+  }
+
+  /**
+   * Limit is capped at the maximum page size.
+   */
+  @Test
+  public void limitCapped() throws IOException {
+    request.addParameter("limit", "100000");
+    assertEquals(true, DataUtils.isPagedRequest(request));
+    assertEquals(DataUtils.MAX_PAGE_SIZE,
+                 (int)DataUtils.getPageOptions(request).getLimit());
+  }
+
+  /**
+   * Non-positive limits throw an IOException.
+   */
+  @Test
+  public void invalidLimit() {
+    request.addParameter("limit", "0");
+    try {
+      DataUtils.getPageOptions(request);
+      fail();
+    } catch (IOException e) {
+      assertEquals("Invalid limit.", e.getMessage());
+    }
+  }
+
+  /**
+   * Malformed cursors throw an IOException.
+   */
+  @Test
+  public void invalidCursor() {
+    request.addParameter("cursor", "not a cursor!");
+    try {
+      DataUtils.getPageOptions(request);
+      fail();
+    } catch (IOException e) {
+      assertEquals("Invalid cursor.", e.getMessage());
+    }
+  }
+
+  /**
+   * Access checks are served from the cached ACL without reading the project.
+   */
+  @Test
+  public void cachedAccessCheck() throws IOException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity projEntity = new Entity(DataUtils.PROJECT, 123456);
+    projEntity.setIndexedProperty("owners", Arrays.asList("abc@xyz.com"));
+    projEntity.setProperty("visibility", DataUtils.PRIVATE);
+    projEntity.setProperty("utc", "2020-08-12T05:39:02.383Z");
+    Key projKey = datastore.put(projEntity);
+    String projId = KeyFactory.keyToString(projKey);
+
+    DataUtils.getProjectEntity(projId, "abc@xyz.com", false, false);
+    // Removed behind the cache's back, so only the cache can grant access
+    datastore.delete(projKey);
+    assertEquals(projKey, DataUtils.checkProjectAccess(projId, "abc@xyz.com",
+                                                       false, false));
+    try {
+      DataUtils.checkProjectAccess(projId, "ghi@xyz.com", true, true);
+      fail();
+    } catch (IOException e) {
+      assertEquals("You do not have permission to access this project.",
+                   e.getMessage());
+    }
+  }
+
+  /**
+   * Older ACL versions never replace newer cached ones.
+   */
+  @Test
+  public void staleAclIgnored() throws IOException {
+    String projId = KeyFactory.keyToString(
+        KeyFactory.createKey(DataUtils.PROJECT, 123456));
+    DataUtils.cacheProjectAcl(
+        projId, new ProjectAcl(Arrays.asList("abc@xyz.com"), null,
+                               DataUtils.PRIVATE, "2020-08-12T05:39:02.384Z",
+                               false));
+    DataUtils.cacheProjectAcl(
+        projId, new ProjectAcl(Arrays.asList("ghi@xyz.com"), null,
+                               DataUtils.PRIVATE, "2020-08-12T05:39:02.383Z",
+                               false));
+    assertEquals(KeyFactory.stringToKey(projId),
+                 DataUtils.checkProjectAccess(projId, "abc@xyz.com", false,
+                                              false));
+  }
+
+  /**
+   * Deleted projects cannot be accessed through a cached ACL.
+   */
+  @Test
+  public void deletedProjectTombstone() {
+    String projId = KeyFactory.keyToString(
+        KeyFactory.createKey(DataUtils.PROJECT, 123456));
+    DataUtils.cacheProjectAcl(
+        projId, new ProjectAcl(Arrays.asList("abc@xyz.com"), null,
+                               DataUtils.PRIVATE, "2020-08-12T05:39:02.383Z",
+                               false));
+    DataUtils.cacheProjectAcl(projId,
+                              ProjectAcl.tombstone("2020-08-12T05:39:02.384Z"));
+    try {
+      DataUtils.checkProjectAccess(projId, "abc@xyz.com", false, false);
+      fail();
+    } catch (IOException e) {
+      assertEquals("Database error when trying to access this project.",
+                   e.getMessage());
+    }
+  }
 }
@@ -0,0 +1,160 @@
+package com.google.sps.servlets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class FloodFillTest {
+
+  /**
+   * Fills a region around a hole and stops at a wall of different color.
+   */
+  @Test
+  public void fillsAroundObstacles() throws IOException {
+    int width = 10;
+    int height = 6;
+    int[] rgb = new int[width * height];
+    // Wall at x = 5, a hole at (2, 2)
+    for (int y = 0; y < height; y++) {
+      rgb[y * width + 5] = 0xFFFFFF;
+    }
+    rgb[2 * width + 2] = 0xFF0000;
+    MaskBitmap mask = FloodFill.fill(new ImagePixels(width, height, rgb),
+                                     0, 0, 10, null);
+
+    assertEquals(5 * height - 1, mask.cardinality());
+    assertFalse(mask.get(2 * width + 2));
+    assertFalse(mask.get(5));
+    assertTrue(mask.get(5 * width + 4));
+  }
+
+  /**
+   * A tolerance of 0 selects only the seed's exact color, but the seed is
+   * selected whatever the tolerance.
+   */
+  @Test
+  public void tolerance() throws IOException {
+    int[] rgb = {0x000000, 0x010000, 0x000000, 0x101010};
+    ImagePixels pixels = new ImagePixels(4, 1, rgb);
+    assertEquals(1, FloodFill.fill(pixels, 0, 0, 0, null).cardinality());
+    assertEquals(3, FloodFill.fill(pixels, 0, 0, 1, null).cardinality());
+    assertEquals(4, FloodFill.fill(pixels, 0, 0, 28, null).cardinality());
+    assertEquals(1, FloodFill.fill(pixels, 3, 0, 0, null).cardinality());
+  }
+
+  /**
+   * With scribbles, pixels near any scribbled color are selected.
+   */
+  @Test
+  public void scribbleColors() throws IOException {
+    int[] rgb = {0x000000, 0x0000FF, 0x00FF00, 0xFF0000};
+    ImagePixels pixels = new ImagePixels(4, 1, rgb);
+    MaskBitmap scribbles = new MaskBitmap(4, 1);
+    scribbles.set(0);
+    scribbles.set(1);
+    assertEquals(2, FloodFill.fill(pixels, 0, 0, 0, scribbles).cardinality());
+    scribbles.set(2);
+    assertEquals(3, FloodFill.fill(pixels, 0, 0, 0, scribbles).cardinality());
+  }
+
+  /**
+   * Matches a simple pixel-by-pixel fill on random images, with few
+   * scribbled colors and with many.
+   */
+  @Test
+  public void matchesPixelFill() throws IOException {
+    Random random = new Random(5);
+    int width = 97;
+    int height = 61;
+    int[] rgb = new int[width * height];
+    for (int i = 0; i < rgb.length; i++) {
+      rgb[i] = random.nextInt(16) * 0x101010;
+    }
+    ImagePixels pixels = new ImagePixels(width, height, rgb);
+    for (int scribbleCount : new int[] {0, 3, 40}) {
+      MaskBitmap scribbles = null;
+      if (scribbleCount > 0) {
+        scribbles = new MaskBitmap(width, height);
+        for (int i = 0; i < scribbleCount; i++) {
+          scribbles.set(random.nextInt(rgb.length));
+        }
+      }
+      int seedX = random.nextInt(width);
+      int seedY = random.nextInt(height);
+      MaskBitmap mask =
+          FloodFill.fill(pixels, seedX, seedY, 40, scribbles);
+      MaskBitmap expected =
+          pixelFill(pixels, seedX, seedY, 40, scribbles);
+      for (int i = 0; i < rgb.length; i++) {
+        assertEquals(expected.get(i), mask.get(i));
+      }
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void invalidSeed() throws IOException {
+    FloodFill.fill(new ImagePixels(2, 2, new int[4]), 2, 0, 0, null);
+  }
+
+  /**
+   * Fills one pixel at a time with a queue.
+   */
+  private static MaskBitmap pixelFill(ImagePixels pixels, int seedX,
+                                      int seedY, int tolerance,
+                                      MaskBitmap scribbles)
+      throws IOException {
+    int width = pixels.getWidth();
+    int height = pixels.getHeight();
+    int seed = seedY * width + seedX;
+    MaskBitmap mask = new MaskBitmap(width, height);
+    ArrayDeque<Integer> queue = new ArrayDeque<>();
+    mask.set(seed);
+    queue.add(seed);
+    while (!queue.isEmpty()) {
+      int index = queue.remove();
+      int x = index % width;
+      int y = index / width;
+      int[][] neighbors = {{x - 1, y}, {x + 1, y}, {x, y - 1}, {x, y + 1}};
+      for (int[] neighbor : neighbors) {
+        if (neighbor[0] < 0 || neighbor[0] >= width ||
+            neighbor[1] < 0 || neighbor[1] >= height) {
+          continue;
+        }
+        int next = neighbor[1] * width + neighbor[0];
+        if (!mask.get(next) &&
+            isNear(pixels, next, seed, tolerance, scribbles)) {
+          mask.set(next);
+          queue.add(next);
+        }
+      }
+    }
+    return mask;
+  }
+
+  private static boolean isNear(ImagePixels pixels, int index, int seed,
+                                int tolerance, MaskBitmap scribbles) {
+    for (int i = 0; i < pixels.getRgbCount(); i++) {
+      boolean isReference =
+          (scribbles == null) ? i == seed : scribbles.get(i);
+      if (isReference) {
+        int a = pixels.getRgb(index);
+        int b = pixels.getRgb(i);
+        int dr = (a >>> 16) - (b >>> 16);
+        int dg = ((a >>> 8) & 0xFF) - ((b >>> 8) & 0xFF);
+        int db = (a & 0xFF) - (b & 0xFF);
+        if (dr * dr + dg * dg + db * db <= tolerance * tolerance) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,146 @@
+package com.google.sps.servlets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class MaskBitmapTest {
+
+  /**
+   * A mask of a few regions encodes as runs and decodes to the same pixels.
+   */
+  @Test
+  public void runsRoundTrip() throws IOException {
+    MaskBitmap mask = new MaskBitmap(300, 200);
+    mask.setRange(70, 130);
+    mask.setRange(300 * 50, 300 * 120 + 10);
+    mask.set(300 * 200 - 1);
+    byte[] encoded = mask.encode();
+    assertEquals(1, encoded[0]);
+    assertTrue(encoded.length < 20);
+    assertSamePixels(mask, MaskBitmap.decode(encoded));
+  }
+
+  /**
+   * Scattered pixels are smaller as raw words, which also round trip.
+   */
+  @Test
+  public void noiseRoundTrip() throws IOException {
+    MaskBitmap mask = new MaskBitmap(101, 99);
+    Random random = new Random(158);
+    for (int i = 0; i < mask.getSize(); i++) {
+      if (random.nextBoolean()) {
+        mask.set(i);
+      }
+    }
+    byte[] encoded = mask.encode();
+    assertEquals(2, encoded[0]);
+    assertSamePixels(mask, MaskBitmap.decode(encoded));
+  }
+
+  /**
+   * Opaque pixels of a PNG are set, and written back in the editor's form.
+   */
+  @Test
+  public void pngRoundTrip() throws IOException {
+    MaskBitmap mask = new MaskBitmap(20, 10);
+    mask.setRange(25, 75);
+    ByteArrayOutputStream png = new ByteArrayOutputStream();
+    mask.writePng(png);
+    MaskBitmap read =
+        MaskBitmap.fromPng(new ByteArrayInputStream(png.toByteArray()));
+    assertEquals(20, read.getWidth());
+    assertEquals(10, read.getHeight());
+    assertSamePixels(mask, read);
+  }
+
+  /**
+   * A patch adds its added pixels and then clears its removed pixels, and
+   * is small for a small edit.
+   */
+  @Test
+  public void patchRoundTrip() throws IOException {
+    MaskBitmap mask = new MaskBitmap(1000, 1000);
+    mask.setRange(0, 500000);
+    MaskBitmap added = new MaskBitmap(1000, 1000);
+    added.setRange(600000, 600300);
+    MaskBitmap removed = new MaskBitmap(1000, 1000);
+    removed.set(10);
+    byte[] patch = MaskPatch.encode(added, removed);
+    assertTrue(patch.length < 30);
+
+    MaskPatch.apply(mask, patch);
+    assertEquals(500000 + 300 - 1, mask.cardinality());
+    assertTrue(mask.get(600000) && !mask.get(10));
+  }
+
+  /**
+   * Set operations combine pixels word by word, and inverting leaves the
+   * bits past the last pixel clear.
+   */
+  @Test
+  public void setOperations() throws IOException {
+    MaskBitmap a = new MaskBitmap(13, 7);
+    a.setRange(0, 50);
+    MaskBitmap b = new MaskBitmap(13, 7);
+    b.setRange(30, 80);
+
+    MaskBitmap union = a.copy();
+    union.or(b);
+    assertEquals(80, union.cardinality());
+    MaskBitmap intersection = a.copy();
+    intersection.and(b);
+    assertEquals(20, intersection.cardinality());
+    assertEquals(30, intersection.nextSetBit(0));
+    MaskBitmap difference = a.copy();
+    difference.xor(b);
+    assertEquals(60, difference.cardinality());
+    MaskBitmap inverse = a.copy();
+    inverse.invert();
+    assertEquals(13 * 7 - 50, inverse.cardinality());
+    assertEquals(50, inverse.nextSetBit(0));
+    assertEquals(13 * 7, inverse.nextClearBit(50));
+  }
+
+  @Test(expected = IOException.class)
+  public void patchDimensionsMismatch() throws IOException {
+    MaskPatch.apply(new MaskBitmap(10, 10),
+                    MaskPatch.encode(new MaskBitmap(10, 20),
+                                     new MaskBitmap(10, 20)));
+  }
+
+  /**
+   * Runs that do not cover the mask exactly are rejected.
+   */
+  @Test(expected = IOException.class)
+  public void truncatedRuns() throws IOException {
+    MaskBitmap.decode(new byte[] {1, 10, 10, 50});
+  }
+
+  @Test(expected = IOException.class)
+  public void invalidHeader() throws IOException {
+    MaskBitmap.decode(new byte[] {3, 1, 1, 1});
+  }
+
+  @Test(expected = IOException.class)
+  public void tooLarge() throws IOException {
+    new MaskBitmap(5000, 5000);
+  }
+
+  private static void assertSamePixels(MaskBitmap expected,
+                                       MaskBitmap actual) {
+    assertEquals(expected.getSize(), actual.getSize());
+    assertEquals(expected.cardinality(), actual.cardinality());
+    for (int i = 0; i < expected.getSize(); i++) {
+      assertEquals(expected.get(i), actual.get(i));
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package com.google.sps.servlets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class MaskHistoryTest {
+
+  private Key projKey;
+  private Entity maskEntity;
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+                                 new LocalMemcacheServiceTestConfig());
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    projKey = KeyFactory.createKey(DataUtils.PROJECT, 123);
+    maskEntity = new Entity(DataUtils.MASK, "Mask0",
+                            KeyFactory.createKey(projKey, DataUtils.IMAGE,
+                                                 "Image0"));
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  /**
+   * Every version is rebuilt exactly, with a snapshot at least every
+   * SNAPSHOT_INTERVAL versions and patches in between.
+   */
+  @Test
+  public void rebuildsEveryVersion() throws IOException {
+    List<MaskBitmap> saved = saveVersions(40);
+    for (int v = 0; v < saved.size(); v++) {
+      MaskBitmap rebuilt = MaskHistory.getVersion(maskEntity, v);
+      assertEquals(saved.get(v).cardinality(), rebuilt.cardinality());
+      assertEquals(saved.get(v).nextSetBit(0), rebuilt.nextSetBit(0));
+    }
+
+    List<MaskVersionInfo> versions = MaskHistory.getVersions(maskEntity);
+    assertEquals(40, versions.size());
+    assertEquals(39, versions.get(0).version);
+    int snapshots = 0;
+    for (MaskVersionInfo version : versions) {
+      snapshots += (version.snapshot) ? 1 : 0;
+    }
+    assertEquals(3, snapshots);
+  }
+
+  /**
+   * A version that changes most of the mask is stored as a snapshot.
+   */
+  @Test
+  public void largeEditIsSnapshot() throws IOException {
+    MaskBitmap first = new MaskBitmap(100, 100);
+    first.setRange(0, 5000);
+    save(null, first, "0");
+    MaskBitmap second = new MaskBitmap(100, 100);
+    for (int i = 0; i < second.getSize(); i += 2) {
+      second.set(i);
+    }
+    save(first, second, "1");
+    assertTrue(MaskHistory.getVersions(maskEntity).get(0).snapshot);
+    assertEquals(1L, maskEntity.getProperty("snapshot"));
+  }
+
+  @Test
+  public void keysCoverHistory() throws IOException {
+    saveVersions(20);
+    List<Key> keys = MaskHistory.getKeys(maskEntity);
+    // 20 versions, and the chunk keys of two snapshots and the current data
+    assertEquals(20 + 3 * MaskStore.MAX_CHUNKS, keys.size());
+    DatastoreServiceFactory.getDatastoreService().delete(keys);
+    assertTrue(MaskHistory.getVersions(maskEntity).isEmpty());
+  }
+
+  @Test(expected = IOException.class)
+  public void missingVersion() throws IOException {
+    saveVersions(2);
+    assertFalse(MaskHistory.hasVersion(maskEntity, 2));
+    MaskHistory.getVersion(maskEntity, 2);
+  }
+
+  /**
+   * Saves versions of a 100x100 mask of scattered pixels that each fill
+   * another row.
+   */
+  private List<MaskBitmap> saveVersions(int count) throws IOException {
+    ArrayList<MaskBitmap> saved = new ArrayList<MaskBitmap>();
+    MaskBitmap previous = new MaskBitmap(100, 100);
+    Random random = new Random(158);
+    for (int i = 0; i < previous.getSize(); i++) {
+      if (random.nextBoolean()) {
+        previous.set(i);
+      }
+    }
+    for (int v = 0; v < count; v++) {
+      MaskBitmap current = previous.copy();
+      current.setRange(v * 100, (v + 1) * 100);
+      if (v == 0) {
+        previous = null;
+      }
+      save(previous, current, Integer.toString(v));
+      saved.add(current);
+      previous = current;
+    }
+    return saved;
+  }
+
+  /**
+   * Saves a version as the servlets do: the data is stored, recorded in the
+   * history, and the data it supersedes removed unless a snapshot keeps it.
+   */
+  private void save(MaskBitmap previous, MaskBitmap current, String utc)
+      throws IOException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity superseded = maskEntity.clone();
+    byte[] encoded = current.encode();
+    String maskDataId = MaskStore.put(projKey, encoded);
+    maskEntity.setProperty("maskdata", maskDataId);
+    datastore.put(MaskHistory.addVersion(projKey, maskEntity, previous,
+                                         current, encoded, maskDataId, utc));
+    datastore.delete(MaskHistory.getSupersededKeys(superseded));
+  }
+}
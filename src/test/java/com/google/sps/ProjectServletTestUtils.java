@@ -12,7 +12,7 @@ import java.util.Arrays;
 
 public final class ProjectServletTestUtils {
   private static final Gson gson =
-      new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+      new GsonBuilder().disableHtmlEscaping().create();
 
   // Project objects
   private static final ProjectInfo MyProject1 = new ProjectInfo(
@@ -45,6 +45,27 @@ public final class ProjectServletTestUtils {
       gson.toJson(new ArrayList<ProjectInfo>(
           Arrays.asList(MyProject5, MyProject2, MyProject1))) +
       "\n";
+
+  public static final String expectedNoFiltersAfterDelete =
+      gson.toJson(new ArrayList<ProjectInfo>(
+          Arrays.asList(MyProject5, MyProject2))) +
+      "\n";
+  public static final String expectedProjectedFields =
+      gson.toJson(new ArrayList<ProjectInfo>(Arrays.asList(
+          new ProjectInfo(MyProject5.projId, MyProject5.name,
+                          MyProject5.timestamp, null, null, null),
+          new ProjectInfo(MyProject2.projId, MyProject2.name,
+                          MyProject2.timestamp, null, null, null),
+          new ProjectInfo(MyProject1.projId, MyProject1.name,
+                          MyProject1.timestamp, null, null, null)))) +
+      "\n";
+  public static final String expectedKeyFields =
+      "[{\"projId\":\"" + MyProject3.projId + "\"}," +
+      "{\"projId\":\"" + MyProject2.projId + "\"}]\n";
+  public static final String expectedFirstPage = gson.toJson(
+      new ArrayList<ProjectInfo>(Arrays.asList(MyProject5, MyProject2)));
+  public static final String expectedSecondPage =
+      gson.toJson(new ArrayList<ProjectInfo>(Arrays.asList(MyProject1)));
   public static final String expectedPublicOnly =
       gson.toJson(new ArrayList<ProjectInfo>(Arrays.asList(MyProject2))) + "\n";
   public static final String expectedPrivateOnly =
@@ -90,14 +111,14 @@ public final class ProjectServletTestUtils {
     String projId = KeyFactory.keyToString(projKey);
     projEntity.setProperty("proj-id", projId);
 
-    Entity imgEntity = new Entity(DataUtils.IMAGE, 1, projKey);
+    Entity imgEntity = new Entity(DataUtils.IMAGE, "Image0", projKey);
     imgEntity.setProperty("name", "Image0");
     imgEntity.setProperty("filetype", "png");
     imgEntity.setProperty("utc", "2020-08-12T05:39:02.383Z");
     imgEntity.setProperty("blobkey", "abc");
     imgEntity.setIndexedProperty("tags", Arrays.asList("0", "zero"));
 
-    Entity imgEntity2 = new Entity(DataUtils.IMAGE, 2, projKey);
+    Entity imgEntity2 = new Entity(DataUtils.IMAGE, "Image1", projKey);
     imgEntity2.setProperty("name", "Image1");
     imgEntity2.setProperty("filetype", "png");
     imgEntity2.setProperty("utc", "2020-08-12T05:39:02.384Z");
@@ -106,14 +127,14 @@ public final class ProjectServletTestUtils {
 
     datastore.put(Arrays.asList(imgEntity, imgEntity2));
 
-    Entity maskEntity = new Entity(DataUtils.MASK, 1, imgEntity.getKey());
+    Entity maskEntity = new Entity(DataUtils.MASK, "Mask0", imgEntity.getKey());
     maskEntity.setProperty("name", "Mask0");
     maskEntity.setProperty("filetype", "png");
     maskEntity.setProperty("utc", "2020-08-12T05:39:02.384Z");
     maskEntity.setProperty("blobkey", "ghi");
     maskEntity.setIndexedProperty("tags", Arrays.asList("0", "zero"));
 
-    Entity maskEntity2 = new Entity(DataUtils.MASK, 2, imgEntity.getKey());
+    Entity maskEntity2 = new Entity(DataUtils.MASK, "Mask1", imgEntity.getKey());
     maskEntity2.setProperty("name", "Mask1");
     maskEntity2.setProperty("filetype", "png");
     maskEntity2.setProperty("utc", "2020-08-12T05:39:02.383Z");
@@ -0,0 +1,68 @@
+package com.google.sps.servlets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class ToleranceMapTest {
+
+  /**
+   * The selection at every tolerance is the same as a fill's.
+   */
+  @Test
+  public void matchesFloodFill() throws IOException {
+    Random random = new Random(9);
+    int width = 83;
+    int height = 47;
+    int[] rgb = new int[width * height];
+    for (int i = 0; i < rgb.length; i++) {
+      rgb[i] = random.nextInt(0x1000000);
+    }
+    ImagePixels pixels = new ImagePixels(width, height, rgb);
+    ToleranceMap map = ToleranceMap.compute(pixels, 40, 20);
+    for (int tolerance = 0; tolerance <= ToleranceMap.MAX_TOLERANCE;
+         tolerance += 13) {
+      MaskBitmap expected = FloodFill.fill(pixels, 40, 20, tolerance, null);
+      MaskBitmap mask = map.getMask(tolerance);
+      for (int i = 0; i < rgb.length; i++) {
+        assertEquals(expected.get(i), mask.get(i));
+      }
+    }
+    assertEquals(rgb.length,
+                 map.getMask(ToleranceMap.MAX_TOLERANCE).cardinality());
+  }
+
+  /**
+   * A pixel beyond a more different one takes the greater tolerance.
+   */
+  @Test
+  public void greatestOnPath() throws IOException {
+    int[] rgb = {0x000000, 0x000003, 0x000001, 0x000000};
+    ToleranceMap map = ToleranceMap.compute(new ImagePixels(4, 1, rgb), 0, 0);
+    assertEquals(0, map.getTolerance(0));
+    assertEquals(3, map.getTolerance(1));
+    assertEquals(3, map.getTolerance(2));
+    assertEquals(3, map.getTolerance(3));
+  }
+
+  /**
+   * Encodes dimensions, then tolerance and length of each run.
+   */
+  @Test
+  public void encodesRuns() throws IOException {
+    int[] rgb = {0x000000, 0x000000, 0x000005, 0x000000, 0x000000, 0x000000};
+    ToleranceMap map = ToleranceMap.compute(new ImagePixels(3, 2, rgb), 0, 0);
+    assertArrayEquals(new byte[] {3, 2, 0, 2, 5, 1, 0, 3}, map.encode());
+  }
+
+  @Test(expected = IOException.class)
+  public void invalidSeed() throws IOException {
+    ToleranceMap.compute(new ImagePixels(2, 2, new int[4]), 0, 2);
+  }
+}
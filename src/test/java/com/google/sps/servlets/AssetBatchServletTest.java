@@ -0,0 +1,148 @@
+package com.google.sps.servlets;
+
+import static com.google.sps.servlets.BlobServletTestUtils.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+@RunWith(JUnit4.class)
+public final class AssetBatchServletTest {
+
+  private String projId;
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+  private StringWriter stringWriter;
+  private PrintWriter writer;
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalUserServiceTestConfig(),
+                                 new LocalDatastoreServiceTestConfig(),
+                                 new LocalMemcacheServiceTestConfig())
+          .setEnvIsLoggedIn(true)
+          .setEnvEmail("abc@xyz.com")
+          .setEnvAuthDomain("gmail.com");
+
+  @Before
+  public void setUp() throws IOException {
+    helper.setUp();
+    ProjectTimestamps.setLocalExecutor(Runnable::run);
+    projId = databaseSetup();
+    request = Mockito.mock(HttpServletRequest.class);
+    response = Mockito.mock(HttpServletResponse.class);
+    Mockito.when(request.getParameter("proj-id")).thenReturn(projId);
+    stringWriter = new StringWriter();
+    writer = new PrintWriter(stringWriter);
+    Mockito.when(response.getWriter()).thenReturn(writer);
+  }
+
+  @After
+  public void tearDown() {
+    ProjectTimestamps.setLocalExecutor(null);
+    helper.tearDown();
+  }
+
+  @Test
+  public void batchMutation() throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key projKey = KeyFactory.stringToKey(projId);
+    ProjectCounters.recount(projKey);
+
+    // Later operations see earlier ones: Mask1 is deleted after moving with
+    // its image, and the second rename to Image1 gets a suffix
+    Mockito.when(request.getParameter("operations"))
+        .thenReturn("[{\"op\":\"retag\",\"image\":\"Image1\","
+                    + "\"tags\":[\"One\",\"two\",\"two\"]},"
+                    + "{\"op\":\"rename\",\"image\":\"Image0\","
+                    + "\"newName\":\"Moved\"},"
+                    + "{\"op\":\"delete\",\"image\":\"Moved\","
+                    + "\"mask\":\"Mask1\"},"
+                    + "{\"op\":\"rename\",\"image\":\"Moved\","
+                    + "\"newName\":\"Image1\"},"
+                    + "{\"op\":\"delete\",\"image\":\"Image0\"}]");
+    new AssetBatchServlet().doPost(request, response);
+    writer.flush();
+
+    JsonParser parser = new JsonParser();
+    JsonArray results =
+        parser.parse(stringWriter.toString()).getAsJsonArray();
+    assertEquals(5, results.size());
+    assertEquals("Image1",
+                 results.get(0).getAsJsonObject().get("name").getAsString());
+    assertEquals("Moved",
+                 results.get(1).getAsJsonObject().get("name").getAsString());
+    assertEquals("Mask1",
+                 results.get(2).getAsJsonObject().get("name").getAsString());
+    String renamed =
+        results.get(3).getAsJsonObject().get("name").getAsString();
+    assertTrue(renamed.startsWith("Image1-"));
+    assertEquals("Image not found.",
+                 results.get(4).getAsJsonObject().get("error").getAsString());
+
+    Key imgKey = BlobUtils.getAssetKey(DataUtils.IMAGE, projKey, renamed);
+    assertEquals("abc", datastore.get(imgKey).getProperty("blobkey"));
+    assertEquals(renamed, datastore.get(imgKey).getProperty("name"));
+    assertTrue(BlobUtils.assetExists(DataUtils.MASK, imgKey, "Mask0"));
+    assertFalse(BlobUtils.assetExists(DataUtils.MASK, imgKey, "Mask1"));
+    assertFalse(BlobUtils.assetExists(DataUtils.IMAGE, projKey, "Image0"));
+    assertFalse(BlobUtils.assetExists(DataUtils.IMAGE, projKey, "Moved"));
+    assertEquals(Arrays.asList("one", "two"),
+                 datastore.get(BlobUtils.getAssetKey(DataUtils.IMAGE, projKey,
+                                                     "Image1"))
+                     .getProperty("tags"));
+    assertEquals(2,
+                 datastore.prepare(new Query(DataUtils.IMAGE)).countEntities());
+    assertEquals(1,
+                 datastore.prepare(new Query(DataUtils.MASK)).countEntities());
+
+    ProjectSummary summary =
+        ProjectCounters.getSummaries(Arrays.asList(projKey)).get(projKey);
+    assertEquals(2, summary.imageCount);
+    assertEquals(1, summary.maskCount);
+    TagFacets facets = ProjectCounters.getTagFacets(projKey);
+    assertNull(facets.images.get("1"));
+    assertEquals(Long.valueOf(1), facets.images.get("two"));
+    assertNull(facets.masks.get("one"));
+    assertEquals(Long.valueOf(1), facets.masks.get("zero"));
+  }
+
+  @Test
+  public void batchDeleteRequiresOwner() throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity projEntity = datastore.get(KeyFactory.stringToKey(projId));
+    projEntity.setIndexedProperty("owners", Arrays.asList("def@uvw.com"));
+    projEntity.setIndexedProperty("editors", Arrays.asList("abc@xyz.com"));
+    datastore.put(projEntity);
+    Mockito.when(request.getParameter("operations"))
+        .thenReturn("[{\"op\":\"delete\",\"image\":\"Image0\"}]");
+    new AssetBatchServlet().doPost(request, response);
+    writer.flush();
+    assertEquals(
+        "[{\"error\":\"Only owners can delete assets.\"}]\n",
+        stringWriter.toString());
+    assertTrue(BlobUtils.assetExists(
+        DataUtils.IMAGE, KeyFactory.stringToKey(projId), "Image0"));
+  }
+}
@@ -0,0 +1,180 @@
+package com.google.sps.servlets;
+
+import static com.google.sps.servlets.BlobServletTestUtils.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.blobstore.ByteRange;
+import com.google.appengine.api.blobstore.RangeFormatException;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(BlobstoreServiceFactory.class)
+public final class BlobHostTest {
+
+  private BlobHost servlet;
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+  private BlobstoreService blobstoreService;
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalUserServiceTestConfig(),
+                                 new LocalDatastoreServiceTestConfig(),
+                                 new LocalMemcacheServiceTestConfig())
+          .setEnvIsLoggedIn(true)
+          .setEnvEmail("abc@xyz.com")
+          .setEnvAuthDomain("gmail.com");
+
+  @Before
+  public void setUp() throws IOException {
+    helper.setUp();
+    servlet = new BlobHost();
+    String projId = databaseSetup();
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    datastore.put(BlobUtils.newBlobIndexEntity(
+        "abc", DataUtils.IMAGE, KeyFactory.stringToKey(projId), "jpg"));
+    blobstoreService = Mockito.mock(BlobstoreService.class);
+    PowerMockito.mockStatic(BlobstoreServiceFactory.class);
+    Mockito.when(BlobstoreServiceFactory.getBlobstoreService())
+        .thenReturn(blobstoreService);
+    request = Mockito.mock(HttpServletRequest.class);
+    response = Mockito.mock(HttpServletResponse.class);
+    Mockito.when(request.getParameter("blobkey")).thenReturn("abc");
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void servesWithCacheHeaders() throws IOException {
+    servlet.doGet(request, response);
+    Mockito.verify(response).setContentType("image/jpeg");
+    Mockito.verify(response).setHeader("ETag", "\"abc\"");
+    Mockito.verify(response).setHeader(
+        "Cache-Control", "private, max-age=31536000, immutable");
+    Mockito.verify(blobstoreService).serve(new BlobKey("abc"), response);
+  }
+
+  @Test
+  public void notModified() throws IOException {
+    Mockito.when(request.getHeader("If-None-Match")).thenReturn("W/\"abc\"");
+    servlet.doGet(request, response);
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    Mockito.verify(blobstoreService, Mockito.never())
+        .serve(Mockito.any(BlobKey.class),
+               Mockito.any(HttpServletResponse.class));
+  }
+
+  @Test
+  public void servesRange() throws IOException {
+    ByteRange range = new ByteRange(0, 99);
+    Mockito.when(blobstoreService.getByteRange(request)).thenReturn(range);
+    servlet.doGet(request, response);
+    Mockito.verify(blobstoreService).serve(new BlobKey("abc"), range, response);
+  }
+
+  @Test
+  public void staleIfRangeServesWholeBlob() throws IOException {
+    Mockito.when(blobstoreService.getByteRange(request))
+        .thenReturn(new ByteRange(0, 99));
+    Mockito.when(request.getHeader("If-Range")).thenReturn("\"def\"");
+    servlet.doGet(request, response);
+    Mockito.verify(blobstoreService).serve(new BlobKey("abc"), response);
+  }
+
+  @Test
+  public void servesStoredVariant() throws IOException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity stored = new Entity(Renditions.getKeys("abc").get(
+        Renditions.WIDTHS.indexOf(Renditions.THUMBNAIL_WIDTH)));
+    stored.setUnindexedProperty("data", new Blob(new byte[] {1, 2}));
+    stored.setUnindexedProperty("content-type", "image/jpeg");
+    datastore.put(stored);
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    Mockito.when(response.getOutputStream())
+        .thenReturn(new ServletOutputStream() {
+          @Override
+          public void write(int b) {
+            body.write(b);
+          }
+
+          @Override
+          public boolean isReady() {
+            return true;
+          }
+
+          @Override
+          public void setWriteListener(WriteListener listener) {}
+        });
+    Mockito.when(request.getParameter("size"))
+        .thenReturn(Integer.toString(Renditions.THUMBNAIL_WIDTH));
+    servlet.doGet(request, response);
+
+    Mockito.verify(response).setHeader(
+        "ETag", "\"abc-" + Renditions.THUMBNAIL_WIDTH + "\"");
+    Mockito.verify(response).setContentType("image/jpeg");
+    assertArrayEquals(new byte[] {1, 2}, body.toByteArray());
+    Mockito.verify(blobstoreService, Mockito.never())
+        .serve(Mockito.any(BlobKey.class),
+               Mockito.any(HttpServletResponse.class));
+  }
+
+  /**
+   * A variant that cannot be made now is not stored as the original.
+   */
+  @Test
+  public void unreadableBlobIsNotStored() throws Exception {
+    Mockito.when(request.getParameter("size"))
+        .thenReturn(Integer.toString(Renditions.THUMBNAIL_WIDTH));
+    try {
+      servlet.doGet(request, response);
+      fail();
+    } catch (IOException e) {
+      // The blob has no info to resize from
+    }
+    assertTrue(DatastoreServiceFactory.getDatastoreService()
+                   .get(Renditions.getKeys("abc"))
+                   .isEmpty());
+  }
+
+  @Test(expected = IOException.class)
+  public void invalidSize() throws IOException {
+    Mockito.when(request.getParameter("size")).thenReturn("300");
+    servlet.doGet(request, response);
+  }
+
+  @Test
+  public void multipleRangesServeWholeBlob() throws IOException {
+    Mockito.when(blobstoreService.getByteRange(request))
+        .thenThrow(new RangeFormatException("Multiple ranges"));
+    servlet.doGet(request, response);
+    Mockito.verify(blobstoreService).serve(new BlobKey("abc"), response);
+  }
+}
@@ -6,12 +6,19 @@ import static org.junit.Assert.*;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -24,6 +31,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
@@ -39,10 +47,13 @@ public final class BlobServletTest {
   private HttpServletResponse response;
   private StringWriter stringWriter;
   private PrintWriter writer;
+  private final Gson gson =
+      new GsonBuilder().disableHtmlEscaping().create();
 
   private final LocalServiceTestHelper helper =
       new LocalServiceTestHelper(new LocalUserServiceTestConfig(),
-                                 new LocalDatastoreServiceTestConfig())
+                                 new LocalDatastoreServiceTestConfig(),
+                                 new LocalMemcacheServiceTestConfig())
           .setEnvIsLoggedIn(true)
           .setEnvEmail("abc@xyz.com")
           .setEnvAuthDomain("gmail.com");
@@ -51,6 +62,7 @@ public final class BlobServletTest {
   public void setUp() throws IOException {
     helper.setUp();
     servlet = new BlobServlet();
+    ProjectTimestamps.setLocalExecutor(Runnable::run);
     projId = databaseSetup();
     PowerMockito.spy(BlobUtils.class);
     request = Mockito.mock(HttpServletRequest.class);
@@ -64,6 +76,8 @@ public final class BlobServletTest {
 
   @After
   public void tearDown() {
+    ProjectTimestamps.setLocalExecutor(null);
+    ProjectVersions.setSettleMillis(ProjectVersions.SETTLE_MILLIS);
     helper.tearDown();
   }
 
@@ -122,6 +136,25 @@ public final class BlobServletTest {
                      .countEntities());
   }
 
+  @Test
+  public void createMaskWithoutParentImage() throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Mockito.when(request.getParameter("mode")).thenReturn("create");
+    Mockito.when(request.getParameter("proj-id")).thenReturn(projId);
+    Mockito.when(request.getParameter("parent-img")).thenReturn("Missing");
+    Mockito.when(request.getParameter("img-name")).thenReturn("Mask2");
+    PowerMockito.doReturn(new CustomBlobInfo("mno", "png"))
+        .when(BlobUtils.class, "processBlobKey", request);
+    try {
+      servlet.doPost(request, response);
+      fail();
+    } catch (IOException e) {
+      assertEquals("Image not found.", e.getMessage());
+    }
+    assertEquals(2,
+                 datastore.prepare(new Query(DataUtils.MASK)).countEntities());
+  }
+
   @Test
   public void customCreateImage() throws Exception {
     DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
@@ -239,6 +272,41 @@ public final class BlobServletTest {
                      .getProperty("tags"));
   }
 
+  @Test
+  public void renameImageMovesMasks() throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Mockito.when(request.getParameter("mode")).thenReturn("update");
+    Mockito.when(request.getParameter("proj-id")).thenReturn(projId);
+    Mockito.when(request.getParameter("img-name")).thenReturn("Image0");
+    Mockito.when(request.getParameter("new-name")).thenReturn("Image10");
+    PowerMockito.doReturn(null).when(BlobUtils.class, "processBlobKey",
+                                     request);
+    servlet.doPost(request, response);
+    Key imgKey = BlobUtils.getAssetKey(
+        DataUtils.IMAGE, KeyFactory.stringToKey(projId), "Image10");
+    assertEquals("abc", datastore.get(imgKey).getProperty("blobkey"));
+    assertEquals(2, datastore
+                        .prepare(new Query(DataUtils.MASK).setAncestor(imgKey))
+                        .countEntities());
+    assertFalse(BlobUtils.assetExists(
+        DataUtils.IMAGE, KeyFactory.stringToKey(projId), "Image0"));
+  }
+
+  @Test
+  public void createMaskNameUniquePerImage() throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Mockito.when(request.getParameter("mode")).thenReturn("create");
+    Mockito.when(request.getParameter("proj-id")).thenReturn(projId);
+    Mockito.when(request.getParameter("parent-img")).thenReturn("Image1");
+    Mockito.when(request.getParameter("img-name")).thenReturn("Mask0");
+    PowerMockito.doReturn(new CustomBlobInfo("mno", "png"))
+        .when(BlobUtils.class, "processBlobKey", request);
+    servlet.doPost(request, response);
+    Key imgKey = BlobUtils.getAssetKey(
+        DataUtils.IMAGE, KeyFactory.stringToKey(projId), "Image1");
+    assertTrue(BlobUtils.assetExists(DataUtils.MASK, imgKey, "Mask0"));
+  }
+
   @Test
   public void deleteImage() throws IOException {
     DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
@@ -288,6 +356,224 @@ public final class BlobServletTest {
                      .countEntities());
   }
 
+  @Test
+  public void createAddsBlobIndex() throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Mockito.when(request.getParameter("mode")).thenReturn("create");
+    Mockito.when(request.getParameter("proj-id")).thenReturn(projId);
+    Mockito.when(request.getParameter("img-name")).thenReturn("Image2");
+    PowerMockito.doReturn(new CustomBlobInfo("mno", "png"))
+        .when(BlobUtils.class, "processBlobKey", request);
+    servlet.doPost(request, response);
+    Entity blobIndexEntity = datastore.get(BlobUtils.getBlobIndexKey("mno"));
+    assertEquals(DataUtils.IMAGE, blobIndexEntity.getProperty("kind"));
+    assertEquals(KeyFactory.stringToKey(projId),
+                 blobIndexEntity.getProperty("project"));
+  }
+
+  @Test
+  public void deleteRemovesBlobIndex() throws IOException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key projKey = KeyFactory.stringToKey(projId);
+    datastore.put(Arrays.asList(
+        BlobUtils.newBlobIndexEntity("abc", DataUtils.IMAGE, projKey, "png"),
+        BlobUtils.newBlobIndexEntity("def", DataUtils.IMAGE, projKey, "png"),
+        BlobUtils.newBlobIndexEntity("ghi", DataUtils.MASK, projKey, "png"),
+        BlobUtils.newBlobIndexEntity("jkl", DataUtils.MASK, projKey, "png")));
+    Mockito.when(request.getParameter("mode")).thenReturn("update");
+    Mockito.when(request.getParameter("delete")).thenReturn("true");
+    Mockito.when(request.getParameter("proj-id")).thenReturn(projId);
+    Mockito.when(request.getParameter("img-name")).thenReturn("Image0");
+    servlet.doPost(request, response);
+    assertEquals(
+        1, datastore.prepare(new Query(DataUtils.BLOB_INDEX)).countEntities());
+    assertEquals(
+        1, datastore
+               .prepare(new Query(DataUtils.BLOB_INDEX)
+                            .setFilter(new FilterPredicate(
+                                Entity.KEY_RESERVED_PROPERTY,
+                                FilterOperator.EQUAL,
+                                BlobUtils.getBlobIndexKey("def"))))
+               .countEntities());
+  }
+
+  @Test
+  public void uploadsAndDeletesUpdateCounters() throws Exception {
+    Key projKey = KeyFactory.stringToKey(projId);
+    ProjectCounters.recount(projKey);
+
+    Mockito.when(request.getParameter("mode")).thenReturn("create");
+    Mockito.when(request.getParameter("proj-id")).thenReturn(projId);
+    Mockito.when(request.getParameter("img-name")).thenReturn("Image2");
+    PowerMockito.doReturn(new CustomBlobInfo("mno", "png", 100))
+        .when(BlobUtils.class, "processBlobKey", request);
+    servlet.doPost(request, response);
+
+    ProjectSummary summary =
+        ProjectCounters.getSummaries(Arrays.asList(projKey)).get(projKey);
+    assertEquals(3, summary.imageCount);
+    assertEquals(2, summary.maskCount);
+    assertEquals(100, summary.totalBytes);
+    assertNotNull(summary.lastUpload);
+
+    Mockito.when(request.getParameter("mode")).thenReturn("update");
+    Mockito.when(request.getParameter("delete")).thenReturn("true");
+    Mockito.when(request.getParameter("img-name")).thenReturn("Image0");
+    servlet.doPost(request, response);
+    Mockito.when(request.getParameter("img-name")).thenReturn("Image2");
+    servlet.doPost(request, response);
+
+    summary =
+        ProjectCounters.getSummaries(Arrays.asList(projKey)).get(projKey);
+    assertEquals(1, summary.imageCount);
+    assertEquals(0, summary.maskCount);
+    assertEquals(0, summary.totalBytes);
+  }
+
+  @Test
+  public void projectUtcBumpsAreCoalesced() throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key projKey = KeyFactory.stringToKey(projId);
+    String oldUtc = (String)datastore.get(projKey).getProperty("utc");
+    ArrayList<Runnable> flushes = new ArrayList<Runnable>();
+    ProjectTimestamps.setLocalExecutor(flushes::add);
+
+    Mockito.when(request.getParameter("mode")).thenReturn("create");
+    Mockito.when(request.getParameter("parent-img")).thenReturn("Image0");
+    PowerMockito.doReturn(new CustomBlobInfo("mno", "png"))
+        .when(BlobUtils.class, "processBlobKey", request);
+    Mockito.when(request.getParameter("img-name")).thenReturn("Mask2");
+    servlet.doPost(request, response);
+    Mockito.when(request.getParameter("img-name")).thenReturn("Mask3");
+    servlet.doPost(request, response);
+
+    // Asset writes leave the project alone until the single flush runs
+    assertEquals(1, flushes.size());
+    assertEquals(oldUtc, datastore.get(projKey).getProperty("utc"));
+    flushes.get(0).run();
+    String newUtc = (String)datastore.get(projKey).getProperty("utc");
+    assertEquals(
+        datastore.get(BlobUtils.getAssetKey(
+                          DataUtils.MASK,
+                          BlobUtils.getAssetKey(DataUtils.IMAGE, projKey,
+                                                "Image0"),
+                          "Mask3"))
+            .getProperty("utc"),
+        newUtc);
+
+    // A flushed time is cleared, so the next write schedules a new flush
+    ProjectTimestamps.touch(projKey, newUtc + "1");
+    assertEquals(2, flushes.size());
+    flushes.get(1).run();
+    assertEquals(newUtc + "1", datastore.get(projKey).getProperty("utc"));
+    newUtc += "1";
+
+    // Earlier times never overwrite later ones
+    ProjectTimestamps.setLocalExecutor(Runnable::run);
+    ProjectTimestamps.touch(projKey, oldUtc);
+    assertEquals(newUtc, datastore.get(projKey).getProperty("utc"));
+  }
+
+  @Test
+  public void tagFacetsFollowRetagAndDelete() throws Exception {
+    Key projKey = KeyFactory.stringToKey(projId);
+    ProjectCounters.recount(projKey);
+    TagFacets facets = ProjectCounters.getTagFacets(projKey);
+    assertEquals(Long.valueOf(1), facets.images.get("zero"));
+    assertEquals(Long.valueOf(1), facets.images.get("one"));
+
+    // Retag Image1 from "1, one" to "one, two"
+    Mockito.when(request.getParameter("mode")).thenReturn("update");
+    Mockito.when(request.getParameter("img-name")).thenReturn("Image1");
+    Mockito.when(request.getParameter("tags")).thenReturn("one, Two");
+    PowerMockito.doReturn(null).when(BlobUtils.class, "processBlobKey",
+                                     request);
+    servlet.doPost(request, response);
+
+    facets = ProjectCounters.getTagFacets(projKey);
+    assertNull(facets.images.get("1"));
+    assertEquals(Long.valueOf(1), facets.images.get("one"));
+    assertEquals(Long.valueOf(1), facets.images.get("two"));
+
+    // Deleting Image0 removes its tags and those of its masks
+    Mockito.when(request.getParameter("delete")).thenReturn("true");
+    Mockito.when(request.getParameter("img-name")).thenReturn("Image0");
+    servlet.doPost(request, response);
+
+    facets = ProjectCounters.getTagFacets(projKey);
+    assertNull(facets.images.get("zero"));
+    assertTrue(facets.masks.isEmpty());
+
+    TagFacetServlet facetServlet = new TagFacetServlet();
+    facetServlet.doGet(request, response);
+    writer.flush();
+    // Earlier output is from the retag
+    assertTrue(stringWriter.toString().endsWith(
+        "{\"images\":{\"one\":1,\"two\":1},\"masks\":{}}\n"));
+  }
+
+  @Test
+  public void bulkCreateImages() throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key projKey = KeyFactory.stringToKey(projId);
+    Mockito.when(request.getParameter("mode")).thenReturn("create");
+    Mockito.when(request.getParameter("bulk")).thenReturn("true");
+    Mockito.when(request.getParameter("tags")).thenReturn("raw");
+    PowerMockito
+        .doReturn(Arrays.asList(
+            new CustomBlobInfo("b0", "png", 10, "Image0.png"),
+            new CustomBlobInfo("b1", "png", 20, "cells.png"),
+            new CustomBlobInfo("b2", "jpg", 30, "cells.jpg"),
+            new CustomBlobInfo("b3", null, 40, "notes.txt")))
+        .when(BlobUtils.class, "processBlobKeys", request);
+    servlet.doPost(request, response);
+    writer.flush();
+
+    assertEquals(5,
+                 datastore.prepare(new Query(DataUtils.IMAGE)).countEntities());
+    BulkUploadInfo result =
+        gson.fromJson(stringWriter.toString(), BulkUploadInfo.class);
+    assertEquals(Arrays.asList("notes.txt"), result.rejected);
+    assertEquals(3, result.uploaded.size());
+    assertTrue(result.uploaded.get(0).name.startsWith("Image0-"));
+    assertEquals("cells", result.uploaded.get(1).name);
+    assertTrue(result.uploaded.get(2).name.startsWith("cells-"));
+    assertEquals("/blob-host?blobkey=b2", result.uploaded.get(2).url);
+    assertEquals(
+        projKey,
+        datastore.get(BlobUtils.getBlobIndexKey("b1")).getProperty("project"));
+
+    ProjectSummary summary =
+        ProjectCounters.getSummaries(Arrays.asList(projKey)).get(projKey);
+    assertEquals(3, summary.imageCount);
+    assertEquals(60, summary.totalBytes);
+    assertEquals(Long.valueOf(3),
+                 ProjectCounters.getTagFacets(projKey).images.get("raw"));
+  }
+
+  /**
+   * A caller who cannot create images has their uploads deleted.
+   */
+  @Test
+  public void bulkCreateDeniedDeletesUploads() throws Exception {
+    Mockito.when(request.getParameter("mode")).thenReturn("create");
+    Mockito.when(request.getParameter("bulk")).thenReturn("true");
+    Mockito.when(request.getParameter("proj-id"))
+        .thenReturn(KeyFactory.keyToString(
+            KeyFactory.createKey(DataUtils.PROJECT, 999)));
+    PowerMockito.doNothing().when(BlobUtils.class, "deleteUploads", request);
+    try {
+      servlet.doPost(request, response);
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+    PowerMockito.verifyStatic(BlobUtils.class);
+    BlobUtils.deleteUploads(request);
+    PowerMockito.verifyStatic(BlobUtils.class, Mockito.never());
+    BlobUtils.processBlobKeys(request);
+  }
+
   ////////////////////////////////////////////////////////////////
   //                   Blob servlet GET tests                   //
   ////////////////////////////////////////////////////////////////
@@ -298,6 +584,56 @@ public final class BlobServletTest {
     assertEquals(expectedNoFilters, stringWriter.toString());
   }
 
+  @Test
+  public void conditionalGet() throws Exception {
+    Key projKey = KeyFactory.stringToKey(projId);
+    ProjectVersions.setSettleMillis(0);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    servlet.doGet(request, response);
+    Mockito.verify(response).setHeader(Mockito.eq("ETag"), etag.capture());
+
+    // A matching validator skips the queries and the body
+    stringWriter.getBuffer().setLength(0);
+    Mockito.when(request.getHeader("If-None-Match"))
+        .thenReturn(etag.getValue());
+    servlet.doGet(request, response);
+    writer.flush();
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals("", stringWriter.toString());
+
+    // Other parameters and asset writes change the validator
+    Mockito.when(request.getQueryString()).thenReturn("sort-img=asc");
+    assertNotEquals(etag.getValue(),
+                    ProjectVersions.getProjectETag(projKey, request));
+    Mockito.when(request.getQueryString()).thenReturn(null);
+    Thread.sleep(5);
+    Mockito.when(request.getParameter("mode")).thenReturn("update");
+    Mockito.when(request.getParameter("img-name")).thenReturn("Image1");
+    Mockito.when(request.getParameter("tags")).thenReturn("two");
+    PowerMockito.doReturn(null).when(BlobUtils.class, "processBlobKey",
+                                     request);
+    servlet.doPost(request, response);
+    assertNotEquals(etag.getValue(),
+                    ProjectVersions.getProjectETag(projKey, request));
+  }
+
+  @Test
+  public void nameFields() throws IOException {
+    Mockito.when(request.getParameter("fields")).thenReturn("name");
+    servlet.doGet(request, response);
+    writer.flush();
+    assertEquals(expectedNameFields, stringWriter.toString());
+  }
+
+  @Test
+  public void projectedFields() throws IOException {
+    Mockito.when(request.getParameter("fields")).thenReturn("name, url, utc");
+    Mockito.when(request.getParameter("with-masks")).thenReturn("true");
+    servlet.doGet(request, response);
+    writer.flush();
+    assertEquals(expectedProjectedFields, stringWriter.toString());
+  }
+
   @Test
   public void withMasks() throws IOException {
     Mockito.when(request.getParameter("with-masks")).thenReturn("true");
@@ -306,6 +642,27 @@ public final class BlobServletTest {
     assertEquals(expectedWithMasks, stringWriter.toString());
   }
 
+  @Test
+  public void masksGroupedByImage() throws IOException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity imgEntity = datastore.prepare(new Query(DataUtils.IMAGE).setFilter(
+                                             new FilterPredicate(
+                                                 "name", FilterOperator.EQUAL,
+                                                 "Image1")))
+                           .asSingleEntity();
+    Entity maskEntity = new Entity(DataUtils.MASK, "Mask2", imgEntity.getKey());
+    maskEntity.setProperty("name", "Mask2");
+    maskEntity.setProperty("filetype", "png");
+    maskEntity.setProperty("utc", "2020-08-12T05:39:02.385Z");
+    maskEntity.setProperty("blobkey", "mno");
+    maskEntity.setIndexedProperty("tags", Arrays.asList("2", "two"));
+    datastore.put(maskEntity);
+    Mockito.when(request.getParameter("with-masks")).thenReturn("true");
+    servlet.doGet(request, response);
+    writer.flush();
+    assertEquals(expectedMasksGroupedByImage, stringWriter.toString());
+  }
+
   @Test
   public void sortImg() throws IOException {
     Mockito.when(request.getParameter("sort-img")).thenReturn("asc");
@@ -347,4 +704,47 @@ public final class BlobServletTest {
     writer.flush();
     assertEquals(expectedMaskName, stringWriter.toString());
   }
+
+  @Test
+  public void paged() throws IOException {
+    Mockito.when(request.getParameter("limit")).thenReturn("1");
+    servlet.doGet(request, response);
+    writer.flush();
+    JsonObject firstPage =
+        JsonParser.parseString(stringWriter.toString()).getAsJsonObject();
+    assertEquals(expectedFirstPage, gson.toJson(firstPage.get("results")));
+    assertTrue(firstPage.has("nextCursor"));
+
+    stringWriter.getBuffer().setLength(0);
+    Mockito.when(request.getParameter("cursor"))
+        .thenReturn(firstPage.get("nextCursor").getAsString());
+    servlet.doGet(request, response);
+    writer.flush();
+    JsonObject secondPage =
+        JsonParser.parseString(stringWriter.toString()).getAsJsonObject();
+    assertEquals(expectedSecondPage, gson.toJson(secondPage.get("results")));
+  }
+
+  @Test
+  public void lastPageHasNoCursor() throws IOException {
+    Mockito.when(request.getParameter("limit")).thenReturn("5");
+    servlet.doGet(request, response);
+    writer.flush();
+    JsonObject page =
+        JsonParser.parseString(stringWriter.toString()).getAsJsonObject();
+    assertEquals(2, page.getAsJsonArray("results").size());
+    assertFalse(page.has("nextCursor"));
+  }
+
+  @Test
+  public void pagedWithMasks() throws IOException {
+    Mockito.when(request.getParameter("limit")).thenReturn("2");
+    Mockito.when(request.getParameter("with-masks")).thenReturn("true");
+    servlet.doGet(request, response);
+    writer.flush();
+    JsonObject page =
+        JsonParser.parseString(stringWriter.toString()).getAsJsonObject();
+    assertEquals(expectedWithMasks,
+                 gson.toJson(page.get("results")) + "\n");
+  }
 }
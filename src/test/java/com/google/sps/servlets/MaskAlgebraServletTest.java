@@ -0,0 +1,145 @@
+package com.google.sps.servlets;
+
+import static com.google.sps.servlets.BlobServletTestUtils.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+@RunWith(JUnit4.class)
+public final class MaskAlgebraServletTest {
+
+  private MaskAlgebraServlet servlet;
+  private Key imgKey;
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+  private StringWriter stringWriter;
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalUserServiceTestConfig(),
+                                 new LocalDatastoreServiceTestConfig(),
+                                 new LocalMemcacheServiceTestConfig())
+          .setEnvIsLoggedIn(true)
+          .setEnvEmail("abc@xyz.com")
+          .setEnvAuthDomain("gmail.com");
+
+  @Before
+  public void setUp() throws Exception {
+    helper.setUp();
+    servlet = new MaskAlgebraServlet();
+    ProjectTimestamps.setLocalExecutor(Runnable::run);
+    String projId = databaseSetup();
+    Key projKey = KeyFactory.stringToKey(projId);
+    imgKey = BlobUtils.getAssetKey(DataUtils.IMAGE, projKey, "Image0");
+
+    // Mask0 sets the first 60 pixels of a 10x10 mask, Mask1 the last 60
+    MaskBitmap first = new MaskBitmap(10, 10);
+    first.setRange(0, 60);
+    MaskBitmap last = new MaskBitmap(10, 10);
+    last.setRange(40, 100);
+    setMaskData("Mask0", MaskStore.put(projKey, first.encode()));
+    setMaskData("Mask1", MaskStore.put(projKey, last.encode()));
+
+    request = Mockito.mock(HttpServletRequest.class);
+    response = Mockito.mock(HttpServletResponse.class);
+    Mockito.when(request.getParameter("proj-id")).thenReturn(projId);
+    Mockito.when(request.getParameter("parent-img")).thenReturn("Image0");
+    stringWriter = new StringWriter();
+    Mockito.when(response.getWriter())
+        .thenReturn(new PrintWriter(stringWriter, true));
+  }
+
+  @After
+  public void tearDown() {
+    ProjectTimestamps.setLocalExecutor(null);
+    helper.tearDown();
+  }
+
+  @Test
+  public void savesResultAsNewMask() throws Exception {
+    MaskBitmap result = post("Result", "intersect", "Mask0", "Mask1");
+    assertEquals(20, result.cardinality());
+    assertEquals(40, result.nextSetBit(0));
+    assertTrue(stringWriter.toString().contains("\"name\":\"Result\""));
+  }
+
+  @Test
+  public void operations() throws Exception {
+    assertEquals(100, post("Union", "union", "Mask0", "Mask1").cardinality());
+    assertEquals(80, post("Xor", "xor", "Mask0", "Mask1").cardinality());
+    MaskBitmap difference = post("Difference", "subtract", "Mask0", "Mask1");
+    assertEquals(40, difference.cardinality());
+    assertEquals(40, difference.nextClearBit(0));
+    MaskBitmap inverse = post("Inverse", "invert", "Mask0");
+    assertEquals(40, inverse.cardinality());
+    assertEquals(60, inverse.nextSetBit(0));
+  }
+
+  /**
+   * A result whose name is taken is saved under a timestamped name.
+   */
+  @Test
+  public void takenName() throws Exception {
+    // Mask0 itself is left as it was
+    assertEquals(60, post("Mask0", "union", "Mask0", "Mask1").cardinality());
+    assertTrue(stringWriter.toString().contains("\"name\":\"Mask0-"));
+  }
+
+  @Test(expected = IOException.class)
+  public void invertTakesOneMask() throws Exception {
+    post("Result", "invert", "Mask0", "Mask1");
+  }
+
+  @Test(expected = IOException.class)
+  public void invalidOperation() throws Exception {
+    post("Result", "nand", "Mask0", "Mask1");
+  }
+
+  @Test(expected = IOException.class)
+  public void missingMask() throws Exception {
+    post("Result", "union", "Mask0", "Mask9");
+  }
+
+  private void setMaskData(String maskName, String maskDataId)
+      throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity maskEntity =
+        datastore.get(BlobUtils.getAssetKey(DataUtils.MASK, imgKey, maskName));
+    maskEntity.removeProperty("blobkey");
+    maskEntity.setProperty("maskdata", maskDataId);
+    datastore.put(maskEntity);
+  }
+
+  /**
+   * Posts an operation and returns the mask with the result's name.
+   */
+  private MaskBitmap post(String maskName, String op, String... maskNames)
+      throws Exception {
+    Mockito.when(request.getParameter("img-name")).thenReturn(maskName);
+    Mockito.when(request.getParameter("op")).thenReturn(op);
+    Mockito.when(request.getParameterValues("mask")).thenReturn(maskNames);
+    servlet.doPost(request, response);
+    Entity maskEntity = DatastoreServiceFactory.getDatastoreService().get(
+        BlobUtils.getAssetKey(DataUtils.MASK, imgKey, maskName));
+    return MaskBitmap.decode(
+        MaskStore.get((String)maskEntity.getProperty("maskdata")).encoded);
+  }
+}
@@ -0,0 +1,223 @@
+package com.google.sps.servlets;
+
+import static com.google.sps.servlets.BlobServletTestUtils.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.zip.CRC32;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+@RunWith(JUnit4.class)
+public final class MaskDataServletTest {
+
+  private MaskDataServlet servlet;
+  private String projId;
+  private Key imgKey;
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+  private StringWriter stringWriter;
+  private ByteArrayOutputStream body;
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalUserServiceTestConfig(),
+                                 new LocalDatastoreServiceTestConfig(),
+                                 new LocalMemcacheServiceTestConfig())
+          .setEnvIsLoggedIn(true)
+          .setEnvEmail("abc@xyz.com")
+          .setEnvAuthDomain("gmail.com");
+
+  @Before
+  public void setUp() throws IOException {
+    helper.setUp();
+    servlet = new MaskDataServlet();
+    ProjectTimestamps.setLocalExecutor(Runnable::run);
+    projId = databaseSetup();
+    imgKey = BlobUtils.getAssetKey(
+        DataUtils.IMAGE, KeyFactory.stringToKey(projId), "Image0");
+    request = Mockito.mock(HttpServletRequest.class);
+    response = Mockito.mock(HttpServletResponse.class);
+    Mockito.when(request.getParameter("proj-id")).thenReturn(projId);
+    Mockito.when(request.getParameter("parent-img")).thenReturn("Image0");
+    stringWriter = new StringWriter();
+    Mockito.when(response.getWriter())
+        .thenReturn(new PrintWriter(stringWriter, true));
+    body = new ByteArrayOutputStream();
+    Mockito.when(response.getOutputStream())
+        .thenReturn(new ServletOutputStream() {
+          @Override
+          public void write(int b) {
+            body.write(b);
+          }
+
+          @Override
+          public boolean isReady() {
+            return true;
+          }
+
+          @Override
+          public void setWriteListener(WriteListener listener) {}
+        });
+  }
+
+  @After
+  public void tearDown() {
+    ProjectTimestamps.setLocalExecutor(null);
+    helper.tearDown();
+  }
+
+  @Test
+  public void createAndDownload() throws Exception {
+    MaskBitmap mask = new MaskBitmap(40, 30);
+    mask.setRange(100, 500);
+    byte[] encoded = mask.encode();
+    post("create", "Mask2", encoded);
+
+    Entity maskEntity = DatastoreServiceFactory.getDatastoreService().get(
+        BlobUtils.getAssetKey(DataUtils.MASK, imgKey, "Mask2"));
+    String maskDataId = (String)maskEntity.getProperty("maskdata");
+    assertNotNull(maskDataId);
+    assertEquals((long)encoded.length, maskEntity.getProperty("size"));
+    assertEquals(40L, maskEntity.getProperty("width"));
+    assertTrue(stringWriter.toString().contains(
+        MaskStore.getUrl(maskDataId, true)));
+
+    Mockito.reset(request);
+    Mockito.when(request.getParameter("id")).thenReturn(maskDataId);
+    servlet.doGet(request, response);
+    assertArrayEquals(encoded, body.toByteArray());
+    Mockito.verify(response).setHeader("ETag", "\"" + maskDataId + "\"");
+
+    body.reset();
+    Mockito.when(request.getParameter("format")).thenReturn("png");
+    servlet.doGet(request, response);
+    MaskBitmap png =
+        MaskBitmap.fromPng(new ByteArrayInputStream(body.toByteArray()));
+    assertEquals(mask.cardinality(), png.cardinality());
+    assertTrue(png.get(100) && png.get(499) && !png.get(500));
+  }
+
+  /**
+   * Updates keep earlier versions, which are served by number.
+   */
+  @Test
+  public void servesVersions() throws Exception {
+    MaskBitmap first = new MaskBitmap(20, 20);
+    first.setRange(0, 20);
+    post("create", "Mask2", first.encode());
+    MaskBitmap second = first.copy();
+    second.setRange(20, 40);
+    post("update", "Mask2", second.encode());
+
+    Mockito.when(request.getParameter("img-name")).thenReturn("Mask2");
+    Mockito.when(request.getParameter("version")).thenReturn("0");
+    servlet.doGet(request, response);
+    assertEquals(20, MaskBitmap.decode(body.toByteArray()).cardinality());
+
+    body.reset();
+    Mockito.when(request.getParameter("version")).thenReturn("1");
+    servlet.doGet(request, response);
+    assertEquals(40, MaskBitmap.decode(body.toByteArray()).cardinality());
+
+    StringWriter versions = new StringWriter();
+    Mockito.when(response.getWriter())
+        .thenReturn(new PrintWriter(versions, true));
+    new MaskVersionServlet().doGet(request, response);
+    assertTrue(versions.toString().startsWith("[{\"version\":1,"));
+  }
+
+  @Test
+  public void updateReplacesBlob() throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    datastore.put(BlobUtils.newBlobIndexEntity(
+        "ghi", DataUtils.MASK, KeyFactory.stringToKey(projId), "png"));
+    post("update", "Mask0", new MaskBitmap(8, 8).encode());
+
+    Entity maskEntity =
+        datastore.get(BlobUtils.getAssetKey(DataUtils.MASK, imgKey, "Mask0"));
+    assertNull(maskEntity.getProperty("blobkey"));
+    assertNotNull(maskEntity.getProperty("maskdata"));
+    try {
+      datastore.get(BlobUtils.getBlobIndexKey("ghi"));
+      fail();
+    } catch (EntityNotFoundException e) {
+      // The replaced blob is no longer hosted
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void invalidData() throws IOException {
+    post("create", "Mask2", new byte[] {1, 8, 8, 65});
+  }
+
+  /**
+   * A PNG declaring huge dimensions is rejected from its header, before
+   * decoding would allocate its pixels.
+   */
+  @Test(expected = IOException.class)
+  public void oversizedPng() throws IOException {
+    ByteArrayOutputStream png = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(png);
+    out.write(new byte[] {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    DataOutputStream headerOut = new DataOutputStream(header);
+    headerOut.writeInt(40000);
+    headerOut.writeInt(40000);
+    // 8-bit RGBA, default compression, filter and interlacing
+    headerOut.write(new byte[] {8, 6, 0, 0, 0});
+    writeChunk(out, "IHDR", header.toByteArray());
+    writeChunk(out, "IDAT", new byte[0]);
+    writeChunk(out, "IEND", new byte[0]);
+    MaskBitmap.fromPng(new ByteArrayInputStream(png.toByteArray()));
+  }
+
+  @Test(expected = IOException.class)
+  public void missingImage() throws IOException {
+    Mockito.when(request.getParameter("parent-img")).thenReturn("Image9");
+    post("create", "Mask2", new MaskBitmap(8, 8).encode());
+  }
+
+  private void post(String mode, String maskName, byte[] content)
+      throws IOException {
+    Mockito.when(request.getParameter("mode")).thenReturn(mode);
+    Mockito.when(request.getParameter("img-name")).thenReturn(maskName);
+    Mockito.when(request.getContentLength()).thenReturn(content.length);
+    Mockito.when(request.getInputStream())
+        .thenReturn(newRequestBody(content));
+    servlet.doPost(request, response);
+  }
+
+  private static void writeChunk(DataOutputStream out, String type,
+                                 byte[] data) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(type.getBytes("US-ASCII"));
+    crc.update(data);
+    out.writeInt(data.length);
+    out.writeBytes(type);
+    out.write(data);
+    out.writeInt((int)crc.getValue());
+  }
+}
@@ -0,0 +1,132 @@
+package com.google.sps.servlets;
+
+import static com.google.sps.servlets.BlobServletTestUtils.*;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+@RunWith(JUnit4.class)
+public final class MaskPatchServletTest {
+
+  private MaskPatchServlet servlet;
+  private Key maskKey;
+  private String base;
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+  private StringWriter stringWriter;
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalUserServiceTestConfig(),
+                                 new LocalDatastoreServiceTestConfig(),
+                                 new LocalMemcacheServiceTestConfig())
+          .setEnvIsLoggedIn(true)
+          .setEnvEmail("abc@xyz.com")
+          .setEnvAuthDomain("gmail.com");
+
+  @Before
+  public void setUp() throws IOException {
+    helper.setUp();
+    servlet = new MaskPatchServlet();
+    ProjectTimestamps.setLocalExecutor(Runnable::run);
+    String projId = databaseSetup();
+    Key projKey = KeyFactory.stringToKey(projId);
+
+    // Mask0 holds compact data of a 100x100 mask with its first row set
+    MaskBitmap mask = new MaskBitmap(100, 100);
+    mask.setRange(0, 100);
+    base = MaskStore.put(projKey, mask.encode());
+    maskKey = BlobUtils.getAssetKey(
+        DataUtils.MASK,
+        BlobUtils.getAssetKey(DataUtils.IMAGE, projKey, "Image0"), "Mask0");
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    try {
+      Entity maskEntity = datastore.get(maskKey);
+      maskEntity.removeProperty("blobkey");
+      maskEntity.setProperty("maskdata", base);
+      datastore.put(maskEntity);
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+
+    request = Mockito.mock(HttpServletRequest.class);
+    response = Mockito.mock(HttpServletResponse.class);
+    Mockito.when(request.getParameter("proj-id")).thenReturn(projId);
+    Mockito.when(request.getParameter("parent-img")).thenReturn("Image0");
+    Mockito.when(request.getParameter("img-name")).thenReturn("Mask0");
+    stringWriter = new StringWriter();
+    Mockito.when(response.getWriter())
+        .thenReturn(new PrintWriter(stringWriter, true));
+  }
+
+  @After
+  public void tearDown() {
+    ProjectTimestamps.setLocalExecutor(null);
+    helper.tearDown();
+  }
+
+  @Test
+  public void patchReplacesData() throws Exception {
+    MaskBitmap added = new MaskBitmap(100, 100);
+    added.setRange(100, 150);
+    MaskBitmap removed = new MaskBitmap(100, 100);
+    removed.setRange(0, 10);
+    post(base, MaskPatch.encode(added, removed));
+
+    Entity maskEntity =
+        DatastoreServiceFactory.getDatastoreService().get(maskKey);
+    String maskDataId = (String)maskEntity.getProperty("maskdata");
+    assertNotEquals(base, maskDataId);
+    assertTrue(stringWriter.toString().contains(
+        MaskStore.getUrl(maskDataId, true)));
+    MaskBitmap patched = MaskBitmap.decode(MaskStore.get(maskDataId).encoded);
+    assertEquals(140, patched.cardinality());
+    assertTrue(patched.get(149));
+    assertFalse(patched.get(9));
+
+    // The replaced data is removed
+    assertTrue(DatastoreServiceFactory.getDatastoreService()
+                   .get(MaskStore.getKeys(base))
+                   .isEmpty());
+  }
+
+  /**
+   * A patch made against data that has since been replaced is rejected.
+   */
+  @Test
+  public void staleBase() throws IOException {
+    MaskBitmap empty = new MaskBitmap(100, 100);
+    post(base, MaskPatch.encode(empty, empty));
+    try {
+      post(base, MaskPatch.encode(empty, empty));
+      fail();
+    } catch (IOException e) {
+      assertEquals("Mask has changed since it was loaded.", e.getMessage());
+    }
+  }
+
+  private void post(String base, byte[] patch) throws IOException {
+    Mockito.when(request.getParameter("base")).thenReturn(base);
+    Mockito.when(request.getContentLength()).thenReturn(patch.length);
+    Mockito.when(request.getInputStream()).thenReturn(newRequestBody(patch));
+    servlet.doPost(request, response);
+  }
+}
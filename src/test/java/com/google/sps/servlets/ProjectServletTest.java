@@ -8,13 +8,20 @@ import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -27,6 +34,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 
 @RunWith(JUnit4.class)
 public final class ProjectServletTest {
@@ -37,10 +45,13 @@ public final class ProjectServletTest {
   private HttpServletResponse response;
   private StringWriter stringWriter;
   private PrintWriter writer;
+  private final Gson gson =
+      new GsonBuilder().disableHtmlEscaping().create();
 
   private final LocalServiceTestHelper helper =
       new LocalServiceTestHelper(new LocalUserServiceTestConfig(),
-                                 new LocalDatastoreServiceTestConfig())
+                                 new LocalDatastoreServiceTestConfig(),
+                                 new LocalMemcacheServiceTestConfig())
           .setEnvIsLoggedIn(true)
           .setEnvEmail("abc@xyz.com")
           .setEnvAuthDomain("gmail.com");
@@ -49,6 +60,7 @@ public final class ProjectServletTest {
   public void setUp() throws IOException {
     helper.setUp();
     servlet = new ProjectServlet();
+    ProjectDeletion.setLocalExecutor(Runnable::run);
     projId = databaseSetup();
     request = mock(HttpServletRequest.class);
     response = mock(HttpServletResponse.class);
@@ -59,6 +71,8 @@ public final class ProjectServletTest {
 
   @After
   public void tearDown() {
+    ProjectDeletion.setLocalExecutor(null);
+    ProjectVersions.setSettleMillis(ProjectVersions.SETTLE_MILLIS);
     helper.tearDown();
   }
 
@@ -170,6 +184,64 @@ public final class ProjectServletTest {
                      .countEntities());
   }
 
+  @Test
+  public void deleteHidesProjectBeforeCleanup()
+      throws IOException, EntityNotFoundException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    datastore.put(BlobUtils.newBlobIndexEntity(
+        "abc", DataUtils.IMAGE, KeyFactory.stringToKey(projId), "png"));
+    ArrayList<Runnable> pending = new ArrayList<Runnable>();
+    ProjectDeletion.setLocalExecutor(pending::add);
+
+    when(request.getParameter("mode")).thenReturn("update");
+    when(request.getParameter("proj-id")).thenReturn(projId);
+    when(request.getParameter("delete")).thenReturn("true");
+    servlet.doPost(request, response);
+
+    // Listed nowhere and inaccessible while assets remain
+    when(request.getParameter("mode")).thenReturn(null);
+    when(request.getParameter("proj-id")).thenReturn(null);
+    servlet.doGet(request, response);
+    writer.flush();
+    assertEquals(expectedNoFiltersAfterDelete, stringWriter.toString());
+    assertEquals(
+        2, datastore.prepare(new Query(DataUtils.IMAGE)).countEntities());
+    assertEquals(ProjectDeletion.IN_PROGRESS,
+                 ProjectDeletion
+                     .getStatus(KeyFactory.stringToKey(projId), "abc@xyz.com")
+                     .status);
+    try {
+      DataUtils.getProjectEntity(projId, "abc@xyz.com", false, false);
+      fail();
+    } catch (IOException e) {
+    }
+
+    // Each chunk schedules the next
+    while (!pending.isEmpty()) {
+      pending.remove(0).run();
+    }
+    assertEquals(
+        0, datastore.prepare(new Query(DataUtils.IMAGE)).countEntities());
+    assertEquals(
+        0, datastore.prepare(new Query(DataUtils.MASK)).countEntities());
+    assertEquals(
+        0, datastore.prepare(new Query(DataUtils.BLOB_INDEX)).countEntities());
+    assertEquals(ProjectDeletion.COMPLETE,
+                 ProjectDeletion
+                     .getStatus(KeyFactory.stringToKey(projId), "abc@xyz.com")
+                     .status);
+  }
+
+  @Test(expected = IOException.class)
+  public void deletionStatusRequiresOwner() throws IOException {
+    ProjectDeletion.setLocalExecutor(task -> {});
+    when(request.getParameter("mode")).thenReturn("update");
+    when(request.getParameter("proj-id")).thenReturn(projId);
+    when(request.getParameter("delete")).thenReturn("true");
+    servlet.doPost(request, response);
+    ProjectDeletion.getStatus(KeyFactory.stringToKey(projId), "xyz@abc.com");
+  }
+
   ////////////////////////////////////////////////////////////////
   //                 Project servlet GET tests                  //
   ////////////////////////////////////////////////////////////////
@@ -180,6 +252,102 @@ public final class ProjectServletTest {
     assertEquals(expectedNoFilters, stringWriter.toString());
   }
 
+  @Test
+  public void projectedFields() throws IOException {
+    when(request.getParameter("fields")).thenReturn("projId,name,timestamp");
+    servlet.doGet(request, response);
+    writer.flush();
+    assertEquals(expectedProjectedFields, stringWriter.toString());
+  }
+
+  @Test
+  public void keyFields() throws IOException {
+    when(request.getParameter("global")).thenReturn("true");
+    when(request.getParameter("fields")).thenReturn("projId");
+    servlet.doGet(request, response);
+    writer.flush();
+    assertEquals(expectedKeyFields, stringWriter.toString());
+  }
+
+  @Test
+  public void summaryFields() throws IOException {
+    ProjectCounters.recount(KeyFactory.stringToKey(projId));
+    when(request.getParameter("proj-id")).thenReturn(projId);
+    when(request.getParameter("fields")).thenReturn("summary");
+    servlet.doGet(request, response);
+    writer.flush();
+    JsonObject project = JsonParser.parseString(stringWriter.toString())
+                             .getAsJsonArray()
+                             .get(0)
+                             .getAsJsonObject();
+    assertEquals(1, project.size());
+    JsonObject summary = project.getAsJsonObject("summary");
+    assertEquals(2, summary.get("imageCount").getAsLong());
+    assertEquals(2, summary.get("maskCount").getAsLong());
+    assertEquals(0, summary.get("totalBytes").getAsLong());
+  }
+
+  @Test
+  public void createInitializesCounters() throws IOException {
+    when(request.getParameter("mode")).thenReturn("create");
+    servlet.doPost(request, response);
+    writer.flush();
+    String newProjId = new Gson().fromJson(stringWriter.toString().trim(),
+                                           String.class);
+    Key newProjKey = KeyFactory.stringToKey(newProjId);
+    ProjectSummary summary = ProjectCounters.getSummaries(
+        Arrays.asList(newProjKey)).get(newProjKey);
+    assertEquals(0, summary.imageCount);
+    assertNull(summary.lastUpload);
+  }
+
+  @Test
+  public void suggestionsMatchPrefixes() throws IOException {
+    ProjectNameIndex.indexBatch(null);
+    when(request.getParameter("mode")).thenReturn("create");
+    when(request.getParameter("proj-name")).thenReturn("Cell Segmentation");
+    servlet.doPost(request, response);
+
+    ProjectSuggestionServlet suggestions = new ProjectSuggestionServlet();
+    when(request.getParameter("q")).thenReturn("SEG");
+    suggestions.doGet(request, response);
+    writer.flush();
+    assertTrue(stringWriter.toString().contains(
+        "\"name\":\"Cell Segmentation\"}]"));
+
+    // Only projects the User owns or edits, latest first
+    assertEquals(Arrays.asList("MyProject5", "MyProject2", "MyProject1"),
+                 suggestionNames("myproject"));
+    assertEquals(Arrays.asList("MyProject2"), suggestionNames("myproject2"));
+    assertEquals(Arrays.asList(), suggestionNames("project"));
+  }
+
+  @Test
+  public void suggestionsBeyondIndexedPrefixes() throws IOException {
+    when(request.getParameter("mode")).thenReturn("create");
+    when(request.getParameter("proj-name"))
+        .thenReturn("Annotated microscopy images of cells");
+    servlet.doPost(request, response);
+    when(request.getParameter("proj-name"))
+        .thenReturn("Annotated microscopy images of tissue");
+    servlet.doPost(request, response);
+
+    assertEquals(Arrays.asList("Annotated microscopy images of cells"),
+                 suggestionNames("annotated microscopy images of c"));
+  }
+
+  /**
+   * Returns the names suggested for the term, in order.
+   */
+  private static ArrayList<String> suggestionNames(String term) {
+    ArrayList<String> names = new ArrayList<String>();
+    for (Entity project :
+         ProjectNameIndex.suggest("abc@xyz.com", term, 10)) {
+      names.add((String)project.getProperty("name"));
+    }
+    return names;
+  }
+
   @Test
   public void publicOnly() throws IOException {
     when(request.getParameter("visibility")).thenReturn("public");
@@ -196,6 +364,37 @@ public final class ProjectServletTest {
     assertEquals(expectedPrivateOnly, stringWriter.toString());
   }
 
+  @Test
+  public void conditionalGet() throws Exception {
+    ProjectVersions.setSettleMillis(0);
+    ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+    servlet.doGet(request, response);
+    verify(response).setHeader(eq("ETag"), etag.capture());
+
+    // A matching validator skips the queries and the body
+    stringWriter.getBuffer().setLength(0);
+    when(request.getHeader("If-None-Match")).thenReturn(etag.getValue());
+    servlet.doGet(request, response);
+    writer.flush();
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals("", stringWriter.toString());
+
+    // Listings differ per user, and change only with writes to projects
+    // the user owns or edits
+    assertNotEquals(etag.getValue(),
+                    ProjectVersions.getListingETag(request, "xyz@abc.com"));
+    Thread.sleep(5);
+    ProjectVersions.bump(KeyFactory.createKey(DataUtils.PROJECT, 135));
+    assertEquals(etag.getValue(),
+                 ProjectVersions.getListingETag(request, "abc@xyz.com"));
+    when(request.getParameter("mode")).thenReturn("update");
+    when(request.getParameter("proj-id")).thenReturn(projId);
+    when(request.getParameter("proj-name")).thenReturn("MyProject8");
+    servlet.doPost(request, response);
+    assertNotEquals(etag.getValue(),
+                    ProjectVersions.getListingETag(request, "abc@xyz.com"));
+  }
+
   @Test
   public void globalOnly() throws IOException {
     when(request.getParameter("global")).thenReturn("true");
@@ -243,4 +442,80 @@ public final class ProjectServletTest {
     writer.flush();
     assertEquals(expectedSearchTerm, stringWriter.toString());
   }
+
+  @Test
+  public void paged() throws IOException {
+    when(request.getParameter("limit")).thenReturn("2");
+    servlet.doGet(request, response);
+    writer.flush();
+    JsonObject firstPage =
+        JsonParser.parseString(stringWriter.toString()).getAsJsonObject();
+    assertEquals(expectedFirstPage, gson.toJson(firstPage.get("results")));
+    assertTrue(firstPage.has("nextCursor"));
+
+    stringWriter.getBuffer().setLength(0);
+    when(request.getParameter("cursor"))
+        .thenReturn(firstPage.get("nextCursor").getAsString());
+    servlet.doGet(request, response);
+    writer.flush();
+    JsonObject secondPage =
+        JsonParser.parseString(stringWriter.toString()).getAsJsonObject();
+    assertEquals(expectedSecondPage, gson.toJson(secondPage.get("results")));
+    assertFalse(secondPage.has("nextCursor"));
+  }
+
+  @Test
+  public void pagedGlobal() throws IOException {
+    when(request.getParameter("global")).thenReturn("true");
+    when(request.getParameter("limit")).thenReturn("1");
+    servlet.doGet(request, response);
+    writer.flush();
+    JsonObject page =
+        JsonParser.parseString(stringWriter.toString()).getAsJsonObject();
+    assertEquals(1, page.getAsJsonArray("results").size());
+    assertTrue(page.has("nextCursor"));
+  }
+
+  @Test
+  public void pagedWithoutDuplicates() throws IOException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity projEntity = new Entity(DataUtils.PROJECT, 999);
+    projEntity.setProperty("name", "MyProject6");
+    projEntity.setProperty("utc", "2020-08-12T05:39:02.386Z");
+    projEntity.setProperty("visibility", DataUtils.PRIVATE);
+    projEntity.setIndexedProperty("owners", Arrays.asList("abc@xyz.com"));
+    projEntity.setIndexedProperty("editors", Arrays.asList("abc@xyz.com"));
+    datastore.put(projEntity);
+
+    ArrayList<String> names = new ArrayList<String>();
+    String cursor = null;
+    do {
+      stringWriter.getBuffer().setLength(0);
+      when(request.getParameter("limit")).thenReturn("1");
+      when(request.getParameter("cursor")).thenReturn(cursor);
+      servlet.doGet(request, response);
+      writer.flush();
+      JsonObject page =
+          JsonParser.parseString(stringWriter.toString()).getAsJsonObject();
+      for (JsonElement project : page.getAsJsonArray("results")) {
+        names.add(project.getAsJsonObject().get("name").getAsString());
+      }
+      cursor = page.has("nextCursor") ? page.get("nextCursor").getAsString()
+                                      : null;
+    } while (cursor != null);
+
+    assertEquals(new ArrayList<String>(Arrays.asList(
+                     "MyProject5", "MyProject6", "MyProject2", "MyProject1")),
+                 names);
+  }
+
+  @Test
+  public void updateRefreshesCachedAcl() throws IOException {
+    DataUtils.checkProjectAccess(projId, "abc@xyz.com", false, false);
+    when(request.getParameter("mode")).thenReturn("update");
+    when(request.getParameter("proj-id")).thenReturn(projId);
+    when(request.getParameter("owners")).thenReturn("ghi@xyz.com");
+    servlet.doPost(request, response);
+    DataUtils.checkProjectAccess(projId, "ghi@xyz.com", false, false);
+  }
 }